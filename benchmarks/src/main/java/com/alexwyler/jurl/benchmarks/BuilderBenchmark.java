@@ -0,0 +1,88 @@
+package com.alexwyler.jurl.benchmarks;
+
+import com.alexwyler.jurl.Jurl;
+import com.alexwyler.jurl.JurlHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of describing a request, without sending it: the fluent builder, {@link Jurl#getUrlWithParams()}, and
+ * looking headers up by name.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BuilderBenchmark {
+
+    private Jurl jurl;
+    private JurlHeaders headers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        jurl = build();
+        headers = new JurlHeaders();
+        for (int i = 0; i < 16; i++) {
+            headers.add("X-Custom-" + i, String.valueOf(i));
+        }
+        headers.add("Content-Type", "application/json");
+        headers.add("Set-Cookie", "a=1");
+        headers.add("Set-Cookie", "b=2");
+    }
+
+    private static Jurl build() {
+        return new Jurl()
+                .url("https://api.example.com/v1/orders")
+                .param("status", "open")
+                .param("limit", 50)
+                .param("after", 1234567890L)
+                .param("q", "pizza subs")
+                .header("Accept", "application/json")
+                .header("Accept-Language", "en")
+                .header("Authorization", "Bearer 0123456789abcdef")
+                .header("X-Request-Id", "42");
+    }
+
+    @Benchmark
+    public Jurl builder() {
+        return build();
+    }
+
+    @Benchmark
+    public URL getUrlWithParams() {
+        return jurl.getUrlWithParams();
+    }
+
+    @Benchmark
+    public URL builderAndUrl() {
+        return build().getUrlWithParams();
+    }
+
+    @Benchmark
+    public void headerLookup(Blackhole blackhole) {
+        blackhole.consume(headers.getFirst("content-type"));
+        blackhole.consume(headers.getAll("SET-COOKIE"));
+        blackhole.consume(headers.contains("x-custom-15"));
+        blackhole.consume(headers.getFirst("Missing"));
+    }
+
+    @Benchmark
+    public String requestHeaderLookup() {
+        return jurl.getRequestHeader("authorization");
+    }
+}
@@ -0,0 +1,108 @@
+package com.alexwyler.jurl.benchmarks;
+
+import com.alexwyler.jurl.Jurl;
+import com.alexwyler.jurl.JurlCache;
+import com.alexwyler.jurl.JurlEngine;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binding a response body with the {@code getResponseJson*} methods.  Each of them caches what it read on the
+ * {@link Jurl}, so every operation needs a fresh response; they come from a {@link JurlCache}, and {@link #cacheHit()}
+ * measures that part alone so it can be subtracted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeserializeBenchmark {
+
+    public static class Record {
+        public long id;
+        public String name;
+    }
+
+    private static final TypeReference<List<Map<String, Object>>> MAPS =
+            new TypeReference<List<Map<String, Object>>>() {
+            };
+
+    @Param({"10", "1000"})
+    int records;
+
+    private StubServer server;
+    private JurlEngine engine;
+    private JurlCache cache;
+    private String url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new StubServer();
+        engine = new JurlEngine();
+        cache = new JurlCache();
+        url = server.getBaseUrl() + "/records?count=" + records;
+        if (fetch().isResponseFromCache()) {
+            throw new IllegalStateException("The cache was not empty.");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.close();
+        server.close();
+    }
+
+    private Jurl fetch() {
+        return new Jurl().engine(engine).cache(cache).url(url).go();
+    }
+
+    @Benchmark
+    public Jurl cacheHit() {
+        return fetch();
+    }
+
+    @Benchmark
+    public List<Record> jsonList() {
+        return fetch().getResponseJsonList(Record.class);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> jsonMaps() {
+        return fetch().getResponseJsonObject(MAPS);
+    }
+
+    @Benchmark
+    public JsonNode jsonTree() {
+        return fetch().getResponseJsonTree();
+    }
+
+    @Benchmark
+    public long jsonIterator() {
+        long sum = 0;
+        final Iterator<Record> iterator = fetch().getResponseJsonIterator(Record.class);
+        while (iterator.hasNext()) {
+            sum += iterator.next().id;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,26 @@
+package com.alexwyler.jurl.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with JMH's usual command line, adding the GC profiler so every result carries its allocation
+ * rate ({@code gc.alloc.rate.norm}, in bytes/op), e.g. to run only the request benchmarks:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar RequestBenchmark
+ * </pre>
+ */
+public final class JurlBenchmarks {
+
+    private JurlBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
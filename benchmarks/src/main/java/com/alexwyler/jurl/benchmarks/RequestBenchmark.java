@@ -0,0 +1,96 @@
+package com.alexwyler.jurl.benchmarks;
+
+import com.alexwyler.jurl.Jurl;
+import com.alexwyler.jurl.JurlEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole requests against {@link StubServer}: {@link Jurl#go()} for a small and a large (about 1MB) body, and
+ * {@link Jurl#goAsync()} with many requests in flight, on a thread pool and on the non-blocking client.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        StubServer server;
+        JurlEngine engine;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException {
+            server = new StubServer();
+            engine = new JurlEngine().maxTotal(512).maxPerRoute(512);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws IOException {
+            engine.close();
+            server.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Body {
+        @Param({"small", "large"})
+        String size;
+        String url;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) {
+            url = server.server.getBaseUrl() + ("small".equals(size) ? "/small" : "/records?count=25000");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Concurrency {
+        @Param({"16", "64"})
+        int inFlight;
+        @Param({"false", "true"})
+        boolean nonBlocking;
+        String url;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) {
+            url = server.server.getBaseUrl() + "/small";
+        }
+    }
+
+    @Benchmark
+    public String go(Server server, Body body) {
+        return new Jurl().engine(server.engine).url(body.url).go().getResponseBody();
+    }
+
+    /**
+     * Sends {@code inFlight} requests at once and waits for all of them, so the score is batches, not requests.
+     */
+    @Benchmark
+    public int goAsync(Server server, Concurrency concurrency) {
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[concurrency.inFlight];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = new Jurl().engine(server.engine).url(concurrency.url)
+                    .nonBlocking(concurrency.nonBlocking).goAsync();
+        }
+        CompletableFuture.allOf(futures).join();
+        return futures.length;
+    }
+}
@@ -0,0 +1,71 @@
+package com.alexwyler.jurl.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A loopback HTTP server answering with canned bodies, so benchmarks measure Jurl rather than the network or a remote
+ * host:
+ * <ul>
+ * <li>{@code /small} a 30 byte JSON object</li>
+ * <li>{@code /records?count=n} a JSON array of n records, about 40 bytes each, cacheable for an hour</li>
+ * </ul>
+ */
+public final class StubServer implements AutoCloseable {
+
+    public static final String SMALL = "{\"name\": \"jurl\", \"count\": 3}";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> records = new ConcurrentHashMap<>();
+
+    public StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        final byte[] small = SMALL.getBytes(StandardCharsets.UTF_8);
+        server.createContext("/small", exchange -> respond(exchange, small));
+        server.createContext("/records", exchange -> {
+            final String query = exchange.getRequestURI().getQuery();
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=3600");
+            respond(exchange, records.computeIfAbsent(query,
+                    q -> records(Integer.parseInt(q.replace("count=", ""))).getBytes(StandardCharsets.UTF_8)));
+        });
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public static String records(int count) {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            json.append(String.format("%s{\"id\": %d, \"name\": \"record %d\"}", i > 0 ? "," : "", i, i));
+        }
+        return json.append(']').toString();
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -1,35 +1,66 @@
 package com.alexwyler.jurl;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.type.CollectionType;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
-import org.apache.http.annotation.Contract;
-import org.apache.http.annotation.ThreadingBehavior;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.*;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.DefaultRedirectStrategy;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 
-import java.io.IOException;
+import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by alexwyler on 2/12/16.
@@ -59,6 +90,30 @@ public class Jurl {
         Jurl.backgroundExecutor = backgroundExecutor;
     }
 
+    /**
+     * Runs {@link #goAsync()} on a new virtual thread per request, when the JVM supports them (Java 21 and later).
+     * Otherwise this returns false and {@link #backgroundExecutor} is left as it is.
+     */
+    public static boolean useVirtualThreads() {
+        if (!JurlExecutors.isVirtualThreadSupported()) {
+            return false;
+        }
+        setBackgroundExecutor(JurlExecutors.newVirtualThreadPerTaskExecutor());
+        return true;
+    }
+
+    public static JurlEngine defaultEngine = new JurlEngine();
+
+    public static void setDefaultEngine(JurlEngine defaultEngine) {
+        Jurl.defaultEngine = defaultEngine;
+    }
+
+    public static boolean defaultNonBlocking = false;
+
+    public static void setDefaultNonBlocking(boolean defaultNonBlocking) {
+        Jurl.defaultNonBlocking = defaultNonBlocking;
+    }
+
     public static void setDefaultObjectMapper(ObjectMapper defaultObjectMapper) {
         Jurl.DEFAULT_OBJECT_MAPPER = defaultObjectMapper;
     }
@@ -68,20 +123,63 @@ public class Jurl {
     String method = GET;
     URL url = null;
     List<NameValuePair> parameters = new ArrayList<>();
-    List<NameValuePair> requestHeaders = new ArrayList<>();
-    List<NameValuePair> responseHeaders = new ArrayList<>();
+    JurlHeaders requestHeaders = new JurlHeaders();
+    JurlHeaders responseHeaders = null;
     List<NameValuePair> requestCookies = new ArrayList<>();
+    String cookieString = null; // a template's, kept only while requestCookies is still the template's own list
+    JurlCookieJar cookieJar = null;
     List<HttpCookie> responseCookies = new ArrayList<>();
     String requestBody = EMPTY;
+    JurlRequestBody requestContent = null;
     String responseBody = null;
+    byte[] responseBytes = null;
+    Charset responseCharset = HTTP.DEF_CONTENT_CHARSET;
+    InputStream responseStream = null;
+    boolean responseStreamTaken = false;
+    boolean streamResponse = false;
+    boolean acceptEncoding = true;
+    long compressRequestsAbove = -1; // bytes, -1 to never compress
+    JurlContentCoding.CountingInputStream responseWireCounter = null;
+    JurlContentCoding.CountingInputStream responseDecodedCounter = null;
+    JurlContentCoding.GzipEntity requestGzipEntity = null;
+    JurlContentCoding.CountingEntity requestCountingEntity = null; // a body of unknown length, not compressed
+    long requestLength = -1;
+    JurlCache cache = null;
+    JurlCache.Entry cacheCandidate = null;
+    long cacheRequestTime;
+    boolean responseFromCache = false;
+    boolean coalesce = false;
+    boolean responseShared = false;
+    String responseReason = null;
+    String responseProtocol = null;
+    JsonNode responseTree = null;
+    Map<JavaType, Object> responseJsonValues = null;
+    Map<JavaType, Object> responseXmlValues = null;
     int responseCode;
-    long timeout = TimeUnit.SECONDS.toMillis(60); // ms
+    long timeout = TimeUnit.SECONDS.toMillis(60); // ms, deadline for the whole request, 0 for none
+    long connectTimeout = -1; // ms, per attempt, -1 to be bounded only by the deadline
+    long leaseTimeout = -1; // ms, per attempt, -1 to be bounded only by the deadline
+    long readTimeout = -1; // ms, per attempt, -1 to be bounded only by the deadline
     int maxAttempts = 1;
     long timeBetweenAttempts = 0; // ms
+    JurlRetryPolicy retryPolicy = null;
+    JurlRetryBudget retryBudget = null;
+    long lastRetryDelay = 0; // ms
+    JurlCircuitBreaker circuitBreaker = null;
+    JurlBulkhead bulkhead = null;
+    JurlRateLimiter rateLimiter = null;
+    JurlHedgePolicy hedgePolicy = null;
     boolean throwOnNon200 = false;
     boolean followRedirects = true;
     ObjectMapper jacksonObjectMapper = DEFAULT_OBJECT_MAPPER;
     XmlMapper jacksonXmlMapper = DEFAULT_XML_MAPPER;
+    JurlEngine engine = null;
+    boolean nonBlocking = defaultNonBlocking;
+    List<JurlListener> listeners = null;
+    JurlMetrics metrics = null;
+    JurlTimings attemptTimings = null;
+    int attemptCount;
+    long goStartNanos;
 
     /**
      * Returns whether this request type is expected to send a resource in the body.  Namely, if it is PUT, POST, or PATCH.
@@ -95,16 +193,182 @@ public class Jurl {
         return this;
     }
 
+    /**
+     * Fixed delay in ms between attempts, used when no {@link #retryPolicy(JurlRetryPolicy)} is set.
+     */
     public Jurl timeBetweenAttempts(long timeBetweenAttempts) {
         this.timeBetweenAttempts = timeBetweenAttempts;
         return this;
     }
 
+    /**
+     * Decides which failed attempts are retried and how long to wait first, up to {@link #maxAttempts(int)}.  By
+     * default 5xx responses and exceptions are retried after {@link #timeBetweenAttempts(long)}.
+     */
+    public Jurl retryPolicy(JurlRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Fails attempts fast with {@link JurlCircuitOpenException}, without sending them, while {@code circuitBreaker}
+     * has the circuit for this request open.  Every attempt's outcome is recorded with it.
+     */
+    public Jurl circuitBreaker(JurlCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Waits for a slot in {@code bulkhead}, shared with other requests, before sending each attempt, and fails with
+     * {@link JurlBulkheadFullException} when none comes free in time.
+     */
+    public Jurl bulkhead(JurlBulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+        return this;
+    }
+
+    /**
+     * Takes a permit from {@code rateLimiter}, shared with other requests, before sending each attempt, waiting for
+     * one if need be, and fails with {@link JurlRateLimitedException} when none comes free in time.  The permit is
+     * taken once the attempt has its {@link #bulkhead(JurlBulkhead)} slot, if any.  Responses adjust the limit from
+     * their rate limit headers.
+     */
+    public Jurl rateLimiter(JurlRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Sends a second copy of each attempt that is slow to respond, as {@code hedgePolicy} decides, and takes the first
+     * response.  Only applies to GET, PUT and DELETE requests whose response is not streamed; the request runs on the
+     * engine's non-blocking client, even from {@link #go()}.
+     */
+    public Jurl hedge(JurlHedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    /**
+     * Draws every retry from {@code retryBudget}, shared with other requests, and stops retrying when it runs out.
+     */
+    public Jurl retryBudget(JurlRetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+        return this;
+    }
+
     public Jurl throwOnNon200(boolean throwOnNon200) {
         this.throwOnNon200 = throwOnNon200;
         return this;
     }
 
+    /**
+     * Runs this request on the given engine instead of {@link #defaultEngine}.
+     */
+    public Jurl engine(JurlEngine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Tells {@code listener} how this request went, along with any listeners on its engine.
+     */
+    public Jurl listener(JurlListener listener) {
+        if (listeners == null) {
+            listeners = new ArrayList<>();
+        }
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Timings, size and outcome of the last {@link #go()}, or null before it has finished.
+     */
+    public JurlMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Whether {@link #goAsync()} runs on the engine's non-blocking client rather than on {@link #backgroundExecutor}.
+     */
+    public Jurl nonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+        return this;
+    }
+
+    /**
+     * Leaves the response body on the connection instead of reading it into memory during {@link #go()}.  Read it with
+     * {@link #getResponseStream()}, {@link #getResponseChannel()} or {@link #goStreaming(JurlResponseConsumer)}; the
+     * connection returns to the pool when the stream is closed.  {@code getResponseJson*} accessors deserialize
+     * straight from the stream.
+     */
+    public Jurl streamResponse(boolean streamResponse) {
+        this.streamResponse = streamResponse;
+        return this;
+    }
+
+    /**
+     * Whether to ask for a compressed response with {@code Accept-Encoding} and decompress it as it is read.  gzip and
+     * deflate are always understood, and brotli when {@code org.brotli:dec} is on the classpath.  On by default; a
+     * response body in an encoding that was not asked for is left as it is.
+     */
+    public Jurl acceptEncoding(boolean acceptEncoding) {
+        this.acceptEncoding = acceptEncoding;
+        return this;
+    }
+
+    /**
+     * Answers GET requests from {@code cache} while they are fresh, revalidates them once stale, and stores cacheable
+     * responses.  Without a cache every request goes to the network with {@code Cache-Control: no-cache}.
+     */
+    public Jurl cache(JurlCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Whether the response came from the {@link #cache(JurlCache)}, either fresh or confirmed by a 304.
+     */
+    public boolean isResponseFromCache() {
+        assertGone();
+        return responseFromCache;
+    }
+
+    /**
+     * Lets concurrent identical GETs on the same engine share one network call: the first caller sends the request and
+     * every caller that arrives while it is in flight receives a copy of its response.  Requests are identical when
+     * their URL with parameters, headers and cookies match.  The first caller's timeouts and retries apply to the
+     * shared call, and if it fails, every caller waiting on it fails with the same exception.  Streamed responses are
+     * never shared.
+     */
+    public Jurl coalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+        return this;
+    }
+
+    /**
+     * Whether the response was received by another, identical request in flight at the same time.  See
+     * {@link #coalesce(boolean)}.
+     */
+    public boolean isResponseShared() {
+        assertGone();
+        return responseShared;
+    }
+
+    /**
+     * Gzips request bodies of at least {@code threshold} bytes, and those whose length is not known up front such as
+     * a streamed {@link #bodyJson(Object, boolean)}.  The server must accept {@code Content-Encoding: gzip}.  -1, the
+     * default, never compresses.
+     */
+    public Jurl compressRequestsAbove(long threshold) {
+        this.compressRequestsAbove = threshold;
+        return this;
+    }
+
+    public JurlEngine getEngine() {
+        return engine != null ? engine : defaultEngine;
+    }
+
     public Jurl url(String urlStr) {
         try {
             return this.url(new URL(urlStr));
@@ -184,12 +448,22 @@ public class Jurl {
     }
 
     public Jurl header(String key, String value) {
-        requestHeaders.add(new BasicNameValuePair(key, value));
+        requestHeaders.add(key, value);
         return this;
     }
 
     public Jurl cookie(String key, String value) {
-        requestCookies.add(new BasicNameValuePair(key, value));
+        getMutableCookies().add(new BasicNameValuePair(key, value));
+        return this;
+    }
+
+    /**
+     * Sends the cookies in {@code cookieJar} that apply to this request, along with any set with
+     * {@link #cookie(String, String)}, and stores the cookies the response sets in it.  Both happen at every hop of a
+     * redirect, for the hop's own URL.
+     */
+    public Jurl cookieJar(JurlCookieJar cookieJar) {
+        this.cookieJar = cookieJar;
         return this;
     }
 
@@ -198,7 +472,19 @@ public class Jurl {
     }
 
     public List<NameValuePair> getRequestCookieList() {
-        return this.requestCookies;
+        return getMutableCookies();
+    }
+
+    /**
+     * The cookies, as a list that can be changed.  A request stamped from a {@link JurlTemplate} shares the template's
+     * unmodifiable list and cookie string until the first change, which copies the list and drops the string.
+     */
+    private List<NameValuePair> getMutableCookies() {
+        if (cookieString != null) {
+            requestCookies = new ArrayList<>(requestCookies);
+            cookieString = null;
+        }
+        return requestCookies;
     }
 
     public List<String> getRequestCookies(String cookieName) {
@@ -216,27 +502,27 @@ public class Jurl {
                 .orElse(null);
     }
 
+    /**
+     * The request headers by name, ignoring case, as a read-only view.
+     */
     public Map<String, List<String>> getRequestHeaders() {
-        return valuePairToMap(requestHeaders);
+        return requestHeaders.asMap();
     }
 
+    /**
+     * The request body as text.  Byte bodies are decoded as UTF-8, and file and stream bodies, which are never held in
+     * memory, return null.
+     */
     public String getRequestBody() {
-        return requestBody;
+        return requestContent != null ? requestContent.asString() : requestBody;
     }
 
     public List<String> getRequestHeaders(String header) {
-        return requestHeaders.stream()
-                .filter((pair) -> pair.getName().equals(header))
-                .map(NameValuePair::getValue)
-                .collect(Collectors.toList());
+        return requestHeaders.getAll(header);
     }
 
     public String getRequestHeader(String header) {
-        return requestHeaders.stream()
-                .filter((pair) -> pair.getName().equals(header))
-                .findFirst()
-                .map(NameValuePair::getValue)
-                .orElseGet(null);
+        return requestHeaders.getFirst(header);
     }
 
     public ObjectMapper getObjectMapper() {
@@ -251,31 +537,112 @@ public class Jurl {
         return header("Content-Type", contentType);
     }
 
+    /**
+     * Deadline in ms for the whole request: every attempt and the pauses between them.  A request still in flight at the
+     * deadline is aborted and {@link JurlDeadlineExceededException} is thrown.  0 disables the deadline.
+     */
     public Jurl timeout(long timeout) {
         this.timeout = timeout;
         return this;
     }
 
+    /**
+     * Time in ms allowed to establish a connection, per attempt.  Exceeding it throws
+     * {@link JurlConnectTimeoutException} once attempts are exhausted.
+     */
+    public Jurl connectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Time in ms allowed to wait for a connection from the engine's pool, per attempt.  Exceeding it throws
+     * {@link JurlLeaseTimeoutException} once attempts are exhausted.
+     */
+    public Jurl leaseTimeout(long leaseTimeout) {
+        this.leaseTimeout = leaseTimeout;
+        return this;
+    }
+
+    /**
+     * Maximum time in ms between two packets of the response, per attempt.  Exceeding it throws
+     * {@link JurlReadTimeoutException} once attempts are exhausted.
+     */
+    public Jurl readTimeout(long readTimeout) {
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
     public Jurl body(String body) {
         this.requestBody = body;
+        this.requestContent = null;
+        return this;
+    }
+
+    /**
+     * Sends {@code body} as is.  The array is not copied, so it must not change until the request completes.
+     */
+    public Jurl body(byte[] body) {
+        return body(new JurlRequestBody.BytesBody(body));
+    }
+
+    /**
+     * Sends the remaining bytes of {@code body} without copying them; heap and direct buffers are both written as they
+     * are.  The buffer's position and limit are not changed.
+     */
+    public Jurl body(ByteBuffer body) {
+        return body(new JurlRequestBody.BufferBody(body));
+    }
+
+    /**
+     * Sends the file at {@code body}, read through a {@link java.nio.channels.FileChannel} as each attempt is sent
+     * rather than loaded into memory.
+     */
+    public Jurl body(Path body) {
+        return body(new JurlRequestBody.FileBody(body));
+    }
+
+    /**
+     * Sends {@code length} bytes read from {@code body}, or all of it with chunked transfer encoding when
+     * {@code length} is -1.  A stream can only be read once, so a request with a stream body is never retried.
+     */
+    public Jurl body(InputStream body, long length) {
+        return body(new JurlRequestBody.StreamBody(body, length));
+    }
+
+    private Jurl body(JurlRequestBody body) {
+        this.requestBody = null;
+        this.requestContent = body;
         return this;
     }
 
+    /**
+     * Sends {@code object} serialized by the default object mapper.  It is serialized once, to bytes rather than a
+     * String, and sent with a {@code Content-Length}; retries and {@link #getRequestBody()} reuse the same bytes.
+     */
     public Jurl bodyJson(Object object) {
+        return bodyJson(object, false);
+    }
+
+    /**
+     * Like {@link #bodyJson(Object)}, but when {@code stream} is set the object is written straight to the connection
+     * as the request is sent, with chunked transfer encoding, so a large body is never held in memory.  The server
+     * must accept chunked requests.
+     */
+    public Jurl bodyJson(Object object, boolean stream) {
         header("Content-Type", "application/json");
-        try {
-            body(DEFAULT_OBJECT_MAPPER.writeValueAsString(object));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
-        }
-        return this;
+        return body(new JurlRequestBody.JsonBody(DEFAULT_OBJECT_MAPPER, object, stream));
     }
 
     public URL getUrlWithParams() {
         String urlWithParamsStr = this.url.toString();
         final String query = this.url.getQuery();
         if ((query == null || query.isEmpty()) &&
-                GET.equals(method) || (requestBody != null && !requestBody.isEmpty())) {
+                GET.equals(method) || hasRequestBody()) {
             String queryString = getQueryString();
             if (!queryString.isEmpty()) {
                 urlWithParamsStr += '?' + queryString;
@@ -297,6 +664,13 @@ public class Jurl {
         }
     }
 
+    private boolean hasRequestBody() {
+        if (requestContent != null) {
+            return requestContent.length() != 0;
+        }
+        return requestBody != null && !requestBody.isEmpty();
+    }
+
     protected String getEffectiveRequestBody() {
         if (requestBody == null || (requestBody.isEmpty() && !parameters.isEmpty())) {
             return getQueryString();
@@ -310,40 +684,33 @@ public class Jurl {
     }
 
     private void assertGone() {
-        if (!gone) {
+        // a retry policy reads the response of an attempt before go() has finished
+        if (!gone && responseHeaders == null) {
             throw new RuntimeException("Must call go() first.");
         }
     }
 
+    /**
+     * The response bound to {@code clazz}.  Each type is bound once and kept, so every caller asking for the same type
+     * shares one instance: changing it changes what later calls return.  See {@link #getResponseJsonTree()} for the
+     * cost of asking for more than one type.
+     */
     public <S> S getResponseJsonObject(Class<S> clazz) {
         assertGone();
         if (clazz == null) {
             return null;
         }
-        try {
-            return jacksonObjectMapper.readValue(responseBody, clazz);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return getResponseJsonValue(jacksonObjectMapper.constructType(clazz));
     }
 
     public Map<String, Object> getResponseJsonMap() {
-        assertGone();
-        try {
-            return jacksonObjectMapper.readValue(responseBody, new TypeReference<Map<String, Object>>() {
-            });
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return getResponseJsonObject(new TypeReference<Map<String, Object>>() {
+        });
     }
 
     public <S> S getResponseJsonObject(TypeReference<S> type) {
         assertGone();
-        try {
-            return jacksonObjectMapper.readValue(responseBody, type);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return getResponseJsonValue(jacksonObjectMapper.getTypeFactory().constructType(type));
     }
 
     public <S> List<S> getResponseJsonList(Class<S> clazz) {
@@ -352,92 +719,340 @@ public class Jurl {
             return null;
         }
         CollectionType listType = jacksonObjectMapper.getTypeFactory().constructCollectionType(List.class, clazz);
-        try {
-            return jacksonObjectMapper.readValue(responseBody, listType);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return getResponseJsonValue(listType);
     }
 
+    @SuppressWarnings("unchecked")
     public <S> S getResponseXmlObject(Class<S> clazz) {
         assertGone();
         if (clazz == null) {
             return null;
         }
-        try {
-            return jacksonXmlMapper.readValue(responseBody, clazz);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        final JavaType type = jacksonXmlMapper.constructType(clazz);
+        if (responseXmlValues == null) {
+            responseXmlValues = new HashMap<>();
+        } else if (responseXmlValues.containsKey(type)) {
+            return (S) responseXmlValues.get(type);
         }
+        final long start = System.nanoTime();
+        S value = readResponseValue(jacksonXmlMapper, type);
+        responseXmlValues.put(type, value);
+        reportDeserialization(System.nanoTime() - start);
+        return value;
     }
 
-    public String getResponseBody() {
-        assertGone();
-        return responseBody;
-    }
-
-    public List<HttpCookie> getResponseCookies() {
+    /**
+     * The response parsed into a JSON tree.  The tree is parsed once and kept; later {@code getResponseJson*} calls
+     * convert from it instead of parsing the body again.
+     * <p>
+     * The first type asked for with {@code getResponseJson*} is bound straight from the body, with no tree.  Asking for
+     * a second type then parses the body a second time, into this tree, and that type and every later one are bound
+     * from the tree.  A caller that knows it wants several types can call this first so the body is parsed only once.
+     * Like the bound values, the tree is shared by every caller and must not be modified.
+     */
+    public JsonNode getResponseJsonTree() {
         assertGone();
-        return responseCookies;
+        if (responseTree == null) {
+            try (JsonParser parser = createResponseParser(jacksonObjectMapper)) {
+                responseTree = jacksonObjectMapper.readTree(parser);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return responseTree;
     }
 
-    public List<HttpCookie> getResponseCookies(String cookieName) {
-        assertGone();
-        List<HttpCookie> matched = new ArrayList<>();
-        for (HttpCookie cookie : responseCookies) {
-            if (cookie.getName().equals(cookieName)) {
-                matched.add(cookie);
+    /**
+     * Parsed responses are memoized by target type, so repeated calls return the same, shared instance.  The first type
+     * is bound straight from the body, which is the cheapest path when there is only one.  A second type costs a
+     * second parse of the body, into the tree, and every type after the first is bound from that tree.
+     */
+    @SuppressWarnings("unchecked")
+    private <S> S getResponseJsonValue(JavaType type) {
+        if (responseJsonValues == null) {
+            responseJsonValues = new HashMap<>();
+        } else if (responseJsonValues.containsKey(type)) {
+            return (S) responseJsonValues.get(type);
+        }
+        final long start = System.nanoTime();
+        S value;
+        final JsonNode tree = responseTree == null && responseJsonValues.isEmpty() ? null : getResponseJsonTree();
+        if (tree == null) {
+            value = readResponseValue(jacksonObjectMapper, type);
+        } else {
+            try {
+                value = jacksonObjectMapper.readValue(jacksonObjectMapper.treeAsTokens(tree), type);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
-        return matched;
+        responseJsonValues.put(type, value);
+        reportDeserialization(System.nanoTime() - start);
+        return value;
     }
 
-    public HttpCookie getResponseCookie(String cookieName) {
-        List<HttpCookie> matched = getResponseCookies(cookieName);
-        return matched.isEmpty() ? null : matched.get(0);
+    /**
+     * Iterates over the elements of a top-level JSON array response without materializing the whole list.
+     *
+     * @see #getResponseJsonIterator(Class, String)
+     */
+    public <S> Iterator<S> getResponseJsonIterator(Class<S> clazz) {
+        return getResponseJsonIterator(clazz, null);
     }
 
-    public Map<String, List<String>> getResponseHeaders() {
-        assertGone();
-        return valuePairToMap(responseHeaders);
+    /**
+     * Iterates over the elements of the JSON array at {@code jsonPointer} (for example {@code /data/items}), binding one
+     * element at a time.  Combined with {@link #streamResponse(boolean)}, memory stays bounded by a single element.
+     * The response is released once the iterator is exhausted; use {@link #getResponseJsonStream(Class, String)} with
+     * try-with-resources to stop early.
+     */
+    public <S> Iterator<S> getResponseJsonIterator(Class<S> clazz, String jsonPointer) {
+        return openJsonArrayIterator(clazz, jsonPointer);
     }
 
-    public List<String> getResponseHeaders(String header) {
-        assertGone();
-        return responseHeaders.stream()
-                .filter((pair) -> pair.getName().equals(header))
-                .map(NameValuePair::getValue)
-                .collect(Collectors.toList());
+    public <S> Stream<S> getResponseJsonStream(Class<S> clazz) {
+        return getResponseJsonStream(clazz, null);
     }
 
-    public String getResponseHeader(String header) {
-        assertGone();
-        return responseHeaders.stream()
-                .filter((pair) -> pair.getName().equals(header))
-                .findFirst()
-                .map(NameValuePair::getValue)
-                .orElseGet(null);
+    /**
+     * A {@link Stream} over the elements of the JSON array at {@code jsonPointer}.  Closing the stream releases the
+     * response.
+     *
+     * @see #getResponseJsonIterator(Class, String)
+     */
+    public <S> Stream<S> getResponseJsonStream(Class<S> clazz, String jsonPointer) {
+        JurlJsonArrayIterator<S> iterator = openJsonArrayIterator(clazz, jsonPointer);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+                .onClose(iterator::close);
     }
 
-    public int getResponseCode() {
+    private <S> JurlJsonArrayIterator<S> openJsonArrayIterator(Class<S> clazz, String jsonPointer) {
         assertGone();
-        return responseCode;
+        try {
+            return new JurlJsonArrayIterator<>(createResponseParser(jacksonObjectMapper), jacksonObjectMapper,
+                    jacksonObjectMapper.constructType(clazz), jsonPointer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    public String toCurl() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("curl");
-
-        sb.append(" -X ");
-        sb.append(getMethod());
-
-        if (followRedirects) {
-            sb.append(" -L");
+    /**
+     * A parser over the response body that reads from the connection when streaming, and from the buffered bytes
+     * otherwise.  Closing the parser closes the response stream.
+     */
+    private JsonParser createResponseParser(ObjectMapper mapper) throws IOException {
+        final JsonFactory factory = mapper.getFactory();
+        if (responseStream != null) {
+            InputStream in = takeResponseStream();
+            if (StandardCharsets.UTF_8.equals(responseCharset)) {
+                return factory.createParser(in);
+            }
+            return factory.createParser(new InputStreamReader(in, responseCharset));
+        } else if (responseBytes != null && StandardCharsets.UTF_8.equals(responseCharset)) {
+            return factory.createParser(responseBytes);
+        } else if (responseBytes != null) {
+            return factory.createParser(new InputStreamReader(new ByteArrayInputStream(responseBytes), responseCharset));
         }
+        assertResponseStreamNotTaken();
+        return factory.createParser(responseBody == null ? EMPTY : responseBody);
+    }
 
-        if (!requestCookies.isEmpty()) {
+    /**
+     * Deserializes the response without decoding it to a String first: straight from the buffered bytes, or from the
+     * connection when streaming.
+     */
+    private <S> S readResponseValue(ObjectMapper mapper, JavaType type) {
+        try {
+            if (responseStream != null) {
+                try (InputStream in = takeResponseStream()) {
+                    if (StandardCharsets.UTF_8.equals(responseCharset)) {
+                        return mapper.readValue(in, type);
+                    }
+                    return mapper.readValue(new InputStreamReader(in, responseCharset), type);
+                }
+            } else if (responseBytes != null && StandardCharsets.UTF_8.equals(responseCharset)) {
+                return mapper.readValue(responseBytes, type);
+            } else if (responseBytes != null) {
+                return mapper.readValue(new InputStreamReader(new ByteArrayInputStream(responseBytes), responseCharset),
+                        type);
+            }
+            assertResponseStreamNotTaken();
+            return mapper.readValue(responseBody, type);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String getResponseBody() {
+        assertGone();
+        if (responseBody == null) {
+            if (responseStream != null) {
+                bufferResponseStream();
+            }
+            if (responseBytes != null) {
+                responseBody = new String(responseBytes, responseCharset);
+            } else {
+                assertResponseStreamNotTaken();
+            }
+        }
+        return responseBody;
+    }
+
+    /**
+     * The raw bytes of the response body, before any charset decoding.
+     */
+    public byte[] getResponseBytes() {
+        assertGone();
+        if (responseStream != null) {
+            bufferResponseStream();
+        }
+        if (responseBytes == null) {
+            assertResponseStreamNotTaken();
+        }
+        return responseBytes;
+    }
+
+    /**
+     * The response body as a stream.  When {@link #streamResponse(boolean)} is set this reads from the connection, can
+     * only be taken once, and must be closed to release the connection.  Otherwise it reads the buffered body.
+     */
+    public InputStream getResponseStream() {
+        assertGone();
+        if (responseStream != null) {
+            return takeResponseStream();
+        } else if (responseBytes != null) {
+            return new ByteArrayInputStream(responseBytes);
+        } else if (responseBody != null) {
+            return new ByteArrayInputStream(responseBody.getBytes(responseCharset));
+        }
+        assertResponseStreamNotTaken();
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    public ReadableByteChannel getResponseChannel() {
+        return Channels.newChannel(getResponseStream());
+    }
+
+    /**
+     * Sends this request with {@link #streamResponse(boolean)} set and hands the body to {@code consumer}.  The stream
+     * is closed, and the connection released, when the consumer returns.
+     */
+    public Jurl goStreaming(JurlResponseConsumer consumer) {
+        streamResponse(true).go();
+        try (InputStream in = getResponseStream()) {
+            consumer.accept(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    private InputStream takeResponseStream() {
+        InputStream stream = responseStream;
+        responseStream = null;
+        responseStreamTaken = stream != null;
+        return stream;
+    }
+
+    private void assertResponseStreamNotTaken() {
+        if (responseStreamTaken) {
+            throw new IllegalStateException("The response stream has already been consumed.");
+        }
+    }
+
+    private void bufferResponseStream() {
+        try (InputStream in = takeResponseStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            responseBytes = out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void discardResponseStream() {
+        InputStream stream = takeResponseStream();
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // Silently close
+            }
+        }
+    }
+
+    public List<HttpCookie> getResponseCookies() {
+        assertGone();
+        return responseCookies;
+    }
+
+    public List<HttpCookie> getResponseCookies(String cookieName) {
+        assertGone();
+        List<HttpCookie> matched = new ArrayList<>();
+        for (HttpCookie cookie : responseCookies) {
+            if (cookie.getName().equals(cookieName)) {
+                matched.add(cookie);
+            }
+        }
+        return matched;
+    }
+
+    public HttpCookie getResponseCookie(String cookieName) {
+        List<HttpCookie> matched = getResponseCookies(cookieName);
+        return matched.isEmpty() ? null : matched.get(0);
+    }
+
+    /**
+     * The response headers by name, ignoring case, as a read-only view.
+     */
+    public Map<String, List<String>> getResponseHeaders() {
+        assertGone();
+        return responseHeaders.asMap();
+    }
+
+    public List<String> getResponseHeaders(String header) {
+        assertGone();
+        return responseHeaders.getAll(header);
+    }
+
+    public String getResponseHeader(String header) {
+        assertGone();
+        return responseHeaders.getFirst(header);
+    }
+
+    public int getResponseCode() {
+        assertGone();
+        return responseCode;
+    }
+
+    /**
+     * The protocol the response came over, such as {@code HTTP/1.1}, or {@code HTTP/2.0} on an
+     * {@link JurlEngine#http2(boolean)} engine when the server speaks it.
+     */
+    public String getResponseProtocol() {
+        assertGone();
+        return responseProtocol;
+    }
+
+    public String toCurl() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("curl");
+
+        sb.append(" -X ");
+        sb.append(getMethod());
+
+        if (followRedirects) {
+            sb.append(" -L");
+        }
+
+        final String cookieHeader = getCookieHeader();
+        if (cookieHeader != null) {
             sb.append(" --cookie ");
-            sb.append(String.format("\"%s\"", getCookieString()));
+            sb.append(String.format("\"%s\"", cookieHeader));
         }
 
         Map<String, List<String>> headers = getRequestHeaders();
@@ -453,12 +1068,16 @@ public class Jurl {
         }
 
         if (maySendResource()) {
-            String body = getEffectiveRequestBody();
-            if (body != null && !body.equals(EMPTY)) {
-                sb.append(String.format(" --data '%s'", body.replaceAll("'", "\\'")));
+            if (requestContent != null) {
+                sb.append(requestContent.toCurl());
+            } else {
+                String body = getEffectiveRequestBody();
+                if (body != null && !body.equals(EMPTY)) {
+                    sb.append(String.format(" --data '%s'", body.replaceAll("'", "\\'")));
+                }
             }
 
-            if (getRequestBody() != null) {
+            if (requestContent != null || requestBody != null) {
                 sb.append(String.format(" '%s'", getUrlWithParams()));
             } else {
                 sb.append(String.format(" '%s'", getUrl()));
@@ -482,6 +1101,10 @@ public class Jurl {
     }
 
     protected String getCookieString() {
+        if (this.cookieString != null) {
+            return this.cookieString;
+        }
+        // not kept, as the list handed out by getRequestCookieList() may change at any time
         final StringBuilder cookieString = new StringBuilder();
         for (NameValuePair cookie : requestCookies) {
             cookieString.append(cookie.getName());
@@ -496,144 +1119,1442 @@ public class Jurl {
     }
 
     public Jurl go() {
+        if (isHedging()) {
+            return await(goNonBlocking());
+        }
+        startMetrics();
+        try {
+            goBlocking();
+        } catch (RuntimeException | Error e) {
+            reportMetrics(e);
+            throw e;
+        }
+        reportMetrics(null);
+        return this;
+    }
+
+    private Jurl goBlocking() {
         onBeforeGo();
-        for (int i = 1; i <= maxAttempts; i++) {
-            onBeforeAttempt();
+        responseShared = false;
+        if (serveFromCache()) {
+            return finishGo();
+        }
+        if (!isCoalescing()) {
+            execute();
+            return finishGo();
+        }
+        final String key = getCoalescingKey();
+        final Map<String, CompletableFuture<JurlResponseSnapshot>> flights = getEngine().getFlights();
+        final CompletableFuture<JurlResponseSnapshot> flight = new CompletableFuture<>();
+        final long deadline = getDeadline();
+        CompletableFuture<JurlResponseSnapshot> leader;
+        while ((leader = flights.putIfAbsent(key, flight)) != null) {
+            final JurlResponseSnapshot snapshot;
+            try {
+                snapshot = awaitFlight(leader, deadline);
+            } catch (RuntimeException e) {
+                if (!isLeaderOnlyFailure(e)) {
+                    throw e;
+                }
+                if (remainingMillis(deadline) <= 0) {
+                    throw new JurlDeadlineExceededException(this, e);
+                }
+                // the request waited on was cancelled or timed out; take over from it
+                continue;
+            }
+            readSharedResponse(snapshot);
+            return finishGo();
+        }
+        try {
+            execute();
+        } catch (Throwable t) {
+            flights.remove(key, flight);
+            flight.completeExceptionally(t);
+            throw t;
+        }
+        flights.remove(key, flight);
+        flight.complete(getResponseSnapshot());
+        return finishGo();
+    }
 
-            final HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
-            if (followRedirects) {
-                httpClientBuilder.setRedirectStrategy(new FollowAllRedirectStrategy());
+    /**
+     * Sends {@code request} on the blocking client.  A server may close a kept-alive connection while it sits in the
+     * pool, and a request sent on it then fails without the server having seen it.  An idempotent request that fails
+     * that way is sent again on a fresh connection as part of the same attempt; the upstream still sees it once.
+     */
+    private CloseableHttpResponse send(CloseableHttpClient httpClient, HttpUriRequest request, long deadline)
+            throws IOException {
+        final HttpClientContext context = getRequestContext(remainingMillis(deadline));
+        try {
+            return httpClient.execute(request, context);
+        } catch (IOException e) {
+            if (!JurlTimings.isStaleConnection(context) || POST.equals(method) || PATCH.equals(method)
+                    || (requestContent != null && !requestContent.isRepeatable()) || remainingMillis(deadline) <= 0) {
+                throw e;
             }
-            final CloseableHttpClient httpClient = httpClientBuilder
-                    .build();
-            try {
-                final HttpUriRequest httpRequest = getRequest();
+            return httpClient.execute(request, getRequestContext(remainingMillis(deadline)));
+        }
+    }
 
-                for (NameValuePair header : requestHeaders) {
-                    httpRequest.addHeader(header.getName(), header.getValue());
+    /**
+     * Sends the request, retrying as configured, and reads the final response.
+     */
+    private void execute() {
+        final JurlEngine engine = getEngine();
+        final CloseableHttpClient httpClient = engine.getHttpClient();
+        final long deadline = getDeadline();
+        final int attempts = getAttemptLimit();
+        boolean responded = false;
+        startRetries();
+        for (int i = 1; i <= attempts; i++) {
+            onBeforeAttempt();
+            attemptCount++;
+            attemptTimings = new JurlTimings();
+            ScheduledFuture<?> deadlineAbort = null;
+            IOException error = null;
+            JurlBulkhead.Permit permit = null;
+            JurlCircuitBreaker.Circuit circuit = null;
+            long sentAt = 0;
+            try {
+                permit = bulkhead != null ? awaitPermit(deadline) : null;
+                if (rateLimiter != null) {
+                    // only once there is a slot to send in, so queueing in the bulkhead does not spend the rate
+                    awaitRateLimit(deadline);
                 }
-
-                if (!requestCookies.isEmpty()) {
-                    httpRequest.setHeader("Cookie", getCookieString());
+                final long remaining = remainingMillis(deadline);
+                if (remaining <= 0) {
+                    throw new JurlDeadlineExceededException(this, null);
                 }
-                httpRequest.setHeader("Accept", "application/json");
-                httpRequest.setHeader("Cache-Control", "no-cache");
 
-                if (httpRequest instanceof HttpEntityEnclosingRequest) {
-                    final HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) httpRequest;
-                    final StringEntity entity = new StringEntity(requestBody);
-                    entityRequest.setEntity(entity);
+                circuit = circuitBreaker != null ? circuitBreaker.acquire(this) : null;
+                final HttpUriRequest httpRequest = prepareRequest();
+                sentAt = System.nanoTime();
+                JurlTimings.CURRENT.set(attemptTimings);
+                if (deadline != Long.MAX_VALUE) {
+                    deadlineAbort = engine.getScheduler().schedule(httpRequest::abort, remaining, TimeUnit.MILLISECONDS);
                 }
-
-                final CloseableHttpResponse response = httpClient.execute(httpRequest);
-                responseCode = response.getStatusLine().getStatusCode();
-
-                for (Header header : response.getAllHeaders()) {
-                    responseHeaders.add(new BasicNameValuePair(header.getName(), header.getValue()));
-
-                    if (header.getName().equalsIgnoreCase("Set-Cookie")) {
-                        responseCookies.addAll(HttpCookie.parse(header.getValue()));
+                final CloseableHttpResponse response = engine.isHttp2()
+                        ? engine.getHttp2Client().execute(httpRequest, cookieJar, followRedirects,
+                                capTimeout(readTimeout, remaining), streamResponse)
+                        : send(httpClient, httpRequest, deadline);
+                try {
+                    // consuming the entity releases the connection back to the engine's pool
+                    readResponse(response, permit == null ? response : releasing(response, permit));
+                } finally {
+                    if (responseStream == null) {
+                        response.close();
                     }
                 }
-
-                HttpEntity responseEntity = response.getEntity();
-                if (responseEntity != null) {
-                    responseBody = EntityUtils.toString(responseEntity);
+                final long elapsed = System.nanoTime() - sentAt;
+                if (permit != null) {
+                    permit.record(elapsed, isOverloaded());
                 }
-                response.close();
-                onAfterAttempt();
-
-                boolean retryable = responseCode >= 500 && responseCode < 600;
-                if (!retryable) {
-                    break;
+                if (circuit != null) {
+                    circuit.onResult(elapsed, isServerError());
+                    circuit = null;
                 }
+                responded = true;
+                onAfterAttempt();
             } catch (IOException e) {
-                if (i == maxAttempts) {
-                    throw new RuntimeException(e);
+                if (sentAt != 0) {
+                    final long elapsed = System.nanoTime() - sentAt;
+                    if (permit != null) {
+                        permit.record(elapsed, true);
+                    }
+                    if (circuit != null) {
+                        circuit.onResult(elapsed, true);
+                        circuit = null;
+                    }
+                }
+                if (remainingMillis(deadline) <= 0) {
+                    throw new JurlDeadlineExceededException(this, e);
                 }
+                error = e;
             } catch (URISyntaxException e) {
                 throw new RuntimeException(e);
             } finally {
-                try {
-                    httpClient.close();
-                } catch (IOException e) {
-                    // Silently close
+                JurlTimings.CURRENT.remove();
+                if (deadlineAbort != null) {
+                    deadlineAbort.cancel(false);
+                }
+                if (circuit != null) {
+                    // never reached the upstream, so it says nothing about its health
+                    circuit.onIgnored();
+                }
+                if (permit != null && responseStream == null) {
+                    // a streamed response keeps its slot until the stream is closed
+                    permit.release();
+                }
+            }
+            final long delay = i < attempts ? getRetryDelay(i, error) : -1;
+            if (delay < 0) {
+                if (error != null) {
+                    throw toTimeoutException(error);
+                }
+                break;
+            }
+            if (remainingMillis(deadline) <= delay) {
+                // no time left for another attempt; settle for the response we have, if any
+                if (responded) {
+                    break;
                 }
+                throw new JurlDeadlineExceededException(this, error);
             }
-            if (timeBetweenAttempts > 0) {
+            discardResponseStream();
+            if (delay > 0) {
                 try {
-                    Thread.sleep(timeBetweenAttempts);
+                    Thread.sleep(delay);
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
             }
         }
-        gone = true;
-        onAfterGo();
-        if ((responseCode < 200 || responseCode >= 300) && throwOnNon200) {
-            throw new JurlHttpStatusCodeException(this);
+    }
+
+    private boolean isServerError() {
+        return responseCode >= 500 && responseCode < 600;
+    }
+
+    private static boolean isOverloaded(int code) {
+        return code == 429 || code == 503;
+    }
+
+    private boolean isOverloaded() {
+        return isOverloaded(responseCode);
+    }
+
+    /**
+     * Takes a permit from {@link #rateLimiter}, returning how long in ns to wait before sending, or throws
+     * {@link JurlRateLimitedException} if that is longer than the limiter or the deadline allows.
+     */
+    private long reserveRateLimit(long deadline) {
+        final long maxWait = rateLimiter.getMaxWait();
+        final long remaining = remainingMillis(deadline);
+        return rateLimiter.reserve(this, maxWait < 0 ? remaining : Math.min(maxWait, remaining));
+    }
+
+    private void awaitRateLimit(long deadline) {
+        final long wait = reserveRateLimit(deadline);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
         }
-        return this;
     }
 
-    private HttpUriRequest getRequest() throws URISyntaxException {
-        final URI uri = builder.build();
-        HttpUriRequest request;
-        switch (method) {
-            case GET:
-                request = new HttpGet(uri);
-                break;
-            case POST:
-                request = new HttpPost(uri);
-                break;
-            case PATCH:
-                request = new HttpPatch(uri);
-                break;
-            case PUT:
-                request = new HttpPut(uri);
-                break;
-            case DELETE:
-                request = new HttpDelete(uri);
-                break;
-            default:
-                throw new RuntimeException("Unsupported HTTP Method: " + method);
+    /**
+     * Waits for a slot in {@link #bulkhead} for no longer than the deadline allows.
+     */
+    private JurlBulkhead.Permit awaitPermit(long deadline) {
+        final CompletableFuture<JurlBulkhead.Permit> permit = bulkhead.acquire(this);
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                return permit.get();
+            }
+            return permit.get(Math.max(0, remainingMillis(deadline)), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            cancelPermit(permit);
+            throw new JurlDeadlineExceededException(this, e);
+        } catch (InterruptedException e) {
+            cancelPermit(permit);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
         }
-        return request;
     }
 
-    public Future<Jurl> goAsync() {
-        return backgroundExecutor.submit(() -> this.go());
+    /**
+     * Gives up waiting for {@code permit}, releasing it if it was granted meanwhile.
+     */
+    private static void cancelPermit(CompletableFuture<JurlBulkhead.Permit> permit) {
+        if (!permit.cancel(false) && !permit.isCompletedExceptionally()) {
+            permit.join().release();
+        }
     }
 
-    public Jurl newWithCookies() {
-        Jurl jurl = new Jurl();
-        for (NameValuePair requestCookie : requestCookies) {
-            jurl.cookie(requestCookie.getName(), requestCookie.getValue());
+    private static Closeable releasing(Closeable response, JurlBulkhead.Permit permit) {
+        return () -> {
+            try {
+                response.close();
+            } finally {
+                permit.release();
+            }
+        };
+    }
+
+    /**
+     * The host and port this request goes to, which keys per-host limits such as {@link JurlCircuitBreaker}.
+     */
+    String getHostKey() {
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    private void startRetries() {
+        lastRetryDelay = 0;
+        if (retryBudget != null) {
+            retryBudget.recordRequest();
         }
+    }
 
-        for (HttpCookie cookie : responseCookies) {
-            jurl.cookie(cookie.getName(), cookie.getValue());
+    /**
+     * How long to wait before retrying attempt {@code attempt}, or -1 not to retry it.
+     */
+    private long getRetryDelay(int attempt, Exception error) {
+        final JurlRetryPolicy policy = retryPolicy != null ? retryPolicy : JurlRetryPolicy.fixed(timeBetweenAttempts);
+        final long delay = policy.retryDelay(this, attempt, lastRetryDelay, error);
+        if (delay < 0 || (retryBudget != null && !retryBudget.tryAcquireRetry())) {
+            return -1;
         }
-        return jurl;
+        lastRetryDelay = delay;
+        return delay;
     }
 
-    private Map<String, List<String>> valuePairToMap(List<NameValuePair> pairs) {
-        final HashMap<String, List<String>> map = new HashMap<>();
-        for (NameValuePair pair : pairs) {
-            final String name = pair.getName();
-            final String value = pair.getValue();
+    /**
+     * The first value of the header {@code name}, in any case, of the most recent response.
+     */
+    String getReceivedHeader(String name) {
+        return responseHeaders != null ? responseHeaders.getFirst(name) : null;
+    }
 
-            List<String> values = map.computeIfAbsent(name, k -> new ArrayList<>());
-            values.add(value);
-        }
-        return map;
+    private boolean isHedging() {
+        return hedgePolicy != null && (GET.equals(method) || PUT.equals(method) || DELETE.equals(method))
+                && !streamResponse && (requestContent == null || requestContent.isRepeatable());
     }
 
-    @Contract(threading = ThreadingBehavior.IMMUTABLE)
-    private static class FollowAllRedirectStrategy extends DefaultRedirectStrategy {
-        @Override
-        protected boolean isRedirectable(String method) {
-            return true;
+    private Jurl await(CompletableFuture<Jurl> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    private boolean isCoalescing() {
+        return coalesce && GET.equals(method) && !streamResponse;
+    }
+
+    /**
+     * What makes two requests interchangeable: method, URL with parameters, everything sent in headers, the cookie jar,
+     * and the flags that change what comes back.
+     */
+    private String getCoalescingKey() {
+        final StringBuilder key = new StringBuilder(method).append(' ').append(getUrlWithParams());
+        final String[] headers = new String[requestHeaders.size()];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = requestHeaders.getName(i).toLowerCase(Locale.ROOT) + ": " + requestHeaders.getValue(i);
+        }
+        Arrays.sort(headers);
+        for (String header : headers) {
+            key.append('\n').append(header);
+        }
+        final String cookieHeader = getCookieHeader();
+        if (cookieHeader != null) {
+            key.append("\ncookie: ").append(cookieHeader);
+        }
+        if (cookieJar != null) {
+            // the jar adds its own cookies as the request is sent, and keeps those the response sets
+            key.append("\ncookie-jar: ").append(cookieJar.getId());
+        }
+        return key.append("\naccept-encoding: ").append(acceptEncoding)
+                .append("\nfollow-redirects: ").append(followRedirects)
+                .append("\nthrow-on-non-200: ").append(throwOnNon200)
+                .toString();
+    }
+
+    /**
+     * Whether a coalesced request failed for reasons of its own, being cancelled or running out of time, rather than
+     * because of the upstream, so that the requests waiting on it should not fail with it.
+     */
+    private boolean isLeaderOnlyFailure(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t instanceof CancellationException
+                || (t instanceof JurlDeadlineExceededException && ((JurlTimeoutException) t).getJurlInstance() != this);
+    }
+
+    private JurlResponseSnapshot awaitFlight(CompletableFuture<JurlResponseSnapshot> flight, long deadline) {
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                return flight.get();
+            }
+            return flight.get(Math.max(0, remainingMillis(deadline)), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new JurlDeadlineExceededException(this, e);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+    }
+
+    private static RuntimeException propagate(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new RuntimeException(t);
+    }
+
+    private void readSharedResponse(JurlResponseSnapshot snapshot) {
+        try {
+            readResponseFrom(snapshot.toHttpResponse(), null);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        responseShared = true;
+    }
+
+    private JurlResponseSnapshot getResponseSnapshot() {
+        return new JurlResponseSnapshot(responseCode, responseReason, responseHeaders.toArray(), responseBytes);
+    }
+
+    /**
+     * {@link #maxAttempts}, unless the body cannot be sent twice.
+     */
+    private int getAttemptLimit() {
+        return requestContent != null && !requestContent.isRepeatable() ? 1 : maxAttempts;
+    }
+
+    private Jurl finishGo() {
+        gone = true;
+        onAfterGo();
+        if ((responseCode < 200 || responseCode >= 300) && throwOnNon200) {
+            if (responseStream != null) {
+                // error bodies are small; buffer it so the connection is not held by an exception nobody closes
+                bufferResponseStream();
+            }
+            throw new JurlHttpStatusCodeException(this);
+        }
+        return this;
+    }
+
+    /**
+     * The cookies from the {@link #cookieJar(JurlCookieJar)} for this request's URL, then those set on it, or null if
+     * there are none.
+     */
+    private String getCookieHeader() {
+        final String jarCookies = cookieJar != null ? cookieJar.getCookieHeader(getRequestUri()) : null;
+        if (requestCookies.isEmpty()) {
+            return jarCookies;
+        }
+        return jarCookies != null ? jarCookies + "; " + getCookieString() : getCookieString();
+    }
+
+    /**
+     * Lets what shares state across requests learn from a response read from the network.
+     */
+    private void onLiveResponse() {
+        if (rateLimiter != null) {
+            rateLimiter.onResponse(this);
+        }
+    }
+
+    private URI getRequestUri() {
+        try {
+            return builder.build();
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private HttpUriRequest prepareRequest() throws URISyntaxException, IOException {
+        final HttpUriRequest httpRequest = getRequest();
+
+        for (int i = 0; i < requestHeaders.size(); i++) {
+            httpRequest.addHeader(requestHeaders.getName(i), requestHeaders.getValue(i));
+        }
+
+        // the client adds the jar's cookies at each hop, so a redirect elsewhere is never sent them
+        if (!requestCookies.isEmpty()) {
+            httpRequest.setHeader("Cookie", getCookieString());
+        }
+        httpRequest.setHeader("Accept", "application/json");
+        if (cache == null) {
+            httpRequest.setHeader("Cache-Control", "no-cache");
+        } else {
+            cacheRequestTime = System.currentTimeMillis();
+            if (cacheCandidate != null) {
+                final String etag = cacheCandidate.getETag();
+                final String lastModified = cacheCandidate.getLastModified();
+                if (etag != null && !httpRequest.containsHeader("If-None-Match")) {
+                    httpRequest.setHeader("If-None-Match", etag);
+                }
+                if (lastModified != null && !httpRequest.containsHeader("If-Modified-Since")) {
+                    httpRequest.setHeader("If-Modified-Since", lastModified);
+                }
+            }
+        }
+        if (acceptEncoding && !httpRequest.containsHeader("Accept-Encoding")) {
+            httpRequest.setHeader("Accept-Encoding", JurlContentCoding.acceptEncoding());
+        }
+
+        requestGzipEntity = null;
+        requestCountingEntity = null;
+        requestLength = -1;
+        if (httpRequest instanceof HttpEntityEnclosingRequest) {
+            final HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) httpRequest;
+            HttpEntity entity = requestContent != null ? requestContent.toEntity() : new StringEntity(requestBody);
+            requestLength = entity.getContentLength();
+            // a body of unknown length, -1, is compressed whatever the threshold
+            if (compressRequestsAbove >= 0 && requestLength != 0
+                    && (requestLength < 0 || requestLength >= compressRequestsAbove)
+                    && entity.getContentEncoding() == null && !httpRequest.containsHeader("Content-Encoding")) {
+                requestGzipEntity = new JurlContentCoding.GzipEntity(entity);
+                entity = requestGzipEntity;
+            } else if (requestLength < 0) {
+                // counted as it is written, so metrics report what was actually sent
+                requestCountingEntity = new JurlContentCoding.CountingEntity(entity);
+                entity = requestCountingEntity;
+            }
+            entityRequest.setEntity(entity);
+        }
+        return httpRequest;
+    }
+
+    /**
+     * Reads status, headers and body from {@code response}.  When streaming, the body is left on the connection and
+     * {@code onClose} is closed along with the stream.  With a {@link #cache(JurlCache)}, a 304 is answered from the
+     * stored response and a fresh one is stored.
+     */
+    private void readResponse(HttpResponse response, Closeable onClose) throws IOException {
+        if (cache == null) {
+            readResponseFrom(response, onClose);
+            onLiveResponse();
+            return;
+        }
+        final String key = getCacheKey();
+        final int code = response.getStatusLine().getStatusCode();
+        if (code == HttpStatus.SC_NOT_MODIFIED && cacheCandidate != null) {
+            final JurlCache.Entry revalidated = cache.revalidated(key, cacheCandidate, response.getAllHeaders(),
+                    cacheRequestTime, System.currentTimeMillis());
+            EntityUtils.consume(response.getEntity());
+            readResponseFrom(revalidated.snapshot.toHttpResponse(), onClose);
+            responseFromCache = true;
+            return;
+        }
+        final Header[] headers = readResponseFrom(response, onClose);
+        onLiveResponse();
+        responseFromCache = false;
+        if (GET.equals(method)) {
+            cache.recordMiss();
+            if (responseStream == null && !getRequestCacheControl().containsKey("no-store")) {
+                cache.put(key, new JurlResponseSnapshot(code, response.getStatusLine().getReasonPhrase(), headers,
+                        responseBytes), this::getSentRequestHeader, cacheRequestTime, System.currentTimeMillis());
+            }
+        } else if (code < 400) {
+            // a change made through any other method makes what is stored for the URL out of date
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Serves a fresh response from the cache if there is one; otherwise remembers a stale one with validators so the
+     * request is sent conditionally.
+     */
+    private boolean serveFromCache() {
+        cacheCandidate = null;
+        responseFromCache = false;
+        if (cache == null || !GET.equals(method)) {
+            return false;
+        }
+        final Map<String, String> requestCacheControl = getRequestCacheControl();
+        if (requestCacheControl.containsKey("no-store")) {
+            return false;
+        }
+        final JurlCache.Entry entry = cache.get(getCacheKey(), this::getSentRequestHeader);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.isFresh(System.currentTimeMillis()) && !requestCacheControl.containsKey("no-cache")
+                && !"0".equals(requestCacheControl.get("max-age"))) {
+            try {
+                readResponseFrom(entry.snapshot.toHttpResponse(), null);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            cache.recordHit();
+            responseFromCache = true;
+            return true;
+        }
+        if (entry.hasValidators()) {
+            cacheCandidate = entry;
+        }
+        return false;
+    }
+
+    private String getCacheKey() {
+        try {
+            return builder.build().toString();
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Map<String, String> getRequestCacheControl() {
+        return JurlCache.cacheControl(requestHeaders.toArray());
+    }
+
+    /**
+     * The value {@code name} is sent with, including the headers {@link #prepareRequest()} sets, for matching a
+     * response's {@code Vary}.
+     */
+    private String getSentRequestHeader(String name) {
+        if (name.equalsIgnoreCase("Accept")) {
+            return "application/json";
+        } else if (name.equalsIgnoreCase("Cookie")) {
+            return getCookieHeader();
+        }
+        final List<String> values = requestHeaders.getAll(name);
+        if (!values.isEmpty()) {
+            return String.join(", ", values);
+        }
+        if (name.equalsIgnoreCase("Accept-Encoding") && acceptEncoding) {
+            return JurlContentCoding.acceptEncoding();
+        }
+        return null;
+    }
+
+    /**
+     * Reads status, headers and body from {@code response} into this instance, returning the headers as recorded.
+     */
+    private Header[] readResponseFrom(HttpResponse response, Closeable onClose) throws IOException {
+        responseCode = response.getStatusLine().getStatusCode();
+
+        final HttpEntity responseEntity = response.getEntity();
+        final Header contentEncoding = response.getFirstHeader("Content-Encoding");
+        final boolean decode = acceptEncoding && responseEntity != null && contentEncoding != null
+                && JurlContentCoding.canDecode(contentEncoding.getValue());
+
+        final Header[] all = response.getAllHeaders();
+        final JurlHeaders received = new JurlHeaders(all.length);
+        responseCookies = new ArrayList<>();
+        for (Header header : all) {
+            if (decode && (header.getName().equalsIgnoreCase("Content-Encoding")
+                    || header.getName().equalsIgnoreCase("Content-Length")
+                    || header.getName().equalsIgnoreCase("Content-MD5"))) {
+                // these describe the encoded body, which callers never see
+                continue;
+            }
+            received.add(header.getName(), header.getValue());
+
+            if (header.getName().equalsIgnoreCase("Set-Cookie")) {
+                responseCookies.addAll(HttpCookie.parse(header.getValue()));
+            }
+        }
+
+        responseBody = null;
+        responseBytes = null;
+        responseStream = null;
+        responseStreamTaken = false;
+        responseTree = null;
+        responseJsonValues = null;
+        responseXmlValues = null;
+        responseWireCounter = null;
+        responseDecodedCounter = null;
+        if (responseEntity != null) {
+            responseCharset = getCharset(responseEntity);
+            final InputStream content = responseEntity.getContent();
+            if (content != null) {
+                responseWireCounter = new JurlContentCoding.CountingInputStream(content);
+                responseDecodedCounter = decode
+                        ? new JurlContentCoding.CountingInputStream(
+                                JurlContentCoding.decode(contentEncoding.getValue(), responseWireCounter))
+                        : responseWireCounter;
+                if (streamResponse) {
+                    responseStream = new ResponseStream(responseDecodedCounter, onClose);
+                } else {
+                    final long start = System.nanoTime();
+                    responseBytes = readFully(responseDecodedCounter, responseEntity.getContentLength());
+                    if (attemptTimings != null && attemptTimings.get(JurlMetrics.Phase.BODY) < 0) {
+                        // the non-blocking client has timed reading it off the network already
+                        attemptTimings.add(JurlMetrics.Phase.BODY, System.nanoTime() - start);
+                    }
+                }
+            }
+        }
+        responseReason = response.getStatusLine().getReasonPhrase();
+        responseProtocol = response.getStatusLine().getProtocolVersion().toString();
+        responseHeaders = received;
+        return received.toArray();
+    }
+
+    private static byte[] readFully(InputStream in, long lengthHint) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    lengthHint > 0 && lengthHint < Integer.MAX_VALUE ? (int) lengthHint : 4096);
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Bytes of the response body received over the wire so far; all of it unless the response is being streamed.
+     */
+    public long getResponseCompressedLength() {
+        assertGone();
+        return responseWireCounter != null ? responseWireCounter.getCount() : 0;
+    }
+
+    /**
+     * Bytes of the response body after decompression, read so far.  The same as
+     * {@link #getResponseCompressedLength()} when the response was not compressed.
+     */
+    public long getResponseUncompressedLength() {
+        assertGone();
+        return responseDecodedCounter != null ? responseDecodedCounter.getCount() : 0;
+    }
+
+    /**
+     * Bytes of the request body sent over the wire by the last attempt, or -1 if not known.  A body whose length is
+     * not known up front is counted as it is written.
+     */
+    public long getRequestCompressedLength() {
+        if (requestGzipEntity != null) {
+            return requestGzipEntity.getCompressedLength();
+        }
+        return requestCountingEntity != null ? requestCountingEntity.getCount() : requestLength;
+    }
+
+    /**
+     * Bytes of the request body before compression in the last attempt, or -1 if not known.
+     */
+    public long getRequestUncompressedLength() {
+        if (requestGzipEntity != null) {
+            return requestGzipEntity.getUncompressedLength();
+        }
+        return requestCountingEntity != null ? requestCountingEntity.getCount() : requestLength;
+    }
+
+    /**
+     * The same charset {@link EntityUtils#toString(HttpEntity)} would decode with.
+     */
+    private static Charset getCharset(HttpEntity entity) throws UnsupportedEncodingException {
+        ContentType contentType;
+        try {
+            contentType = ContentType.get(entity);
+        } catch (UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(e.getMessage());
+        }
+        Charset charset = null;
+        if (contentType != null) {
+            charset = contentType.getCharset();
+            if (charset == null) {
+                final ContentType defaultContentType = ContentType.getByMimeType(contentType.getMimeType());
+                charset = defaultContentType != null ? defaultContentType.getCharset() : null;
+            }
+        }
+        return charset != null ? charset : HTTP.DEF_CONTENT_CHARSET;
+    }
+
+    private long getDeadline() {
+        return timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
+    }
+
+    private static long remainingMillis(long deadline) {
+        if (deadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    private RuntimeException toTimeoutException(Exception e) {
+        if (e instanceof ConnectionPoolTimeoutException || e instanceof TimeoutException) {
+            // the non-blocking pool reports lease timeouts with a plain TimeoutException
+            return new JurlLeaseTimeoutException(this, e);
+        } else if (e instanceof ConnectTimeoutException
+                || (e instanceof ConnectException && String.valueOf(e.getMessage()).startsWith("Timeout connecting"))) {
+            return new JurlConnectTimeoutException(this, e);
+        } else if (e instanceof SocketTimeoutException) {
+            return new JurlReadTimeoutException(this, e);
+        } else if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        return new RuntimeException(e);
+    }
+
+    /**
+     * A fresh context per attempt.  The engine's client is shared, so cookies set while following redirects are kept in
+     * a store scoped to this attempt rather than in the client, or in the {@link #cookieJar(JurlCookieJar)} if there is
+     * one.  Each per-attempt timeout is capped by the time left before the deadline.
+     */
+    protected HttpClientContext getRequestContext(long remaining) {
+        final HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(new BasicCookieStore());
+        if (cookieJar != null) {
+            context.setAttribute(JurlCookieJar.CONTEXT_ATTRIBUTE, cookieJar);
+        }
+        context.setRequestConfig(RequestConfig.custom()
+                .setCookieSpec(cookieJar != null ? CookieSpecs.IGNORE_COOKIES : null)
+                .setRedirectsEnabled(followRedirects)
+                .setConnectTimeout(capTimeout(connectTimeout, remaining))
+                .setConnectionRequestTimeout(capTimeout(leaseTimeout, remaining))
+                .setSocketTimeout(capTimeout(readTimeout, remaining))
+                .build());
+        return context;
+    }
+
+    private static int capTimeout(long timeout, long remaining) {
+        long capped = timeout <= 0 ? remaining : Math.min(timeout, remaining);
+        // 0 means "no timeout" to HttpClient, so never let a real limit round down to it
+        return capped == Long.MAX_VALUE ? 0 : (int) Math.max(1, Math.min(capped, Integer.MAX_VALUE));
+    }
+
+    private HttpUriRequest getRequest() throws URISyntaxException {
+        final URI uri = builder.build();
+        HttpUriRequest request;
+        switch (method) {
+            case GET:
+                request = new HttpGet(uri);
+                break;
+            case POST:
+                request = new HttpPost(uri);
+                break;
+            case PATCH:
+                request = new HttpPatch(uri);
+                break;
+            case PUT:
+                request = new HttpPut(uri);
+                break;
+            case DELETE:
+                request = new HttpDelete(uri);
+                break;
+            default:
+                throw new RuntimeException("Unsupported HTTP Method: " + method);
+        }
+        return request;
+    }
+
+    /**
+     * Runs this request in the background.  By default {@link #go()} runs on {@link #backgroundExecutor}; with
+     * {@link #nonBlocking(boolean)} the request runs on the engine's non-blocking client instead, and no thread is held
+     * while waiting on the network.  Cancelling the returned future aborts the request.
+     */
+    public CompletableFuture<Jurl> goAsync() {
+        if (nonBlocking || isHedging()) {
+            return goNonBlocking();
+        }
+        final CompletableFuture<Jurl> result = new CompletableFuture<>();
+        final Future<?> task = backgroundExecutor.submit(() -> {
+            try {
+                result.complete(go());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        result.whenComplete((jurl, t) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs the request on the non-blocking client, reporting metrics before anyone waiting on the result hears of it.
+     * The result is completed on {@link #backgroundExecutor}, never on an I/O or scheduler thread, so that whatever
+     * the caller chains onto it cannot stall the engine.
+     */
+    private CompletableFuture<Jurl> goNonBlocking() {
+        startMetrics();
+        final CompletableFuture<Jurl> sent = new CompletableFuture<>();
+        final CompletableFuture<Jurl> result = new CompletableFuture<>();
+        // registered first so it runs after the clean up that sendNonBlocking adds
+        sent.whenCompleteAsync((jurl, t) -> {
+            reportMetrics(t);
+            if (t == null) {
+                result.complete(jurl);
+            } else {
+                result.completeExceptionally(t);
+            }
+        }, backgroundExecutor);
+        result.whenComplete((jurl, t) -> {
+            if (result.isCancelled()) {
+                sent.cancel(false);
+            }
+        });
+        sendNonBlocking(sent);
+        return result;
+    }
+
+    private void sendNonBlocking(CompletableFuture<Jurl> result) {
+        final AtomicReference<NonBlockingAttempt> inFlight = new AtomicReference<>();
+        result.whenComplete((jurl, t) -> {
+            NonBlockingAttempt attempt = inFlight.get();
+            if (attempt != null && result.isCompletedExceptionally()) {
+                attempt.cancel();
+            }
+        });
+        try {
+            onBeforeGo();
+            responseShared = false;
+            if (serveFromCache()) {
+                result.complete(finishGo());
+                return;
+            }
+            final JurlEngine engine = getEngine();
+            final long deadline = getDeadline();
+            if (deadline != Long.MAX_VALUE) {
+                final ScheduledFuture<?> deadlineAbort = engine.getScheduler().schedule(
+                        () -> result.completeExceptionally(new JurlDeadlineExceededException(this, null)),
+                        timeout, TimeUnit.MILLISECONDS);
+                result.whenComplete((jurl, t) -> deadlineAbort.cancel(false));
+            }
+            if (isCoalescing()) {
+                coalesceNonBlocking(engine, deadline, result, inFlight);
+                return;
+            }
+            startNonBlocking(engine, deadline, result, inFlight);
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Waits for an identical request already in flight, or sends this one for any that arrive while it is.  Should the
+     * request waited on be cancelled or time out, this one takes over rather than failing with it.
+     */
+    private void coalesceNonBlocking(JurlEngine engine, long deadline, CompletableFuture<Jurl> result,
+                                     AtomicReference<NonBlockingAttempt> inFlight) {
+        final String key = getCoalescingKey();
+        final Map<String, CompletableFuture<JurlResponseSnapshot>> flights = engine.getFlights();
+        final CompletableFuture<JurlResponseSnapshot> flight = new CompletableFuture<>();
+        final CompletableFuture<JurlResponseSnapshot> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            leader.whenComplete((snapshot, t) -> {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    if (t != null && isLeaderOnlyFailure(t)) {
+                        coalesceNonBlocking(engine, deadline, result, inFlight);
+                        return;
+                    }
+                    if (t != null) {
+                        throw propagate(t);
+                    }
+                    readSharedResponse(snapshot);
+                    result.complete(finishGo());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            return;
+        }
+        result.whenComplete((jurl, t) -> {
+            flights.remove(key, flight);
+            if (t == null || propagate(t) instanceof JurlHttpStatusCodeException) {
+                flight.complete(getResponseSnapshot());
+            } else {
+                flight.completeExceptionally(t);
+            }
+        });
+        startNonBlocking(engine, deadline, result, inFlight);
+    }
+
+    private void startNonBlocking(JurlEngine engine, long deadline, CompletableFuture<Jurl> result,
+                                  AtomicReference<NonBlockingAttempt> inFlight) {
+        startRetries();
+        if (isHedging()) {
+            hedgePolicy.recordRequest();
+        }
+        attemptNonBlocking(engine, 1, deadline, false, result, inFlight);
+    }
+
+    private void attemptNonBlocking(JurlEngine engine, int attempt, long deadline, boolean responded,
+                                    CompletableFuture<Jurl> result, AtomicReference<NonBlockingAttempt> inFlight) {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            onBeforeAttempt();
+            attemptCount++;
+            if (remainingMillis(deadline) <= 0) {
+                throw new JurlDeadlineExceededException(this, null);
+            }
+            final NonBlockingAttempt sending = new NonBlockingAttempt(engine, attempt, deadline, responded, result,
+                    inFlight);
+            startNonBlocking(sending, result);
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Starts {@code sending} once it has a slot in the {@link #bulkhead}, if there is one.
+     */
+    private void startNonBlocking(NonBlockingAttempt sending, CompletableFuture<Jurl> result) {
+        try {
+            if (bulkhead == null) {
+                startRateLimited(sending, null, result);
+                return;
+            }
+            final CompletableFuture<JurlBulkhead.Permit> waiting = bulkhead.acquire(this);
+            // leave the queue if the request is cancelled or times out while waiting
+            result.whenComplete((jurl, t) -> waiting.cancel(false));
+            waiting.whenComplete((permit, t) -> {
+                if (t != null) {
+                    result.completeExceptionally(propagate(t));
+                } else {
+                    startRateLimited(sending, permit, result);
+                }
+            });
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Starts {@code sending}, holding {@code permit}, once the {@link #rateLimiter}, if there is one, allows.  The
+     * rate is only spent once there is a slot to send in.
+     */
+    private void startRateLimited(NonBlockingAttempt sending, JurlBulkhead.Permit permit,
+                                  CompletableFuture<Jurl> result) {
+        final long wait;
+        try {
+            wait = rateLimiter != null ? reserveRateLimit(sending.deadline) : 0;
+        } catch (Throwable t) {
+            if (permit != null) {
+                permit.release();
+            }
+            result.completeExceptionally(t);
+            return;
+        }
+        if (wait > 0) {
+            // not cancelled with the request: start() hands the slot back if the request is done by then
+            sending.engine.getScheduler().schedule(() -> sending.start(permit), wait, TimeUnit.NANOSECONDS);
+        } else {
+            sending.start(permit);
+        }
+    }
+
+    /**
+     * One attempt on the non-blocking client: the request, and with a {@link #hedge(JurlHedgePolicy)} any copies of
+     * it sent while it is slow, racing to be the first response.  The first response, or the last failure, settles the
+     * attempt and the rest are cancelled.
+     */
+    private final class NonBlockingAttempt {
+        private final JurlEngine engine;
+        private final int attempt;
+        private final long deadline;
+        private final boolean responded;
+        private final CompletableFuture<Jurl> result;
+        private final AtomicReference<NonBlockingAttempt> inFlight;
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final List<Future<HttpResponse>> sends = new CopyOnWriteArrayList<>();
+        private volatile ScheduledFuture<?> hedgeTimer;
+
+        NonBlockingAttempt(JurlEngine engine, int attempt, long deadline, boolean responded,
+                           CompletableFuture<Jurl> result, AtomicReference<NonBlockingAttempt> inFlight) {
+            this.engine = engine;
+            this.attempt = attempt;
+            this.deadline = deadline;
+            this.responded = responded;
+            this.result = result;
+            this.inFlight = inFlight;
+        }
+
+        void start(JurlBulkhead.Permit permit) {
+            try {
+                if (result.isDone()) {
+                    if (permit != null) {
+                        permit.release();
+                    }
+                    return;
+                }
+                inFlight.set(this);
+                send(permit);
+                if (isHedging()) {
+                    scheduleHedge(hedgePolicy.getMaxHedges());
+                }
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        }
+
+        /**
+         * Sends one copy of the request, holding {@code permit}, or throws having released it.
+         */
+        private void send(JurlBulkhead.Permit permit) throws URISyntaxException, IOException {
+            JurlCircuitBreaker.Circuit circuit = null;
+            boolean sent = false;
+            try {
+                final long remaining = remainingMillis(deadline);
+                if (remaining <= 0) {
+                    throw new JurlDeadlineExceededException(Jurl.this, null);
+                }
+                circuit = circuitBreaker != null ? circuitBreaker.acquire(Jurl.this) : null;
+                final HttpUriRequest httpRequest = prepareRequest();
+                pending.incrementAndGet();
+                final JurlTimings timings = new JurlTimings();
+                final Send send = new Send(circuit, permit, System.nanoTime(), timings);
+                final Future<HttpResponse> future = engine.isHttp2()
+                        ? engine.getHttp2Client().execute(httpRequest, cookieJar, followRedirects,
+                                capTimeout(readTimeout, remaining), send)
+                        : engine.getAsyncClient().execute(
+                                HttpAsyncMethods.create(URIUtils.extractHost(httpRequest.getURI()), httpRequest),
+                                new JurlTimings.TimedResponseConsumer(timings, send.sentAt),
+                                getRequestContext(remaining), send);
+                sent = true;
+                sends.add(future);
+                if (settled.get()) {
+                    // lost the race before it was recorded
+                    future.cancel(true);
+                }
+            } finally {
+                if (!sent) {
+                    // never reached the upstream
+                    if (circuit != null) {
+                        circuit.onIgnored();
+                    }
+                    if (permit != null) {
+                        permit.release();
+                    }
+                }
+            }
+        }
+
+        private void scheduleHedge(int hedgesLeft) {
+            final long delay = hedgePolicy.getHedgeDelay();
+            if (hedgesLeft <= 0 || remainingMillis(deadline) <= delay) {
+                return;
+            }
+            hedgeTimer = engine.getScheduler().schedule(() -> hedge(hedgesLeft), delay, TimeUnit.MILLISECONDS);
+            if (settled.get()) {
+                hedgeTimer.cancel(false);
+            }
+        }
+
+        private void hedge(int hedgesLeft) {
+            if (settled.get() || result.isDone()) {
+                return;
+            }
+            JurlBulkhead.Permit permit = null;
+            if (bulkhead != null) {
+                // hedges never queue; a full bulkhead means the upstream has enough to do
+                permit = bulkhead.tryAcquire(Jurl.this);
+                if (permit == null) {
+                    return;
+                }
+            }
+            // the budget is checked first, so a hedge it refuses does not spend the rate
+            if (!hedgePolicy.tryAcquireHedge() || (rateLimiter != null && !rateLimiter.tryReserve(Jurl.this))) {
+                if (permit != null) {
+                    permit.release();
+                }
+                return;
+            }
+            try {
+                send(permit);
+            } catch (Throwable t) {
+                // e.g. an open circuit; the copies already sent carry on
+                return;
+            }
+            scheduleHedge(hedgesLeft - 1);
+        }
+
+        /**
+         * Claims the attempt for the caller's outcome, cancelling every other copy, or returns false if it is already
+         * settled.
+         */
+        private boolean settle() {
+            if (!settled.compareAndSet(false, true)) {
+                return false;
+            }
+            cancelOthers();
+            return true;
+        }
+
+        private void cancelOthers() {
+            final ScheduledFuture<?> timer = hedgeTimer;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            for (Future<HttpResponse> send : sends) {
+                // the winner is already done, so this only cancels the losers, closing their connections
+                send.cancel(true);
+            }
+        }
+
+        void cancel() {
+            settled.set(true);
+            cancelOthers();
+        }
+
+        /**
+         * Runs the rest of the attempt on {@link #backgroundExecutor}.  Callbacks arrive on the client's I/O threads,
+         * which must not be held by parsing the body, the {@link #onAfterAttempt()} and {@link #onAfterGo()} hooks or
+         * anything chained onto the result.
+         */
+        private void finish(AttemptStep step) {
+            try {
+                backgroundExecutor.execute(() -> {
+                    try {
+                        step.run();
+                    } catch (Throwable t) {
+                        result.completeExceptionally(t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        private final class Send implements FutureCallback<HttpResponse> {
+            private final JurlCircuitBreaker.Circuit circuit;
+            private final JurlBulkhead.Permit permit;
+            private final long sentAt;
+            private final JurlTimings timings;
+
+            Send(JurlCircuitBreaker.Circuit circuit, JurlBulkhead.Permit permit, long sentAt, JurlTimings timings) {
+                this.circuit = circuit;
+                this.permit = permit;
+                this.sentAt = sentAt;
+                this.timings = timings;
+            }
+
+            @Override
+            public void completed(HttpResponse response) {
+                final long elapsed = System.nanoTime() - sentAt;
+                final int code = response.getStatusLine().getStatusCode();
+                if (circuit != null) {
+                    circuit.onResult(elapsed, code >= 500 && code < 600);
+                }
+                if (permit != null) {
+                    // the body has been buffered, so the slot is free now
+                    permit.record(elapsed, isOverloaded(code));
+                    permit.release();
+                }
+                recordLatency(elapsed);
+                pending.decrementAndGet();
+                if (!settle() || result.isDone()) {
+                    return;
+                }
+                attemptTimings = timings;
+                finish(() -> {
+                    // the non-blocking client has already buffered the body, so this does not block
+                    readResponse(response, null);
+                    onAfterAttempt();
+                    retryNonBlocking(engine, attempt, deadline, true, null, result, inFlight);
+                });
+            }
+
+            @Override
+            public void failed(Exception e) {
+                final long elapsed = System.nanoTime() - sentAt;
+                if (circuit != null) {
+                    circuit.onResult(elapsed, true);
+                }
+                if (permit != null) {
+                    permit.record(elapsed, true);
+                    permit.release();
+                }
+                recordLatency(elapsed);
+                if (pending.decrementAndGet() > 0 || !settle()) {
+                    // another copy may still answer
+                    return;
+                }
+                attemptTimings = timings;
+                finish(() -> {
+                    if (remainingMillis(deadline) <= 0) {
+                        throw new JurlDeadlineExceededException(Jurl.this, e);
+                    }
+                    retryNonBlocking(engine, attempt, deadline, responded, e, result, inFlight);
+                });
+            }
+
+            @Override
+            public void cancelled() {
+                if (circuit != null) {
+                    circuit.onIgnored();
+                }
+                if (permit != null) {
+                    permit.release();
+                }
+                recordLatency(System.nanoTime() - sentAt);
+                pending.decrementAndGet();
+                if (settle()) {
+                    // cancelled from outside rather than as the loser of a race
+                    result.cancel(false);
+                }
+            }
+
+            /**
+             * Feeds the hedge delay however the copy ended.  A copy that lost the race has waited at least this long,
+             * and leaving it out would drop the slow tail the delay is meant to find.
+             */
+            private void recordLatency(long elapsed) {
+                if (hedgePolicy != null) {
+                    hedgePolicy.recordLatency(elapsed);
+                }
+            }
+        }
+    }
+
+    private interface AttemptStep {
+        void run() throws Exception;
+    }
+
+    /**
+     * Mirrors the tail of the retry loop in {@link #go()}, scheduling the next attempt instead of sleeping.
+     */
+    private void retryNonBlocking(JurlEngine engine, int attempt, long deadline, boolean responded, Exception error,
+                                  CompletableFuture<Jurl> result, AtomicReference<NonBlockingAttempt> inFlight) {
+        final long delay = attempt < getAttemptLimit() ? getRetryDelay(attempt, error) : -1;
+        if (delay < 0) {
+            if (error != null) {
+                throw toTimeoutException(error);
+            }
+            result.complete(finishGo());
+            return;
+        }
+        if (remainingMillis(deadline) <= delay) {
+            if (responded) {
+                result.complete(finishGo());
+                return;
+            }
+            throw new JurlDeadlineExceededException(this, error);
+        }
+        discardResponseStream();
+        engine.getScheduler().schedule(
+                () -> attemptNonBlocking(engine, attempt + 1, deadline, responded, result, inFlight),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void startMetrics() {
+        goStartNanos = System.nanoTime();
+        attemptCount = 0;
+        attemptTimings = null;
+        metrics = null;
+    }
+
+    /**
+     * Records how the request went and hands it to the listeners.
+     */
+    private void reportMetrics(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        final long[] nanos;
+        JurlMetrics.TlsHandshake tlsHandshake = JurlMetrics.TlsHandshake.NONE;
+        if (attemptTimings != null) {
+            nanos = attemptTimings.toArray();
+            tlsHandshake = attemptTimings.getTlsHandshake();
+        } else {
+            nanos = new long[JurlMetrics.Phase.values().length];
+            Arrays.fill(nanos, -1);
+        }
+        nanos[JurlMetrics.Phase.TOTAL.ordinal()] = System.nanoTime() - goStartNanos;
+        metrics = new JurlMetrics(this, url != null ? getHostKey() : null, method, responseHeaders != null ? responseCode : 0,
+                attemptCount, getRequestCompressedLength(),
+                responseWireCounter != null ? responseWireCounter.getCount() : 0, error, nanos, tlsHandshake);
+        for (JurlListener listener : getListeners()) {
+            notifyListener(() -> listener.onComplete(metrics));
+        }
+    }
+
+    private void reportDeserialization(long nanos) {
+        if (metrics == null) {
+            return;
+        }
+        for (JurlListener listener : getListeners()) {
+            notifyListener(() -> listener.onDeserialize(metrics, nanos));
+        }
+    }
+
+    /**
+     * Calls a listener, ignoring anything it throws: a listener only observes, and a broken one must not fail the
+     * request or batch it is told about.
+     */
+    static void notifyListener(Runnable call) {
+        try {
+            call.run();
+        } catch (RuntimeException e) {
+            // ignored
+        }
+    }
+
+    private List<JurlListener> getListeners() {
+        final List<JurlListener> engineListeners = getEngine().getListeners();
+        if (listeners == null) {
+            return engineListeners;
+        } else if (engineListeners.isEmpty()) {
+            return listeners;
+        }
+        final List<JurlListener> all = new ArrayList<>(engineListeners);
+        all.addAll(listeners);
+        return all;
+    }
+
+    /**
+     * Freezes this request's configuration into a {@link JurlTemplate} that can stamp out copies of it.
+     */
+    public JurlTemplate toTemplate() {
+        return new JurlTemplate(this);
+    }
+
+    public Jurl newWithCookies() {
+        Jurl jurl = new Jurl().engine(engine);
+        for (NameValuePair requestCookie : requestCookies) {
+            jurl.cookie(requestCookie.getName(), requestCookie.getValue());
+        }
+
+        for (HttpCookie cookie : responseCookies) {
+            jurl.cookie(cookie.getName(), cookie.getValue());
+        }
+        return jurl;
+    }
+
+    private Map<String, List<String>> valuePairToMap(List<NameValuePair> pairs) {
+        final HashMap<String, List<String>> map = new HashMap<>();
+        for (NameValuePair pair : pairs) {
+            final String name = pair.getName();
+            final String value = pair.getValue();
+
+            List<String> values = map.computeIfAbsent(name, k -> new ArrayList<>());
+            values.add(value);
+        }
+        return map;
+    }
+
+    /**
+     * A streamed response body that also closes the response, releasing its connection, when closed.
+     */
+    private static class ResponseStream extends FilterInputStream {
+
+        private final Closeable onClose;
+
+        ResponseStream(InputStream in, Closeable onClose) {
+            super(in);
+            this.onClose = onClose;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (onClose != null) {
+                    onClose.close();
+                }
+            }
         }
     }
 }
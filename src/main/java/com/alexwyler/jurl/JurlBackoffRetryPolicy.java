@@ -0,0 +1,185 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.client.utils.DateUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Exponential backoff: attempt {@code n} waits up to {@code baseDelay * multiplier^(n-1)}, never more than
+ * {@code maxDelay}, randomized by {@link Jitter} so that clients that failed together do not retry together.  A
+ * {@code Retry-After} on a 429 or 503 is honoured as the minimum wait.
+ * <p>
+ * By default 5xx and 429 responses are retried, as are {@link IOException}s and {@link TimeoutException}s.
+ */
+public class JurlBackoffRetryPolicy implements JurlRetryPolicy {
+
+    public enum Jitter {
+        /**
+         * Exactly the exponential delay.
+         */
+        NONE,
+        /**
+         * Uniformly between 0 and the exponential delay.
+         */
+        FULL,
+        /**
+         * Uniformly between {@code baseDelay} and three times the previous delay, capped at {@code maxDelay}.
+         * Spreads retries out further than {@link #FULL} while keeping a floor.
+         */
+        DECORRELATED
+    }
+
+    private long baseDelay = 100; // ms
+    private long maxDelay = 10000; // ms
+    private double multiplier = 2;
+    private Jitter jitter = Jitter.FULL;
+    private boolean respectRetryAfter = true;
+    private long maxRetryAfter = 60000; // ms
+    private Set<Integer> retryableStatusCodes = null; // null for 5xx and 429
+    private List<Class<? extends Throwable>> retryableExceptions =
+            new ArrayList<>(Arrays.asList(IOException.class, TimeoutException.class));
+
+    /**
+     * Delay in ms before the first retry.  100 by default.
+     */
+    public JurlBackoffRetryPolicy baseDelay(long baseDelay) {
+        this.baseDelay = baseDelay;
+        return this;
+    }
+
+    /**
+     * Longest delay in ms between attempts, before jitter.  10 seconds by default.
+     */
+    public JurlBackoffRetryPolicy maxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    /**
+     * Growth of the delay from one retry to the next.  2 by default.
+     */
+    public JurlBackoffRetryPolicy multiplier(double multiplier) {
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    public JurlBackoffRetryPolicy jitter(Jitter jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Whether a {@code Retry-After} on a 429 or 503 sets the minimum delay.  A server asking for more than
+     * {@link #maxRetryAfter(long)} is not retried at all.  On by default.
+     */
+    public JurlBackoffRetryPolicy respectRetryAfter(boolean respectRetryAfter) {
+        this.respectRetryAfter = respectRetryAfter;
+        return this;
+    }
+
+    /**
+     * Longest {@code Retry-After} in ms worth waiting for.  60 seconds by default.
+     */
+    public JurlBackoffRetryPolicy maxRetryAfter(long maxRetryAfter) {
+        this.maxRetryAfter = maxRetryAfter;
+        return this;
+    }
+
+    /**
+     * Retries exactly these status codes instead of 5xx and 429.
+     */
+    public JurlBackoffRetryPolicy retryOnStatus(int... statusCodes) {
+        this.retryableStatusCodes = new HashSet<>();
+        for (int statusCode : statusCodes) {
+            this.retryableStatusCodes.add(statusCode);
+        }
+        return this;
+    }
+
+    /**
+     * Retries exceptions of these types, and their subclasses, instead of {@link IOException} and
+     * {@link TimeoutException}.
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs") // the classes are only read out of the array
+    public final JurlBackoffRetryPolicy retryOn(Class<? extends Throwable>... exceptions) {
+        this.retryableExceptions = new ArrayList<>(exceptions.length);
+        Collections.addAll(this.retryableExceptions, exceptions);
+        return this;
+    }
+
+    @Override
+    public long retryDelay(Jurl jurl, int attempt, long previousDelay, Exception error) {
+        if (error != null) {
+            return isRetryable(error) ? backoff(attempt, previousDelay) : -1;
+        }
+        final int code = jurl.getResponseCode();
+        if (!isRetryable(code)) {
+            return -1;
+        }
+        long delay = backoff(attempt, previousDelay);
+        if (respectRetryAfter && (code == 429 || code == 503)) {
+            final long retryAfter = getRetryAfter(jurl.getReceivedHeader("Retry-After"));
+            if (retryAfter > maxRetryAfter) {
+                return -1;
+            }
+            delay = Math.max(delay, retryAfter);
+        }
+        return delay;
+    }
+
+    private boolean isRetryable(int code) {
+        if (retryableStatusCodes != null) {
+            return retryableStatusCodes.contains(code);
+        }
+        return code == 429 || (code >= 500 && code < 600);
+    }
+
+    private boolean isRetryable(Throwable error) {
+        for (Class<? extends Throwable> retryable : retryableExceptions) {
+            if (retryable.isInstance(error)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long backoff(int attempt, long previousDelay) {
+        final double exponential = Math.min(maxDelay, baseDelay * Math.pow(multiplier, attempt - 1));
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (jitter) {
+            case FULL:
+                return (long) (random.nextDouble() * exponential);
+            case DECORRELATED:
+                final long upper = Math.max(baseDelay, previousDelay * 3);
+                return Math.min(maxDelay, baseDelay + (long) (random.nextDouble() * (upper - baseDelay)));
+            default:
+                return (long) exponential;
+        }
+    }
+
+    /**
+     * The wait {@code Retry-After} asks for in ms, as delay-seconds or an HTTP-date; 0 if absent or unreadable.
+     */
+    static long getRetryAfter(String header) {
+        if (header == null) {
+            return 0;
+        }
+        final String value = header.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            final Date date = DateUtils.parseDate(value);
+            return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : 0;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.alexwyler.jurl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs a collection of requests with at most {@link #parallelism(int)} in flight at once, each with
+ * {@link Jurl#goAsync()} so they share their engines' connection pools, and waits for them all:
+ * <pre>{@code
+ * List<Jurl> done = new JurlBatch(requests).parallelism(16).timeout(5000).go();
+ * }</pre>
+ * By default every request runs and failures are collected in {@link #getFailures()}.  With {@link #failFast(boolean)}
+ * the first failure cancels the rest and is thrown.  Results come back in the order given; to handle them as they
+ * finish instead, set {@link #onComplete(BiConsumer)}.
+ * <p>
+ * A batch runs once.  Afterwards it reports its wall time, peak concurrency and errors.
+ */
+public class JurlBatch {
+
+    private final List<Jurl> requests;
+    private int parallelism = 16;
+    private long timeout = -1; // ms, -1 for no deadline
+    private boolean failFast = false;
+    private BiConsumer<Jurl, Throwable> listener = null;
+
+    private final AtomicReferenceArray<CompletableFuture<Jurl>> futures;
+    private final Throwable[] errors;
+    private final CompletableFuture<List<Jurl>> result = new CompletableFuture<>();
+    private boolean started = false;
+    private int next = 0;
+    private int inFlight = 0;
+    private int maxInFlight = 0;
+    private int completed = 0;
+    private long startNanos;
+    private long endNanos;
+
+    public JurlBatch(Collection<Jurl> requests) {
+        this.requests = new ArrayList<>(requests);
+        this.futures = new AtomicReferenceArray<>(this.requests.size());
+        this.errors = new Throwable[this.requests.size()];
+    }
+
+    /**
+     * Most requests in flight at once.  16 by default.
+     */
+    public JurlBatch parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        assertNotStarted();
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Deadline in ms for the whole batch.  Requests still running or waiting to start when it passes are cancelled
+     * and fail with {@link JurlDeadlineExceededException}.
+     */
+    public JurlBatch timeout(long timeout) {
+        assertNotStarted();
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Whether the first failure cancels the rest of the batch and is thrown from {@link #go()}, rather than being
+     * collected with the others.  False by default.
+     */
+    public JurlBatch failFast(boolean failFast) {
+        assertNotStarted();
+        this.failFast = failFast;
+        return this;
+    }
+
+    /**
+     * Called with each request as it finishes, along with what it threw or null, in the order they finish.  It runs on
+     * the thread that finished the request, so calls may overlap.  Anything it throws is ignored.
+     */
+    public JurlBatch onComplete(BiConsumer<Jurl, Throwable> listener) {
+        assertNotStarted();
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Runs the batch and returns the requests in the order given.
+     */
+    public List<Jurl> go() {
+        final CompletableFuture<List<Jurl>> future = goAsync();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Starts the batch.  Cancelling the returned future cancels every request still running.
+     */
+    public CompletableFuture<List<Jurl>> goAsync() {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("A JurlBatch can only be run once.");
+            }
+            started = true;
+            startNanos = System.nanoTime();
+        }
+        result.whenComplete((jurls, t) -> {
+            synchronized (this) {
+                endNanos = System.nanoTime();
+            }
+            if (t != null) {
+                cancelRemaining();
+            }
+        });
+        if (requests.isEmpty()) {
+            result.complete(Collections.emptyList());
+            return result;
+        }
+        if (timeout >= 0) {
+            final ScheduledFuture<?> deadline = requests.get(0).getEngine().getScheduler()
+                    .schedule(this::expire, timeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((jurls, t) -> deadline.cancel(false));
+        }
+        launchMore();
+        return result;
+    }
+
+    private void launchMore() {
+        final List<Integer> launching = new ArrayList<>();
+        synchronized (this) {
+            while (!result.isDone() && inFlight < parallelism && next < requests.size()) {
+                launching.add(next++);
+                inFlight++;
+            }
+            maxInFlight = Math.max(maxInFlight, inFlight);
+        }
+        for (int index : launching) {
+            launch(index);
+        }
+    }
+
+    private void launch(int index) {
+        CompletableFuture<Jurl> future;
+        try {
+            future = requests.get(index).goAsync();
+        } catch (Throwable t) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(t);
+        }
+        futures.set(index, future);
+        if (result.isDone()) {
+            // the batch ended while this was starting
+            future.cancel(true);
+        }
+        future.whenComplete((jurl, t) -> onComplete(index, t));
+    }
+
+    private void onComplete(int index, Throwable failure) {
+        final Throwable t = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause() : failure;
+        final boolean last;
+        synchronized (this) {
+            inFlight--;
+            if (result.isDone()) {
+                // cancelled, or already recorded as failed by the deadline
+                return;
+            }
+            completed++;
+            errors[index] = t;
+            last = completed == requests.size();
+        }
+        if (listener != null) {
+            Jurl.notifyListener(() -> listener.accept(requests.get(index), t));
+        }
+        if (t != null && failFast) {
+            result.completeExceptionally(t);
+        } else if (last) {
+            result.complete(Collections.unmodifiableList(requests));
+        } else {
+            launchMore();
+        }
+    }
+
+    private void expire() {
+        Throwable first = null;
+        synchronized (this) {
+            if (result.isDone()) {
+                return;
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                final CompletableFuture<Jurl> future = futures.get(i);
+                if (errors[i] == null && (future == null || !future.isDone())) {
+                    errors[i] = new JurlDeadlineExceededException(requests.get(i), timeout, null);
+                    if (first == null) {
+                        first = errors[i];
+                    }
+                }
+            }
+            completed = requests.size();
+        }
+        if (failFast && first != null) {
+            result.completeExceptionally(first);
+        } else {
+            result.complete(Collections.unmodifiableList(requests));
+        }
+        cancelRemaining();
+    }
+
+    private void cancelRemaining() {
+        for (int i = 0; i < futures.length(); i++) {
+            final CompletableFuture<Jurl> future = futures.get(i);
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void assertNotStarted() {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("JurlBatch cannot be reconfigured once started.");
+            }
+        }
+    }
+
+    /**
+     * The requests that failed, with what they threw.
+     */
+    public synchronized Map<Jurl, Throwable> getFailures() {
+        final Map<Jurl, Throwable> failures = new IdentityHashMap<>();
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] != null) {
+                failures.put(requests.get(i), errors[i]);
+            }
+        }
+        return failures;
+    }
+
+    public synchronized int getErrorCount() {
+        int count = 0;
+        for (Throwable error : errors) {
+            if (error != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * Most requests that were in flight at once.
+     */
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Time in ms from start until the batch finished, or until now while it runs.
+     */
+    public synchronized long getWallTime() {
+        if (!started) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos);
+    }
+}
@@ -0,0 +1,272 @@
+package com.alexwyler.jurl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Limits how many requests are in flight to each upstream, so one slow partner cannot take every thread and
+ * connection.  There is one compartment per key, the host and port by default.  A request over the limit waits in a
+ * bounded queue, first come first served, for up to {@link #queueTimeout(long)}; when the queue is full or the wait
+ * times out it fails with {@link JurlBulkheadFullException}.
+ * <p>
+ * The limit is fixed by default.  With {@link #adaptive(int, int, long)} it adjusts itself per compartment by additive
+ * increase, multiplicative decrease: each good call raises it by one over the current limit, so about one per round
+ * trip of the whole limit, and each call that fails, is rejected with 429 or 503, or takes longer than the latency
+ * threshold cuts it by {@link #backoffRatio(double)}.
+ * <p>
+ * Each attempt holds a slot from when it is sent until its response has been read, or, for a streamed response, until
+ * the stream is closed.  One bulkhead is meant to be shared: {@code new Jurl().bulkhead(bulkhead)}.
+ */
+public class JurlBulkhead {
+
+    private int maxConcurrent = 20;
+    private int maxQueued = 100;
+    private long queueTimeout = 1000; // ms, -1 to wait as long as the request's deadline allows
+    private boolean adaptive = false;
+    private int minLimit = 1;
+    private int maxLimit = 20;
+    private long latencyThreshold = -1; // ms
+    private double backoffRatio = 0.9;
+    private Function<Jurl, String> keyFunction = Jurl::getHostKey;
+
+    private final ConcurrentMap<String, Compartment> compartments = new ConcurrentHashMap<>();
+
+    /**
+     * Requests in flight per compartment, and the starting limit in adaptive mode.  20 by default.
+     */
+    public JurlBulkhead maxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1");
+        }
+        this.maxConcurrent = maxConcurrent;
+        return this;
+    }
+
+    /**
+     * Requests that can wait for a slot per compartment; any more fail at once.  100 by default.
+     */
+    public JurlBulkhead maxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    /**
+     * Time in ms a request waits for a slot before failing, or -1 to wait as long as its own deadline allows.  1 second
+     * by default.
+     */
+    public JurlBulkhead queueTimeout(long queueTimeout) {
+        this.queueTimeout = queueTimeout;
+        return this;
+    }
+
+    /**
+     * Adjusts each compartment's limit between {@code minLimit} and {@code maxLimit} from observed outcomes, starting
+     * at {@link #maxConcurrent(int)}.  Calls that take at least {@code latencyThreshold} ms count against the limit,
+     * or only failures and overload responses when it is -1.
+     */
+    public JurlBulkhead adaptive(int minLimit, int maxLimit, long latencyThreshold) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Need 1 <= minLimit <= maxLimit.");
+        }
+        this.adaptive = true;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThreshold = latencyThreshold;
+        return this;
+    }
+
+    /**
+     * Factor the adaptive limit is multiplied by after a bad call.  0.9 by default.
+     */
+    public JurlBulkhead backoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        }
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * Which compartment a request belongs to.  The request's host and port by default.
+     */
+    public JurlBulkhead keyFunction(Function<Jurl, String> keyFunction) {
+        this.keyFunction = keyFunction;
+        return this;
+    }
+
+    /**
+     * The current limit for {@code key}.
+     */
+    public int getLimit(String key) {
+        final Compartment compartment = compartments.get(key);
+        return compartment != null ? compartment.getLimit() : maxConcurrent;
+    }
+
+    public int getInFlight(String key) {
+        final Compartment compartment = compartments.get(key);
+        return compartment != null ? compartment.getInFlight() : 0;
+    }
+
+    public int getQueued(String key) {
+        final Compartment compartment = compartments.get(key);
+        return compartment != null ? compartment.getQueued() : 0;
+    }
+
+    /**
+     * A slot for {@code jurl}, completed at once when one is free and otherwise when it is its turn.  It fails with
+     * {@link JurlBulkheadFullException} when the queue is full or the queue timeout passes; cancelling it gives up the
+     * place in the queue.  The caller must release the returned permit.
+     */
+    CompletableFuture<Permit> acquire(Jurl jurl) {
+        final String key = keyFunction.apply(jurl);
+        return compartments.computeIfAbsent(key, Compartment::new).acquire(jurl);
+    }
+
+    /**
+     * A slot for {@code jurl} if one is free now and nobody is waiting, otherwise null.
+     */
+    Permit tryAcquire(Jurl jurl) {
+        final String key = keyFunction.apply(jurl);
+        return compartments.computeIfAbsent(key, Compartment::new).tryAcquire();
+    }
+
+    final class Compartment {
+        private final String key;
+        private final ArrayDeque<CompletableFuture<Permit>> queue = new ArrayDeque<>();
+        private double limit;
+        private int inFlight;
+
+        Compartment(String key) {
+            this.key = key;
+            this.limit = adaptive ? Math.min(maxLimit, Math.max(minLimit, maxConcurrent)) : maxConcurrent;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        synchronized int getQueued() {
+            return queue.size();
+        }
+
+        synchronized Permit tryAcquire() {
+            if (queue.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                return new Permit(this);
+            }
+            return null;
+        }
+
+        CompletableFuture<Permit> acquire(Jurl jurl) {
+            final CompletableFuture<Permit> waiter = new CompletableFuture<>();
+            synchronized (this) {
+                if (queue.isEmpty() && inFlight < (int) limit) {
+                    inFlight++;
+                    waiter.complete(new Permit(this));
+                    return waiter;
+                }
+                if (queue.size() >= maxQueued) {
+                    waiter.completeExceptionally(new JurlBulkheadFullException(jurl, key, false));
+                    return waiter;
+                }
+                queue.add(waiter);
+            }
+            if (queueTimeout >= 0) {
+                final ScheduledFuture<?> timeout = jurl.getEngine().getScheduler().schedule(
+                        () -> waiter.completeExceptionally(new JurlBulkheadFullException(jurl, key, true)),
+                        queueTimeout, TimeUnit.MILLISECONDS);
+                waiter.whenComplete((permit, t) -> timeout.cancel(false));
+            }
+            waiter.whenComplete((permit, t) -> {
+                if (t != null) {
+                    synchronized (this) {
+                        queue.remove(waiter);
+                    }
+                }
+            });
+            return waiter;
+        }
+
+        /**
+         * Frees a slot and hands any that are now free to the head of the queue.  Waiters are completed outside the
+         * lock, since completing one runs its request.
+         */
+        void release() {
+            final List<CompletableFuture<Permit>> granted = new ArrayList<>();
+            synchronized (this) {
+                inFlight--;
+                while (inFlight < (int) limit && !queue.isEmpty()) {
+                    granted.add(queue.poll());
+                    inFlight++;
+                }
+            }
+            for (CompletableFuture<Permit> waiter : granted) {
+                final Permit permit = new Permit(this);
+                if (!waiter.complete(permit)) {
+                    // timed out or cancelled just as its turn came
+                    permit.release();
+                }
+            }
+        }
+
+        synchronized void record(long nanos, boolean dropped) {
+            if (!adaptive) {
+                return;
+            }
+            if (dropped || (latencyThreshold >= 0 && nanos >= TimeUnit.MILLISECONDS.toNanos(latencyThreshold))) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getInFlight() + "/" + getLimit();
+        }
+    }
+
+    /**
+     * A slot held by one attempt.
+     */
+    static final class Permit {
+        private final Compartment compartment;
+        private final AtomicBoolean recorded = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(Compartment compartment) {
+            this.compartment = compartment;
+        }
+
+        /**
+         * Records the outcome of the attempt, which took {@code nanos}, for the adaptive limit.  {@code dropped} is true
+         * when it failed or the upstream said it was overloaded.
+         */
+        void record(long nanos, boolean dropped) {
+            if (recorded.compareAndSet(false, true)) {
+                compartment.record(nanos, dropped);
+            }
+        }
+
+        /**
+         * Gives the slot back.  Only the first call counts.
+         */
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                compartment.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.alexwyler.jurl;
+
+/**
+ * Thrown instead of sending a request when its {@link JurlBulkhead} compartment is at its limit and the request could
+ * not wait for a slot, either because the wait queue is full or because the queue timeout passed.
+ */
+public class JurlBulkheadFullException extends RuntimeException {
+
+    public Jurl getJurlInstance() {
+        return jurlInstance;
+    }
+
+    public void setJurlInstance(Jurl jurlInstance) {
+        this.jurlInstance = jurlInstance;
+    }
+
+    public String getBulkheadKey() {
+        return bulkheadKey;
+    }
+
+    /**
+     * Whether the request waited in the queue until the queue timeout, rather than finding the queue full.
+     */
+    public boolean isQueueTimeout() {
+        return queueTimeout;
+    }
+
+    private Jurl jurlInstance;
+    private final String bulkheadKey;
+    private final boolean queueTimeout;
+
+    public JurlBulkheadFullException(Jurl jurlInstance, String bulkheadKey, boolean queueTimeout) {
+        super(String.format(queueTimeout ? "Timed out waiting in bulkhead %s for %s to %s"
+                        : "Bulkhead %s is full for %s to %s",
+                bulkheadKey, jurlInstance.getMethod(), jurlInstance.getUrlWithParams()));
+        this.jurlInstance = jurlInstance;
+        this.bulkheadKey = bulkheadKey;
+        this.queueTimeout = queueTimeout;
+    }
+}
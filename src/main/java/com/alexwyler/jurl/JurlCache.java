@@ -0,0 +1,678 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHeader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * An HTTP cache for GET requests, following the parts of RFC 7234 that matter to a cache shared by a client's requests.
+ * Responses are fresh for their {@code Cache-Control: s-maxage} or {@code max-age}, or until {@code Expires}; once
+ * stale, or when marked {@code no-cache}, they are revalidated with {@code If-None-Match} / {@code If-Modified-Since}
+ * and a 304 reuses the stored body.  {@code no-store} and {@code private} responses and {@code Vary: *} are never
+ * stored, and a successful PUT, POST, PATCH or DELETE to a URL evicts it.
+ * <p>
+ * As the cache is shared, a response to a request with credentials, an {@code Authorization} header or cookies, is only
+ * stored when it says it may be shared, with {@code public}, {@code s-maxage} or {@code must-revalidate}, and only such
+ * responses are served to requests with credentials.  One user's response is then never served to another.
+ * <p>
+ * Entries are kept in memory in least-recently-used order up to {@link #maxBytes(long)}.  With
+ * {@link #diskDirectory(Path)} every entry is also written to its own file, and read back into memory with plain file
+ * I/O when it is no longer there, so the cache survives restarts and can be much larger than the heap tier.
+ * <p>
+ * One cache is meant to be shared by many requests: {@code new Jurl().cache(cache)}.  Configure it before first use.
+ */
+public class JurlCache {
+
+    private static final String FILE_SUFFIX = ".jurlcache";
+    private static final int FILE_VERSION = 1;
+
+    private long maxBytes = 32L * 1024 * 1024;
+    private Path diskDirectory = null;
+    private long maxDiskBytes = 256L * 1024 * 1024;
+
+    private final Object lock = new Object();
+    private boolean started;
+    private long memoryBytes;
+    private long diskBytes;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Bytes of responses, headers and bodies, to keep in memory.  32 MB by default.
+     */
+    public JurlCache maxBytes(long maxBytes) {
+        assertNotStarted();
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Also keeps every entry in a file under {@code directory}, which is created if needed.  Files left by an earlier
+     * cache in the same directory are reused.
+     */
+    public JurlCache diskDirectory(Path diskDirectory) {
+        assertNotStarted();
+        this.diskDirectory = diskDirectory;
+        return this;
+    }
+
+    /**
+     * Bytes of files to keep under {@link #diskDirectory(Path)}.  256 MB by default.
+     */
+    public JurlCache maxDiskBytes(long maxDiskBytes) {
+        assertNotStarted();
+        this.maxDiskBytes = maxDiskBytes;
+        return this;
+    }
+
+    private void assertNotStarted() {
+        synchronized (lock) {
+            if (started) {
+                throw new IllegalStateException("JurlCache cannot be reconfigured once in use.");
+            }
+        }
+    }
+
+    private void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        if (diskDirectory == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(diskDirectory);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(diskDirectory, "*" + FILE_SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            // oldest first, so the least recently written files are evicted first
+            files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+            for (Path file : files) {
+                long size = Files.size(file);
+                disk.put(file.getFileName().toString(), size);
+                diskBytes += size;
+            }
+            trimDisk();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Stale entries confirmed unchanged by a 304.
+     */
+    public long getRevalidatedCount() {
+        return revalidations.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Bytes currently held in memory.
+     */
+    public long getSize() {
+        synchronized (lock) {
+            return memoryBytes;
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            start();
+            memory.clear();
+            memoryBytes = 0;
+            for (String file : disk.keySet()) {
+                deleteQuietly(diskDirectory.resolve(file));
+            }
+            disk.clear();
+            diskBytes = 0;
+        }
+    }
+
+    /**
+     * The entry stored for {@code key} whose {@code Vary} headers match the request, fresh or not, or null.
+     */
+    Entry get(String key, Function<String, String> requestHeaders) {
+        Entry entry;
+        final String file;
+        final Long fileSize;
+        synchronized (lock) {
+            start();
+            entry = memory.get(key);
+            file = entry == null && diskDirectory != null ? fileName(key) : null;
+            fileSize = file != null ? disk.get(file) : null;
+        }
+        if (fileSize != null) {
+            // read outside the lock, so lookups of entries in memory never wait on the disk
+            try {
+                entry = readEntry(diskDirectory.resolve(file), key);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    // unless it was written again meanwhile
+                    if (fileSize.equals(disk.get(file))) {
+                        disk.remove(file);
+                        diskBytes -= fileSize;
+                        deleteQuietly(diskDirectory.resolve(file));
+                    }
+                }
+            }
+            if (entry != null) {
+                synchronized (lock) {
+                    putInMemory(key, entry);
+                }
+            }
+        }
+        if (entry == null || !entry.matches(requestHeaders)) {
+            return null;
+        }
+        return !hasCredentials(requestHeaders) || isShared(entry.snapshot) ? entry : null;
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    /**
+     * Stores {@code snapshot} if its headers allow it, and returns the entry, or null if it was not stored.
+     */
+    Entry put(String key, JurlResponseSnapshot snapshot, Function<String, String> requestHeaders, long requestTime,
+              long responseTime) {
+        if (hasCredentials(requestHeaders) && !isShared(snapshot)) {
+            // another user's response; whatever is stored for the URL can stay
+            return null;
+        }
+        if (!isStorable(snapshot)) {
+            remove(key);
+            return null;
+        }
+        final Entry entry = new Entry(snapshot, varyValues(snapshot, requestHeaders),
+                expiresAt(snapshot, requestTime, responseTime));
+        store(key, entry);
+        return entry;
+    }
+
+    /**
+     * Freshens {@code entry} with the headers of the 304 that confirmed it, stores it again and returns it.
+     */
+    Entry revalidated(String key, Entry entry, Header[] notModifiedHeaders, long requestTime, long responseTime) {
+        revalidations.increment();
+        final List<Header> merged = new ArrayList<>();
+        for (Header header : entry.snapshot.headers) {
+            if (!containsHeader(notModifiedHeaders, header.getName())) {
+                merged.add(header);
+            }
+        }
+        for (Header header : notModifiedHeaders) {
+            // a 304 says nothing about the body, so the stored body's framing headers stay
+            if (!header.getName().equalsIgnoreCase("Content-Length")
+                    && !header.getName().equalsIgnoreCase("Content-Encoding")
+                    && !header.getName().equalsIgnoreCase("Transfer-Encoding")) {
+                merged.add(header);
+            }
+        }
+        final JurlResponseSnapshot snapshot = new JurlResponseSnapshot(entry.snapshot.code, entry.snapshot.reason,
+                merged.toArray(new Header[0]), entry.snapshot.body);
+        final Entry freshened = new Entry(snapshot, entry.varyValues, expiresAt(snapshot, requestTime, responseTime));
+        if (isStorable(snapshot)) {
+            store(key, freshened);
+        } else {
+            remove(key);
+        }
+        return freshened;
+    }
+
+    void remove(String key) {
+        synchronized (lock) {
+            start();
+            final Entry removed = memory.remove(key);
+            if (removed != null) {
+                memoryBytes -= removed.size;
+            }
+            if (diskDirectory != null) {
+                final String file = fileName(key);
+                final Long size = disk.remove(file);
+                if (size != null) {
+                    diskBytes -= size;
+                    deleteQuietly(diskDirectory.resolve(file));
+                }
+            }
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        synchronized (lock) {
+            start();
+            putInMemory(key, entry);
+        }
+        if (diskDirectory == null) {
+            return;
+        }
+        final byte[] serialized;
+        try {
+            serialized = serialize(key, entry);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (serialized.length <= maxDiskBytes) {
+            writeFile(fileName(key), serialized);
+        }
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        final Entry previous = memory.remove(key);
+        if (previous != null) {
+            memoryBytes -= previous.size;
+        }
+        if (entry.size > maxBytes) {
+            return;
+        }
+        memory.put(key, entry);
+        memoryBytes += entry.size;
+        final Iterator<Entry> eldest = memory.values().iterator();
+        while (memoryBytes > maxBytes && eldest.hasNext()) {
+            memoryBytes -= eldest.next().size;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Writes {@code file} outside the lock, then accounts for it under the lock.
+     */
+    private void writeFile(String file, byte[] serialized) {
+        final Path path = diskDirectory.resolve(file);
+        try {
+            // write then rename, so a reader never maps a half-written file
+            final Path temp = Files.createTempFile(diskDirectory, "entry", ".tmp");
+            try {
+                Files.write(temp, serialized);
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                deleteQuietly(temp);
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                deleteQuietly(path);
+                final Long size = disk.remove(file);
+                if (size != null) {
+                    diskBytes -= size;
+                }
+            }
+            return;
+        }
+        synchronized (lock) {
+            final Long previous = disk.put(file, (long) serialized.length);
+            if (previous != null) {
+                diskBytes -= previous;
+            }
+            diskBytes += serialized.length;
+            trimDisk();
+        }
+    }
+
+    private void trimDisk() {
+        final Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> file = eldest.next();
+            diskBytes -= file.getValue();
+            deleteQuietly(diskDirectory.resolve(file.getKey()));
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static byte[] serialize(String key, Entry entry) throws IOException {
+        final JurlResponseSnapshot snapshot = entry.snapshot;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                (int) Math.min(Integer.MAX_VALUE, entry.size + 256));
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(FILE_VERSION);
+        writeString(out, key);
+        out.writeLong(entry.expiresAt);
+        out.writeInt(snapshot.code);
+        writeString(out, snapshot.reason);
+        out.writeInt(snapshot.headers.length);
+        for (Header header : snapshot.headers) {
+            writeString(out, header.getName());
+            writeString(out, header.getValue());
+        }
+        out.writeInt(entry.varyValues.size());
+        for (Map.Entry<String, String> vary : entry.varyValues.entrySet()) {
+            writeString(out, vary.getKey());
+            writeString(out, vary.getValue());
+        }
+        if (snapshot.body == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(snapshot.body.length);
+            out.write(snapshot.body);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads an entry from its file; null if it belongs to a different key that happens to share its hash.  The entry
+     * goes on to the memory tier, so it is read straight onto the heap rather than through a mapped buffer.
+     *
+     * @throws IOException if the file is gone, unreadable or corrupt
+     */
+    private static Entry readEntry(Path path, String key) throws IOException {
+        final long fileSize = Files.size(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != FILE_VERSION || !key.equals(readString(in, fileSize))) {
+                return null;
+            }
+            final long expiresAt = in.readLong();
+            final int code = in.readInt();
+            final String reason = readString(in, fileSize);
+            final int headerCount = in.readInt();
+            if (headerCount < 0 || headerCount > fileSize) {
+                throw new IOException("Corrupt cache file " + path);
+            }
+            final Header[] headers = new Header[headerCount];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = new BasicHeader(readString(in, fileSize), readString(in, fileSize));
+            }
+            final int varyCount = in.readInt();
+            final Map<String, String> varyValues = new TreeMap<>();
+            for (int i = 0; i < varyCount; i++) {
+                varyValues.put(readString(in, fileSize), readString(in, fileSize));
+            }
+            final byte[] body = readBytes(in, fileSize);
+            return new Entry(new JurlResponseSnapshot(code, reason, headers, body), varyValues, expiresAt);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt cache file " + path, e);
+        }
+    }
+
+    private static String readString(DataInputStream in, long fileSize) throws IOException {
+        final byte[] bytes = readBytes(in, fileSize);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Reads a length and that many bytes, or null for a length of -1, as {@link #writeString} writes them.
+     */
+    private static byte[] readBytes(DataInputStream in, long fileSize) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > fileSize) {
+            // a corrupt length; don't allocate for it
+            throw new EOFException();
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static String fileName(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder(digest.length * 2 + FILE_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(FILE_SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Silently ignore
+        }
+    }
+
+    private static boolean containsHeader(Header[] headers, String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isStorable(JurlResponseSnapshot snapshot) {
+        if (snapshot.code != HttpStatus.SC_OK && snapshot.code != HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION) {
+            return false;
+        }
+        final Map<String, String> cacheControl = cacheControl(snapshot.headers);
+        if (cacheControl.containsKey("no-store") || cacheControl.containsKey("private")) {
+            return false;
+        }
+        final Header vary = snapshot.getFirstHeader("Vary");
+        return vary == null || !vary.getValue().trim().equals("*");
+    }
+
+    private static boolean hasCredentials(Function<String, String> requestHeaders) {
+        return requestHeaders.apply("authorization") != null || requestHeaders.apply("cookie") != null;
+    }
+
+    /**
+     * Whether {@code snapshot} may be shared between users even though its request had credentials (RFC 7234, section
+     * 3.2).
+     */
+    private static boolean isShared(JurlResponseSnapshot snapshot) {
+        final Map<String, String> cacheControl = cacheControl(snapshot.headers);
+        return cacheControl.containsKey("public") || cacheControl.containsKey("s-maxage")
+                || cacheControl.containsKey("must-revalidate");
+    }
+
+    /**
+     * The request header values named by the response's {@code Vary}, which a later request must repeat to reuse it.
+     */
+    private static Map<String, String> varyValues(JurlResponseSnapshot snapshot,
+                                                  Function<String, String> requestHeaders) {
+        final Map<String, String> values = new TreeMap<>();
+        for (Header vary : snapshot.headers) {
+            if (vary.getName().equalsIgnoreCase("Vary")) {
+                for (String name : vary.getValue().split(",")) {
+                    name = name.trim().toLowerCase(Locale.ROOT);
+                    if (!name.isEmpty()) {
+                        values.put(name, requestHeaders.apply(name));
+                    }
+                }
+            }
+        }
+        return values.isEmpty() ? Collections.emptyMap() : values;
+    }
+
+    /**
+     * When the response stops being fresh, as wall-clock ms: now for responses that must always be revalidated.
+     */
+    private static long expiresAt(JurlResponseSnapshot snapshot, long requestTime, long responseTime) {
+        final Map<String, String> cacheControl = cacheControl(snapshot.headers);
+        if (cacheControl.containsKey("no-cache")) {
+            return responseTime;
+        }
+        long lifetime = -1;
+        // a shared cache prefers s-maxage
+        String maxAge = cacheControl.get("s-maxage");
+        if (maxAge == null) {
+            maxAge = cacheControl.get("max-age");
+        }
+        if (maxAge != null) {
+            lifetime = parseSeconds(maxAge) * 1000;
+        } else {
+            final Date expires = parseDate(snapshot.getFirstHeader("Expires"));
+            if (expires != null) {
+                final Date date = parseDate(snapshot.getFirstHeader("Date"));
+                lifetime = expires.getTime() - (date != null ? date.getTime() : responseTime);
+            }
+        }
+        if (lifetime <= 0) {
+            return responseTime;
+        }
+        // how old the response already was when it arrived, from the Age header and the Date it was generated
+        long age = 0;
+        final Header ageHeader = snapshot.getFirstHeader("Age");
+        if (ageHeader != null) {
+            age = parseSeconds(ageHeader.getValue()) * 1000;
+        }
+        final Date date = parseDate(snapshot.getFirstHeader("Date"));
+        if (date != null) {
+            age = Math.max(age, responseTime - date.getTime());
+        }
+        age += responseTime - requestTime;
+        return responseTime + lifetime - age;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Date parseDate(Header header) {
+        return header != null ? DateUtils.parseDate(header.getValue()) : null;
+    }
+
+    /**
+     * The directives of every {@code Cache-Control} header, names lower-cased, values unquoted.
+     */
+    static Map<String, String> cacheControl(Header[] headers) {
+        Map<String, String> directives = Collections.emptyMap();
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase("Cache-Control")) {
+                if (directives.isEmpty()) {
+                    directives = new TreeMap<>();
+                }
+                for (String directive : header.getValue().split(",")) {
+                    final int equals = directive.indexOf('=');
+                    final String name = (equals < 0 ? directive : directive.substring(0, equals))
+                            .trim().toLowerCase(Locale.ROOT);
+                    String value = equals < 0 ? "" : directive.substring(equals + 1).trim();
+                    if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    if (!name.isEmpty()) {
+                        directives.put(name, value);
+                    }
+                }
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * A stored response, the request header values it varies on and when it goes stale.
+     */
+    static final class Entry {
+        final JurlResponseSnapshot snapshot;
+        final Map<String, String> varyValues;
+        final long expiresAt; // wall-clock ms
+        final long size;
+
+        Entry(JurlResponseSnapshot snapshot, Map<String, String> varyValues, long expiresAt) {
+            this.snapshot = snapshot;
+            this.varyValues = varyValues;
+            this.expiresAt = expiresAt;
+            long size = snapshot.size();
+            for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+                size += vary.getKey().length() + (vary.getValue() != null ? vary.getValue().length() : 0);
+            }
+            this.size = size;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        String getETag() {
+            final Header etag = snapshot.getFirstHeader("ETag");
+            return etag != null ? etag.getValue() : null;
+        }
+
+        String getLastModified() {
+            final Header lastModified = snapshot.getFirstHeader("Last-Modified");
+            return lastModified != null ? lastModified.getValue() : null;
+        }
+
+        boolean hasValidators() {
+            return getETag() != null || getLastModified() != null;
+        }
+
+        boolean matches(Function<String, String> requestHeaders) {
+            for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+                final String value = requestHeaders.apply(vary.getKey());
+                if (!(value == null ? vary.getValue() == null : value.equals(vary.getValue()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return String.format("JurlCache[%d entries, %d bytes, hits=%d, misses=%d, revalidated=%d]",
+                    memory.size(), memoryBytes, getHitCount(), getMissCount(), getRevalidatedCount());
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.alexwyler.jurl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Stops sending requests to an upstream that is failing, so callers fail fast with {@link JurlCircuitOpenException}
+ * instead of each waiting out timeouts and retries.  There is one circuit per key, the host and port by default:
+ * <ul>
+ * <li>CLOSED: requests flow, and their outcomes are counted over a sliding time window.  Once at least
+ * {@link #minimumCalls(int)} have been made in the window, a failure rate or slow-call rate at or over its threshold
+ * opens the circuit.</li>
+ * <li>OPEN: every request is rejected until {@link #openDuration(long)} has passed.</li>
+ * <li>HALF_OPEN: up to {@link #halfOpenCalls(int)} trial requests are let through.  One failure opens the circuit
+ * again; when all have succeeded it closes.</li>
+ * </ul>
+ * A failure is an exception or a 5xx response; a slow call is one that took at least {@link #slowCallDuration(long)}.
+ * Each attempt counts separately, so retries stop as soon as the circuit opens.
+ * <p>
+ * The window is a ring of time buckets with striped counters and state changes are compare-and-set, so recording an
+ * outcome never takes a lock.  One breaker is meant to be shared: {@code new Jurl().circuitBreaker(breaker)}.
+ */
+public class JurlCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 1.0;
+    private long slowCallDuration = TimeUnit.SECONDS.toMillis(10); // ms
+    private long window = TimeUnit.SECONDS.toMillis(10); // ms
+    private int windowBuckets = 10;
+    private int minimumCalls = 20;
+    private long openDuration = TimeUnit.SECONDS.toMillis(30); // ms
+    private int halfOpenCalls = 5;
+    private Function<Jurl, String> keyFunction = Jurl::getHostKey;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    /**
+     * Share of failed calls, from 0 to 1, that opens the circuit.  0.5 by default.
+     */
+    public JurlCircuitBreaker failureRateThreshold(double failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    /**
+     * Share of slow calls, from 0 to 1, that opens the circuit.  1 by default, so only when every call is slow.
+     */
+    public JurlCircuitBreaker slowCallRateThreshold(double slowCallRateThreshold) {
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        return this;
+    }
+
+    /**
+     * Duration in ms from which a call counts as slow.  10 seconds by default.
+     */
+    public JurlCircuitBreaker slowCallDuration(long slowCallDuration) {
+        this.slowCallDuration = slowCallDuration;
+        return this;
+    }
+
+    /**
+     * Length in ms of the sliding window of outcomes, and how many buckets it is divided into.  10 seconds in 10
+     * buckets by default; the window moves one bucket at a time.  Circuits already created keep the window they were
+     * created with until {@link #reset()}.
+     */
+    public JurlCircuitBreaker window(long window, int buckets) {
+        if (buckets < 1 || window < buckets) {
+            throw new IllegalArgumentException("Need at least one bucket of at least 1 ms.");
+        }
+        this.window = window;
+        this.windowBuckets = buckets;
+        return this;
+    }
+
+    /**
+     * Calls needed in the window before rates are considered.  20 by default.
+     */
+    public JurlCircuitBreaker minimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * Time in ms the circuit stays open before letting trial calls through.  30 seconds by default.
+     */
+    public JurlCircuitBreaker openDuration(long openDuration) {
+        this.openDuration = openDuration;
+        return this;
+    }
+
+    /**
+     * Trial calls let through when half open, all of which must succeed to close the circuit.  5 by default.
+     */
+    public JurlCircuitBreaker halfOpenCalls(int halfOpenCalls) {
+        this.halfOpenCalls = halfOpenCalls;
+        return this;
+    }
+
+    /**
+     * Which circuit a request belongs to.  The request's host and port by default.
+     */
+    public JurlCircuitBreaker keyFunction(Function<Jurl, String> keyFunction) {
+        this.keyFunction = keyFunction;
+        return this;
+    }
+
+    public State getState(String key) {
+        final Circuit circuit = circuits.get(key);
+        return circuit != null ? circuit.currentState() : State.CLOSED;
+    }
+
+    /**
+     * Closes every circuit and forgets their history.
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    /**
+     * The circuit for {@code jurl}, with a call admitted, or a {@link JurlCircuitOpenException} if it is open.  The
+     * caller must report the call's outcome to the returned circuit.
+     */
+    Circuit acquire(Jurl jurl) {
+        final String key = keyFunction.apply(jurl);
+        final Circuit circuit = circuits.computeIfAbsent(key, Circuit::new);
+        if (!circuit.tryAcquire()) {
+            throw new JurlCircuitOpenException(jurl, key);
+        }
+        return circuit;
+    }
+
+    private static final class Status {
+        final State state;
+        final long since; // System.nanoTime() when entered
+
+        Status(State state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+    }
+
+    private static final class Bucket {
+        final long epoch;
+        final LongAdder calls = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder slow = new LongAdder();
+
+        Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    final class Circuit {
+        private final String key;
+        private final AtomicReference<Status> status = new AtomicReference<>(new Status(State.CLOSED, 0));
+        private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(windowBuckets);
+        private final long bucketMillis = Math.max(1, window / buckets.length());
+        private final AtomicInteger trialPermits = new AtomicInteger();
+        private final AtomicInteger trialSuccesses = new AtomicInteger();
+
+        Circuit(String key) {
+            this.key = key;
+        }
+
+        State currentState() {
+            final Status current = status.get();
+            if (current.state == State.OPEN && System.nanoTime() - current.since >= openNanos()) {
+                return State.HALF_OPEN;
+            }
+            return current.state;
+        }
+
+        private long openNanos() {
+            return TimeUnit.MILLISECONDS.toNanos(openDuration);
+        }
+
+        boolean tryAcquire() {
+            while (true) {
+                final Status current = status.get();
+                switch (current.state) {
+                    case CLOSED:
+                        return true;
+                    case OPEN:
+                        if (System.nanoTime() - current.since < openNanos()) {
+                            return false;
+                        }
+                        if (status.compareAndSet(current, new Status(State.HALF_OPEN, System.nanoTime()))) {
+                            trialSuccesses.set(0);
+                            trialPermits.set(halfOpenCalls);
+                        }
+                        break;
+                    default:
+                        int permits;
+                        do {
+                            permits = trialPermits.get();
+                            if (permits <= 0) {
+                                return false;
+                            }
+                        } while (!trialPermits.compareAndSet(permits, permits - 1));
+                        return true;
+                }
+            }
+        }
+
+        /**
+         * Records a finished call that took {@code nanos}.
+         */
+        void onResult(long nanos, boolean failed) {
+            final boolean slow = nanos >= TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+            final Status current = status.get();
+            if (current.state == State.HALF_OPEN) {
+                if (failed || slow) {
+                    open(current);
+                } else if (trialSuccesses.incrementAndGet() >= halfOpenCalls) {
+                    close(current);
+                }
+                return;
+            }
+            if (current.state != State.CLOSED) {
+                return;
+            }
+            final Bucket bucket = bucket(System.nanoTime());
+            bucket.calls.increment();
+            if (failed) {
+                bucket.failures.increment();
+            }
+            if (slow) {
+                bucket.slow.increment();
+            }
+            if (failed || slow) {
+                // rates can only cross a threshold when a bad outcome is recorded
+                checkRates(current);
+            }
+        }
+
+        /**
+         * Gives back a half-open trial permit for a call that never reached the upstream.
+         */
+        void onIgnored() {
+            if (status.get().state == State.HALF_OPEN) {
+                trialPermits.incrementAndGet();
+            }
+        }
+
+        private void checkRates(Status current) {
+            final long now = bucketEpoch(System.nanoTime());
+            long calls = 0;
+            long failures = 0;
+            long slow = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                final Bucket bucket = buckets.get(i);
+                if (bucket != null && now - bucket.epoch < buckets.length()) {
+                    calls += bucket.calls.sum();
+                    failures += bucket.failures.sum();
+                    slow += bucket.slow.sum();
+                }
+            }
+            if (calls >= minimumCalls
+                    && ((double) failures / calls >= failureRateThreshold
+                    || (double) slow / calls >= slowCallRateThreshold)) {
+                open(current);
+            }
+        }
+
+        private long bucketEpoch(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos) / bucketMillis;
+        }
+
+        private Bucket bucket(long nanos) {
+            final long epoch = bucketEpoch(nanos);
+            final int index = (int) Math.floorMod(epoch, (long) buckets.length());
+            while (true) {
+                final Bucket bucket = buckets.get(index);
+                if (bucket != null && bucket.epoch == epoch) {
+                    return bucket;
+                }
+                // the slot still holds a bucket from a previous lap of the ring; replace it
+                final Bucket fresh = new Bucket(epoch);
+                if (buckets.compareAndSet(index, bucket, fresh)) {
+                    return fresh;
+                }
+            }
+        }
+
+        private void open(Status from) {
+            status.compareAndSet(from, new Status(State.OPEN, System.nanoTime()));
+        }
+
+        private void close(Status from) {
+            if (status.compareAndSet(from, new Status(State.CLOSED, System.nanoTime()))) {
+                for (int i = 0; i < buckets.length(); i++) {
+                    buckets.set(i, null);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + currentState();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.alexwyler.jurl;
+
+/**
+ * Thrown instead of sending a request while its {@link JurlCircuitBreaker} circuit is open.
+ */
+public class JurlCircuitOpenException extends RuntimeException {
+
+    public Jurl getJurlInstance() {
+        return jurlInstance;
+    }
+
+    public void setJurlInstance(Jurl jurlInstance) {
+        this.jurlInstance = jurlInstance;
+    }
+
+    public String getCircuitKey() {
+        return circuitKey;
+    }
+
+    private Jurl jurlInstance;
+    private final String circuitKey;
+
+    public JurlCircuitOpenException(Jurl jurlInstance, String circuitKey) {
+        super(String.format("Circuit %s is open for %s to %s",
+                circuitKey, jurlInstance.getMethod(), jurlInstance.getUrlWithParams()));
+        this.jurlInstance = jurlInstance;
+        this.circuitKey = circuitKey;
+    }
+}
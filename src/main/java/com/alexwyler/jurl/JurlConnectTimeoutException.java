@@ -0,0 +1,11 @@
+package com.alexwyler.jurl;
+
+/**
+ * Thrown when a connection could not be established within {@link Jurl#connectTimeout(long)}.
+ */
+public class JurlConnectTimeoutException extends JurlTimeoutException {
+
+    public JurlConnectTimeoutException(Jurl jurlInstance, Throwable cause) {
+        super(jurlInstance, "Timed out connecting", cause);
+    }
+}
@@ -0,0 +1,597 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.EntityAsyncContentProducer;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content codings for request and response bodies.  gzip and deflate come with the JDK; brotli is decoded when the
+ * pure-Java decoder ({@code org.brotli:dec}) is on the classpath, and only then is it advertised.
+ */
+final class JurlContentCoding {
+
+    private static final Constructor<?> BROTLI_INPUT_STREAM = findBrotli();
+
+    private JurlContentCoding() {
+    }
+
+    static boolean isBrotliSupported() {
+        return BROTLI_INPUT_STREAM != null;
+    }
+
+    /**
+     * The value of the {@code Accept-Encoding} header for the codings that can be decoded.
+     */
+    static String acceptEncoding() {
+        return isBrotliSupported() ? "gzip, deflate, br" : "gzip, deflate";
+    }
+
+    /**
+     * Whether {@link #decode} understands {@code encoding}.
+     */
+    static boolean canDecode(String encoding) {
+        switch (encoding.trim().toLowerCase(Locale.ROOT)) {
+            case "gzip":
+            case "x-gzip":
+            case "deflate":
+                return true;
+            case "br":
+                return isBrotliSupported();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Decodes {@code in} as it is read.  Nothing is read from {@code in} until the returned stream is, so a streamed
+     * response does not block here waiting for the start of the body.
+     */
+    static InputStream decode(String encoding, InputStream in) {
+        return new LazyInputStream(() -> {
+            switch (encoding.trim().toLowerCase(Locale.ROOT)) {
+                case "gzip":
+                case "x-gzip":
+                    return new GZIPInputStream(in, 8192);
+                case "deflate":
+                    // handles both zlib-wrapped and raw deflate, which servers send interchangeably
+                    return new DeflateInputStream(in);
+                case "br":
+                    return newBrotliInputStream(in);
+                default:
+                    throw new IOException("Unsupported Content-Encoding: " + encoding);
+            }
+        });
+    }
+
+    private static InputStream newBrotliInputStream(InputStream in) throws IOException {
+        try {
+            return (InputStream) BROTLI_INPUT_STREAM.newInstance(in);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Constructor<?> findBrotli() {
+        try {
+            return Class.forName("org.brotli.dec.BrotliInputStream").getConstructor(InputStream.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private static class LazyInputStream extends InputStream {
+        private final StreamOpener opener;
+        private InputStream in;
+
+        LazyInputStream(StreamOpener opener) {
+            this.opener = opener;
+        }
+
+        private InputStream in() throws IOException {
+            if (in == null) {
+                in = opener.open();
+            }
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in().read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return in().skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in == null ? 0 : in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Gzips a request body as it is written, recording the sizes before and after compression.  The compressed length
+     * is not known up front, so the body is sent chunked.  The non-blocking client pulls the body through
+     * {@link #produceContent}, which deflates one chunk at a time as the channel takes it.
+     */
+    static class GzipEntity extends HttpEntityWrapper implements HttpAsyncContentProducer {
+        private static final int CHUNK = 8192;
+
+        private volatile long uncompressedLength = -1;
+        private volatile long compressedLength = -1;
+        private GzipDeflater producing;
+        private HttpAsyncContentProducer producer;
+
+        GzipEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        long getUncompressedLength() {
+            return uncompressedLength;
+        }
+
+        long getCompressedLength() {
+            return compressedLength;
+        }
+
+        @Override
+        public org.apache.http.Header getContentEncoding() {
+            return new BasicHeader("Content-Encoding", "gzip");
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final InputStream source = wrappedEntity.getContent();
+            final GzipDeflater gzip = new GzipDeflater();
+            final byte[] chunk = new byte[CHUNK];
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    while (gzip.pending() == 0 && !gzip.isFinished()) {
+                        final int n = source.read(chunk);
+                        if (n < 0) {
+                            gzip.finish();
+                        } else {
+                            gzip.input(chunk, 0, n);
+                        }
+                    }
+                    if (gzip.pending() == 0) {
+                        return -1;
+                    }
+                    final int n = gzip.read(b, off, len);
+                    if (gzip.isFinished()) {
+                        uncompressedLength = gzip.getUncompressed();
+                        compressedLength = gzip.getCompressed();
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    gzip.end();
+                    source.close();
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            CountingOutputStream compressed = new CountingOutputStream(out) {
+                @Override
+                public void close() throws IOException {
+                    // the client closes the connection's stream itself once the entity is written
+                    flush();
+                }
+            };
+            CountingOutputStream uncompressed;
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, CHUNK)) {
+                uncompressed = new CountingOutputStream(gzip);
+                wrappedEntity.writeTo(uncompressed);
+            }
+            uncompressedLength = uncompressed.getCount();
+            compressedLength = compressed.getCount();
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            if (producing == null) {
+                producing = new GzipDeflater();
+                producer = wrappedEntity instanceof HttpAsyncContentProducer
+                        ? (HttpAsyncContentProducer) wrappedEntity : new EntityAsyncContentProducer(wrappedEntity);
+            }
+            final GzipDeflater gzip = producing;
+            final ContentEncoder deflating = new ContentEncoder() {
+                private final byte[] copy = new byte[CHUNK];
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    // a chunk at a time, so no more than one chunk's output waits on the channel
+                    final int n = Math.min(src.remaining(), CHUNK);
+                    if (src.hasArray()) {
+                        gzip.input(src.array(), src.arrayOffset() + src.position(), n);
+                        src.position(src.position() + n);
+                    } else {
+                        src.get(copy, 0, n);
+                        gzip.input(copy, 0, n);
+                    }
+                    return n;
+                }
+
+                @Override
+                public void complete() throws IOException {
+                    gzip.finish();
+                }
+
+                @Override
+                public boolean isCompleted() {
+                    return gzip.isFinished();
+                }
+            };
+            while (true) {
+                if (gzip.pending() > 0) {
+                    gzip.consumed(encoder.write(gzip.pendingBuffer()));
+                    if (gzip.pending() > 0) {
+                        // the channel is full; the client calls back when it can take more
+                        return;
+                    }
+                }
+                if (gzip.isFinished()) {
+                    uncompressedLength = gzip.getUncompressed();
+                    compressedLength = gzip.getCompressed();
+                    encoder.complete();
+                    close();
+                    return;
+                }
+                final long before = gzip.getUncompressed();
+                producer.produceContent(deflating, ioControl);
+                if (gzip.getUncompressed() == before && !gzip.isFinished()) {
+                    // the body has nothing more to give yet
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (producing != null) {
+                producing.end();
+                producing = null;
+            }
+            if (producer != null) {
+                producer.close();
+                producer = null;
+            }
+        }
+    }
+
+    /**
+     * Gzip framing around a raw {@link Deflater}, fed a chunk at a time, with the compressed bytes held until they are
+     * taken.  Holds no more than the output of the last chunk, however long the body.
+     */
+    private static final class GzipDeflater {
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[8192];
+        private byte[] output = new byte[8192];
+        private int start;
+        private int end;
+        private long uncompressed;
+        private long compressed;
+        private boolean finished;
+
+        GzipDeflater() {
+            append(HEADER, 0, HEADER.length);
+        }
+
+        long getUncompressed() {
+            return uncompressed;
+        }
+
+        /**
+         * Compressed bytes taken so far.
+         */
+        long getCompressed() {
+            return compressed;
+        }
+
+        boolean isFinished() {
+            return finished && pending() == 0;
+        }
+
+        int pending() {
+            return end - start;
+        }
+
+        ByteBuffer pendingBuffer() {
+            return ByteBuffer.wrap(output, start, end - start);
+        }
+
+        void consumed(int n) {
+            start += n;
+            compressed += n;
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+        }
+
+        int read(byte[] b, int off, int len) {
+            final int n = Math.min(len, pending());
+            System.arraycopy(output, start, b, off, n);
+            consumed(n);
+            return n;
+        }
+
+        void input(byte[] b, int off, int len) {
+            crc.update(b, off, len);
+            uncompressed += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        void finish() {
+            if (finished) {
+                return;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            deflater.end();
+            final byte[] trailer = new byte[8];
+            writeIntLE(trailer, 0, crc.getValue());
+            writeIntLE(trailer, 4, uncompressed);
+            append(trailer, 0, trailer.length);
+            finished = true;
+        }
+
+        void end() {
+            deflater.end();
+        }
+
+        private void deflate() {
+            final int n = deflater.deflate(buffer, 0, buffer.length);
+            append(buffer, 0, n);
+        }
+
+        private void append(byte[] b, int off, int len) {
+            if (output.length - end < len) {
+                final byte[] target = pending() + len <= output.length ? output : new byte[pending() + len];
+                System.arraycopy(output, start, target, 0, pending());
+                end = pending();
+                start = 0;
+                output = target;
+            }
+            System.arraycopy(b, off, output, end, len);
+            end += len;
+        }
+
+        private static void writeIntLE(byte[] b, int off, long value) {
+            for (int i = 0; i < 4; i++) {
+                b[off + i] = (byte) (value >>> (8 * i));
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of a request body of unknown length as it is written, whichever way the client pulls it: written
+     * to a stream, read from one, or produced to the non-blocking client's channel.
+     */
+    static class CountingEntity extends HttpEntityWrapper implements HttpAsyncContentProducer {
+        private volatile long count = -1;
+        private HttpAsyncContentProducer producer;
+
+        CountingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        /**
+         * Bytes written so far, or -1 before the body is sent.
+         */
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            count = 0;
+            return new CountingInputStream(wrappedEntity.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    count = getCount();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    count = getCount();
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            CountingOutputStream counting = new CountingOutputStream(out) {
+                @Override
+                public void close() throws IOException {
+                    // the client closes the connection's stream itself once the entity is written
+                    flush();
+                }
+            };
+            wrappedEntity.writeTo(counting);
+            counting.flush();
+            count = counting.getCount();
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            if (producer == null) {
+                producer = wrappedEntity instanceof HttpAsyncContentProducer
+                        ? (HttpAsyncContentProducer) wrappedEntity : new EntityAsyncContentProducer(wrappedEntity);
+                count = 0;
+            }
+            producer.produceContent(new ContentEncoder() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int n = encoder.write(src);
+                    count += n;
+                    return n;
+                }
+
+                @Override
+                public void complete() throws IOException {
+                    encoder.complete();
+                }
+
+                @Override
+                public boolean isCompleted() {
+                    return encoder.isCompleted();
+                }
+            }, ioControl);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (producer != null) {
+                producer.close();
+                producer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.util.PublicSuffixMatcher;
+import org.apache.http.conn.util.PublicSuffixMatcherLoader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cookies shared by many requests, kept and sent by the rules of RFC 6265: a cookie is sent back only to the hosts its
+ * domain covers, under its path, over https if it is secure, and until it expires.  A cookie without a domain goes back
+ * only to the host that set it.  Setting a cookie again with the same name, domain and path replaces it, and setting it
+ * already expired removes it.
+ * <p>
+ * Cookies are indexed by domain, so a request only looks at those of its host and the domains above it.  A cookie whose
+ * domain is a public suffix, such as {@code com} or {@code co.uk}, is only kept for the host that set it.  Thread safe;
+ * give one jar to every request of a session with {@code new Jurl().cookieJar(jar)}, or use a {@link JurlSession}.
+ * <p>
+ * A request with a jar reads and fills it at every hop of its redirects, so a cookie set by a redirect is kept, and each
+ * hop is only sent the cookies for its own URL.
+ */
+public class JurlCookieJar {
+
+    /**
+     * The attribute of an attempt's {@link HttpContext} holding the jar that {@link SendCookies} and
+     * {@link KeepCookies} use.
+     */
+    static final String CONTEXT_ATTRIBUTE = "jurl.cookie-jar";
+
+    private static final PublicSuffixMatcher PUBLIC_SUFFIXES = PublicSuffixMatcherLoader.getDefault();
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private final long id = IDS.incrementAndGet();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Stored>> domains = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Stores cookies set by a response to {@code uri}, ignoring any whose domain does not cover its host.
+     */
+    public void store(URI uri, List<HttpCookie> cookies) {
+        final String host = host(uri);
+        if (host == null) {
+            return;
+        }
+        for (HttpCookie cookie : cookies) {
+            store(host, uri.getPath(), cookie);
+        }
+    }
+
+    private void store(String host, String requestPath, HttpCookie cookie) {
+        String domain = cookie.getDomain();
+        boolean hostOnly = domain == null || domain.isEmpty();
+        if (!hostOnly) {
+            domain = domain.toLowerCase(Locale.ROOT);
+            if (domain.startsWith(".")) {
+                domain = domain.substring(1);
+            }
+            if (!domainMatches(host, domain)) {
+                return;
+            }
+            if (isPublicSuffix(domain)) {
+                // a cookie for every site under a suffix is refused; the suffix's own host may only set one for itself
+                if (!domain.equals(host)) {
+                    return;
+                }
+                hostOnly = true;
+            }
+        }
+        if (hostOnly) {
+            domain = host;
+        }
+        String path = cookie.getPath();
+        if (path == null || !path.startsWith("/")) {
+            path = defaultPath(requestPath);
+        }
+        final String key = cookie.getName() + ';' + path;
+        final long maxAge = cookie.getMaxAge();
+        if (maxAge == 0) {
+            final ConcurrentMap<String, Stored> cookies = domains.get(domain);
+            if (cookies != null) {
+                cookies.remove(key);
+            }
+            return;
+        }
+        final long expiresAt = maxAge < 0 ? Long.MAX_VALUE
+                : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(Math.min(maxAge, Long.MAX_VALUE / 2000));
+        final String storedDomain = domain;
+        final String storedPath = path;
+        final boolean storedHostOnly = hostOnly;
+        domains.computeIfAbsent(domain, d -> new ConcurrentHashMap<>()).compute(key, (k, replaced) ->
+                // a replaced cookie keeps its place in the order cookies are sent
+                new Stored(cookie.getName(), cookie.getValue(), storedDomain, storedPath, storedHostOnly, cookie.getSecure(),
+                        expiresAt, replaced != null ? replaced.created : sequence.incrementAndGet()));
+    }
+
+    /**
+     * The unexpired cookies to send to {@code uri}, longest path first.
+     */
+    public List<HttpCookie> getCookies(URI uri) {
+        final List<HttpCookie> cookies = new ArrayList<>();
+        for (Stored stored : matching(uri)) {
+            cookies.add(stored.toHttpCookie());
+        }
+        return cookies;
+    }
+
+    /**
+     * The {@code Cookie} header to send to {@code uri}, or null when no cookie applies.
+     */
+    public String getCookieHeader(URI uri) {
+        final List<Stored> matching = matching(uri);
+        if (matching.isEmpty()) {
+            return null;
+        }
+        final StringBuilder header = new StringBuilder();
+        for (Stored stored : matching) {
+            if (header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(stored.name).append('=').append(stored.value);
+        }
+        return header.toString();
+    }
+
+    private List<Stored> matching(URI uri) {
+        final List<Stored> matching = new ArrayList<>();
+        final String host = host(uri);
+        if (host == null) {
+            return matching;
+        }
+        final boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        final String path = uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath();
+        final long now = System.currentTimeMillis();
+        final boolean ipAddress = isIpAddress(host);
+        // the host itself, then each domain above it
+        for (String domain = host; domain != null; domain = parent(domain)) {
+            final ConcurrentMap<String, Stored> cookies = domains.get(domain);
+            if (cookies == null) {
+                continue;
+            }
+            for (Map.Entry<String, Stored> entry : cookies.entrySet()) {
+                final Stored stored = entry.getValue();
+                if (stored.expiresAt <= now) {
+                    // unless it has just been set again
+                    cookies.remove(entry.getKey(), stored);
+                } else if ((!stored.hostOnly || domain.equals(host)) && (secure || !stored.secure)
+                        && pathMatches(path, stored.path)) {
+                    matching.add(stored);
+                }
+            }
+            if (ipAddress) {
+                break;
+            }
+        }
+        matching.sort((a, b) -> a.path.length() != b.path.length()
+                ? b.path.length() - a.path.length()
+                : Long.compare(a.created, b.created));
+        return matching;
+    }
+
+    /**
+     * Every unexpired cookie in the jar.
+     */
+    public List<HttpCookie> getCookies() {
+        final long now = System.currentTimeMillis();
+        final List<HttpCookie> cookies = new ArrayList<>();
+        for (ConcurrentMap<String, Stored> domain : domains.values()) {
+            for (Stored stored : domain.values()) {
+                if (stored.expiresAt > now) {
+                    cookies.add(stored.toHttpCookie());
+                }
+            }
+        }
+        return cookies;
+    }
+
+    /**
+     * Drops every expired cookie.  Expired cookies are otherwise dropped when a request to their domain looks at them.
+     */
+    public void removeExpired() {
+        final long now = System.currentTimeMillis();
+        for (ConcurrentMap<String, Stored> domain : domains.values()) {
+            domain.values().removeIf(stored -> stored.expiresAt <= now);
+        }
+    }
+
+    public void clear() {
+        domains.clear();
+    }
+
+    /**
+     * Tells jars apart in {@link Jurl#coalesce(boolean)} keys, as requests with different jars cannot share a response.
+     */
+    long getId() {
+        return id;
+    }
+
+    private static String host(URI uri) {
+        final String host = uri.getHost();
+        if (host == null) {
+            return null;
+        }
+        final String lower = host.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".") ? lower.substring(0, lower.length() - 1) : lower;
+    }
+
+    private static String parent(String domain) {
+        final int dot = domain.indexOf('.');
+        return dot < 0 ? null : domain.substring(dot + 1);
+    }
+
+    private static boolean domainMatches(String host, String domain) {
+        if (host.equals(domain)) {
+            return true;
+        }
+        return !isIpAddress(host) && host.endsWith(domain) && host.charAt(host.length() - domain.length() - 1) == '.';
+    }
+
+    /**
+     * Whether {@code domain} is a single label or on the public suffix list, so covers sites of unrelated owners.
+     */
+    private static boolean isPublicSuffix(String domain) {
+        return domain.indexOf('.') < 0 || PUBLIC_SUFFIXES.matches(domain);
+    }
+
+    private static boolean isIpAddress(String host) {
+        return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    private static boolean pathMatches(String path, String cookiePath) {
+        if (!path.startsWith(cookiePath)) {
+            return false;
+        }
+        return path.length() == cookiePath.length() || cookiePath.endsWith("/")
+                || path.charAt(cookiePath.length()) == '/';
+    }
+
+    /**
+     * The directory of the request path, the path a cookie without one applies to.
+     */
+    private static String defaultPath(String path) {
+        if (path == null || !path.startsWith("/")) {
+            return "/";
+        }
+        final int slash = path.lastIndexOf('/');
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    /**
+     * The URL of the hop of a request that {@code context} was last used for.
+     */
+    private static URI hopUri(HttpRequest request, HttpContext context) {
+        if (!(request instanceof HttpUriRequest)) {
+            return null;
+        }
+        final URI uri = ((HttpUriRequest) request).getURI();
+        if (uri.isAbsolute()) {
+            return uri;
+        }
+        final HttpHost target = (HttpHost) context.getAttribute(HttpCoreContext.HTTP_TARGET_HOST);
+        try {
+            return target != null ? URIUtils.rewriteURI(uri, target, URIUtils.DROP_FRAGMENT_AND_NORMALIZE) : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the cookies of the jar in the context to each hop of a request, before any the request set itself.
+     */
+    static final class SendCookies implements HttpRequestInterceptor {
+        @Override
+        public void process(HttpRequest request, HttpContext context) {
+            final JurlCookieJar jar = (JurlCookieJar) context.getAttribute(CONTEXT_ATTRIBUTE);
+            final URI uri = jar != null ? hopUri(request, context) : null;
+            if (uri == null) {
+                return;
+            }
+            final String jarCookies = jar.getCookieHeader(uri);
+            if (jarCookies == null) {
+                return;
+            }
+            final Header own = request.getFirstHeader("Cookie");
+            request.setHeader("Cookie", own != null ? jarCookies + "; " + own.getValue() : jarCookies);
+        }
+    }
+
+    /**
+     * Keeps the cookies set by each hop of a request in the jar in the context, for the hop's own URL.
+     */
+    static final class KeepCookies implements HttpResponseInterceptor {
+        @Override
+        public void process(HttpResponse response, HttpContext context) {
+            final JurlCookieJar jar = (JurlCookieJar) context.getAttribute(CONTEXT_ATTRIBUTE);
+            if (jar == null) {
+                return;
+            }
+            final HttpRequest request = (HttpRequest) context.getAttribute(HttpCoreContext.HTTP_REQUEST);
+            final URI uri = request != null ? hopUri(request, context) : null;
+            if (uri == null) {
+                return;
+            }
+            for (Header header : response.getHeaders("Set-Cookie")) {
+                try {
+                    jar.store(uri, HttpCookie.parse(header.getValue()));
+                } catch (IllegalArgumentException e) {
+                    // a malformed cookie is ignored, as a browser would
+                }
+            }
+        }
+    }
+
+    private static final class Stored {
+        final String name;
+        final String value;
+        final String domain;
+        final String path;
+        final boolean hostOnly;
+        final boolean secure;
+        final long expiresAt; // ms since the epoch, Long.MAX_VALUE until the jar is discarded
+        final long created;
+
+        Stored(String name, String value, String domain, String path, boolean hostOnly, boolean secure,
+               long expiresAt, long created) {
+            this.name = name;
+            this.value = value;
+            this.domain = domain;
+            this.path = path;
+            this.hostOnly = hostOnly;
+            this.secure = secure;
+            this.expiresAt = expiresAt;
+            this.created = created;
+        }
+
+        HttpCookie toHttpCookie() {
+            final HttpCookie cookie = new HttpCookie(name, value);
+            if (!hostOnly) {
+                cookie.setDomain(domain);
+            }
+            cookie.setPath(path);
+            cookie.setSecure(secure);
+            if (expiresAt != Long.MAX_VALUE) {
+                cookie.setMaxAge(Math.max(0, TimeUnit.MILLISECONDS.toSeconds(expiresAt - System.currentTimeMillis())));
+            }
+            return cookie;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.alexwyler.jurl;
+
+/**
+ * Thrown when {@link Jurl#timeout(long)}, the deadline for the whole request including every retry attempt and the
+ * pauses between them, has passed.  Any request in flight at the deadline is aborted.
+ */
+public class JurlDeadlineExceededException extends JurlTimeoutException {
+
+    public JurlDeadlineExceededException(Jurl jurlInstance, Throwable cause) {
+        this(jurlInstance, jurlInstance.timeout, cause);
+    }
+
+    /**
+     * For a deadline other than the request's own, such as a {@link JurlBatch#timeout(long)}.
+     */
+    public JurlDeadlineExceededException(Jurl jurlInstance, long deadline, Throwable cause) {
+        super(jurlInstance, String.format("Exceeded the %d ms deadline", deadline), cause);
+    }
+}
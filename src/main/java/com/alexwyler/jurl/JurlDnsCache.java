@@ -0,0 +1,208 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DNS resolver that remembers answers for its own time to live, independent of the JVM's global DNS cache settings,
+ * for use with {@link JurlEngine#dnsResolver(DnsResolver)}:
+ * <ul>
+ * <li>Answers are kept for {@link #positiveTtl(long)}, and failed lookups for {@link #negativeTtl(long)}, so an
+ * unknown host is not looked up on every attempt.</li>
+ * <li>Once an answer is older than {@link #refreshAfter(double)} of its time to live, the next lookup still returns it
+ * at once but refreshes it in the background, so requests to a busy host never wait on the resolver.  If the refresh
+ * fails the answer is kept until it expires.</li>
+ * <li>Concurrent lookups of a host that is not cached share one query to the resolver.</li>
+ * </ul>
+ * Thread safe.  One cache is meant to be shared by all the engines of an application.
+ */
+public class JurlDnsCache implements DnsResolver {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final DnsResolver delegate;
+    private long positiveTtl = TimeUnit.SECONDS.toMillis(60); // ms
+    private long negativeTtl = TimeUnit.SECONDS.toMillis(5); // ms
+    private double refreshAfter = 0.75;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+    private volatile ExecutorService refresher;
+
+    public JurlDnsCache() {
+        this(SystemDefaultDnsResolver.INSTANCE);
+    }
+
+    /**
+     * A cache in front of {@code delegate}.
+     */
+    public JurlDnsCache(DnsResolver delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * How long in ms an answer is used for.  60 seconds by default.
+     */
+    public JurlDnsCache positiveTtl(long positiveTtl) {
+        this.positiveTtl = positiveTtl;
+        return this;
+    }
+
+    /**
+     * How long in ms a failed lookup is remembered for, or 0 not to remember them.  5 seconds by default.
+     */
+    public JurlDnsCache negativeTtl(long negativeTtl) {
+        this.negativeTtl = negativeTtl;
+        return this;
+    }
+
+    /**
+     * Share of the positive time to live, from 0 to 1, after which an answer is refreshed in the background the next
+     * time it is used.  0.75 by default; 1 never refreshes early.
+     */
+    public JurlDnsCache refreshAfter(double refreshAfter) {
+        if (refreshAfter <= 0 || refreshAfter > 1) {
+            throw new IllegalArgumentException("refreshAfter must be above 0 and at most 1");
+        }
+        this.refreshAfter = refreshAfter;
+        return this;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        final long now = System.nanoTime();
+        final Entry entry = entries.get(host);
+        if (entry != null && entry.expiresAt - now > 0) {
+            if (entry.addresses != null && entry.refreshAt - now <= 0 && entry.refreshing.compareAndSet(false, true)) {
+                getRefresher().execute(() -> refresh(host, entry));
+            }
+            return entry.get();
+        }
+        return lookUp(host).get();
+    }
+
+    /**
+     * Queries the resolver for {@code host}, or joins a query already under way, and caches the answer.
+     */
+    private Entry lookUp(String host) throws UnknownHostException {
+        final CompletableFuture<Entry> lookup = new CompletableFuture<>();
+        final CompletableFuture<Entry> existing = lookups.putIfAbsent(host, lookup);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw (RuntimeException) e.getCause();
+            }
+        }
+        try {
+            final Entry entry = query(host);
+            if (entry.expiresAt - entry.createdAt > 0) {
+                entries.put(host, entry);
+            }
+            lookup.complete(entry);
+            return entry;
+        } catch (RuntimeException | Error e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            lookups.remove(host, lookup);
+        }
+    }
+
+    private Entry query(String host) {
+        try {
+            return new Entry(delegate.resolve(host), null, positiveTtl);
+        } catch (UnknownHostException e) {
+            return new Entry(null, e, negativeTtl);
+        }
+    }
+
+    private void refresh(String host, Entry stale) {
+        try {
+            final Entry entry = query(host);
+            if (entry.addresses != null) {
+                entries.replace(host, stale, entry);
+                return;
+            }
+        } catch (RuntimeException e) {
+            // as if the lookup had failed
+        }
+        // keep the answer we have until it expires
+        stale.refreshing.set(false);
+    }
+
+    private ExecutorService getRefresher() {
+        if (refresher == null) {
+            synchronized (this) {
+                if (refresher == null) {
+                    refresher = Executors.newCachedThreadPool(runnable -> {
+                        final Thread thread = new Thread(runnable, "jurl-dns-" + THREADS.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return refresher;
+    }
+
+    /**
+     * The cached answer for {@code host}, whether fresh or not, or null.
+     */
+    public InetAddress[] getCached(String host) {
+        final Entry entry = entries.get(host);
+        return entry != null && entry.addresses != null ? entry.addresses.clone() : null;
+    }
+
+    /**
+     * Forgets {@code host}, so it is looked up again next time.
+     */
+    public void invalidate(String host) {
+        entries.remove(host);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private final class Entry {
+        final InetAddress[] addresses;
+        final UnknownHostException failure;
+        final long createdAt = System.nanoTime();
+        final long refreshAt;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, UnknownHostException failure, long ttl) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = createdAt + TimeUnit.MILLISECONDS.toNanos(ttl);
+            this.refreshAt = createdAt + (long) (TimeUnit.MILLISECONDS.toNanos(ttl) * refreshAfter);
+        }
+
+        InetAddress[] get() throws UnknownHostException {
+            if (addresses == null) {
+                // a fresh exception, so each caller gets its own stack trace
+                final UnknownHostException e = new UnknownHostException(failure.getMessage());
+                e.initCause(failure);
+                throw e;
+            }
+            return addresses.clone();
+        }
+    }
+}
@@ -0,0 +1,685 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.annotation.Contract;
+import org.apache.http.annotation.ThreadingBehavior;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLContext;
+
+/**
+ * The shared HTTP client that {@link Jurl#go()} runs on.  An engine owns a pooled connection manager, so TCP and TLS
+ * connections are kept alive and reused across requests instead of being re-established for every attempt.
+ * <p>
+ * An engine is configured with its fluent setters and lazily started on first use; after that its configuration is
+ * fixed.  Engines are thread-safe and meant to be long-lived: use {@link Jurl#setDefaultEngine(JurlEngine)} to replace
+ * the global engine, or {@link Jurl#engine(JurlEngine)} for a single request.
+ */
+public class JurlEngine implements Closeable {
+
+    int maxTotal = 200;
+    int maxPerRoute = 20;
+    long keepAlive = TimeUnit.SECONDS.toMillis(30); // ms, used when the server sends no Keep-Alive timeout
+    long maxIdle = TimeUnit.SECONDS.toMillis(30); // ms
+    long timeToLive = -1; // ms, -1 for no limit
+    int validateAfterInactivity = 2000; // ms
+    int ioThreads = Runtime.getRuntime().availableProcessors();
+    boolean http2 = false;
+    DnsResolver dnsResolver = SystemDefaultDnsResolver.INSTANCE;
+    long connectAttemptDelay = -1; // ms, -1 to connect to one address at a time
+    SSLContext sslContext;
+    KeyStore trustStore;
+    KeyStore keyStore;
+    char[] keyPassword;
+    int sslSessionCacheSize = -1; // -1 for the JVM's default
+    int sslSessionTimeout = -1; // s, -1 for the JVM's default
+
+    private final Lock lock = new ReentrantLock();
+    private volatile PoolingHttpClientConnectionManager connectionManager;
+    private volatile CloseableHttpClient httpClient;
+    private volatile ScheduledThreadPoolExecutor scheduler;
+    private volatile PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private volatile CloseableHttpAsyncClient asyncClient;
+    private volatile JurlHttp2Client http2Client;
+    private volatile SSLContext startedSslContext;
+    private final JurlTimings.TlsStats tlsStats = new JurlTimings.TlsStats();
+    private volatile boolean closed;
+    private final ConcurrentMap<String, CompletableFuture<JurlResponseSnapshot>> flights = new ConcurrentHashMap<>();
+    private final List<JurlListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Maximum number of pooled connections across all hosts.
+     */
+    public JurlEngine maxTotal(int maxTotal) {
+        assertNotStarted();
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    /**
+     * Maximum number of pooled connections to a single host (route).
+     */
+    public JurlEngine maxPerRoute(int maxPerRoute) {
+        assertNotStarted();
+        this.maxPerRoute = maxPerRoute;
+        return this;
+    }
+
+    /**
+     * How long an idle connection is kept alive when the server does not say otherwise with a {@code Keep-Alive}
+     * header.
+     */
+    public JurlEngine keepAlive(long keepAlive) {
+        assertNotStarted();
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Connections idle for longer than this are evicted from the pool by a background thread.
+     */
+    public JurlEngine maxIdle(long maxIdle) {
+        assertNotStarted();
+        this.maxIdle = maxIdle;
+        return this;
+    }
+
+    /**
+     * Total lifetime of a pooled connection, regardless of activity.  -1 for no limit.
+     */
+    public JurlEngine timeToLive(long timeToLive) {
+        assertNotStarted();
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * Connections idle for longer than this are checked for staleness before being leased again.
+     */
+    public JurlEngine validateAfterInactivity(int validateAfterInactivity) {
+        assertNotStarted();
+        this.validateAfterInactivity = validateAfterInactivity;
+        return this;
+    }
+
+    /**
+     * Number of I/O dispatch threads used by the non-blocking client.  Each one multiplexes many connections.
+     */
+    public JurlEngine ioThreads(int ioThreads) {
+        assertNotStarted();
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    /**
+     * Sends requests on this engine over HTTP/2 where the server supports it, multiplexing concurrent requests to a host
+     * over one connection.  Uses the JDK's HTTP client, so needs Java 11 or later; the pool settings above then do not
+     * apply, and per-attempt connect and lease timeouts are bounded only by the deadline.
+     *
+     * @throws UnsupportedOperationException on Java 8
+     */
+    public JurlEngine http2(boolean http2) {
+        assertNotStarted();
+        if (http2) {
+            JurlHttp2Client.assertSupported();
+        }
+        this.http2 = http2;
+        return this;
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * Resolves host names for both clients, e.g. a {@link JurlDnsCache}.  The JVM's resolver by default.
+     */
+    public JurlEngine dnsResolver(DnsResolver dnsResolver) {
+        assertNotStarted();
+        this.dnsResolver = dnsResolver;
+        return this;
+    }
+
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * Races connections to the addresses of hosts that have several, alternating IPv6 and IPv4, starting another every
+     * {@code connectAttemptDelay} ms until one connects (RFC 8305, "Happy Eyeballs").  250 ms is typical; -1, the
+     * default, tries one address at a time, each for the whole connect timeout.  Applies to the blocking client only;
+     * the non-blocking client moves on to the next address only when one fails.
+     */
+    public JurlEngine happyEyeballs(long connectAttemptDelay) {
+        assertNotStarted();
+        this.connectAttemptDelay = connectAttemptDelay;
+        return this;
+    }
+
+    /**
+     * The TLS context for both clients and HTTP/2, instead of one built from the settings below.  Every connection the
+     * engine opens shares it, and with it the cache of TLS sessions that new connections to a host resume.
+     */
+    public JurlEngine sslContext(SSLContext sslContext) {
+        assertNotStarted();
+        this.sslContext = sslContext;
+        return this;
+    }
+
+    /**
+     * The TLS context connections use, once the engine has started.
+     */
+    public SSLContext getSslContext() {
+        start();
+        return startedSslContext;
+    }
+
+    /**
+     * Trusts only the certificates in {@code trustStore}, instead of the JVM's default trust store, e.g. for a partner
+     * with a private certificate authority.
+     */
+    public JurlEngine trustMaterial(KeyStore trustStore) {
+        assertNotStarted();
+        this.trustStore = trustStore;
+        return this;
+    }
+
+    /**
+     * Presents the client certificate in {@code keyStore} to servers that ask for one (mutual TLS).
+     *
+     * @param keyPassword the password of the private key
+     */
+    public JurlEngine keyMaterial(KeyStore keyStore, char[] keyPassword) {
+        assertNotStarted();
+        this.keyStore = keyStore;
+        this.keyPassword = keyPassword;
+        return this;
+    }
+
+    /**
+     * Maximum number of TLS sessions kept for resumption, or 0 for no limit.  The JVM's default otherwise.
+     */
+    public JurlEngine sslSessionCacheSize(int sslSessionCacheSize) {
+        assertNotStarted();
+        this.sslSessionCacheSize = sslSessionCacheSize;
+        return this;
+    }
+
+    /**
+     * How long in seconds a TLS session can be resumed for, or 0 for no limit.  The JVM's default, 24 hours, otherwise.
+     */
+    public JurlEngine sslSessionTimeout(int sslSessionTimeout) {
+        assertNotStarted();
+        this.sslSessionTimeout = sslSessionTimeout;
+        return this;
+    }
+
+    /**
+     * TLS handshakes done by this engine's HTTP/1.1 clients, full and resumed.
+     */
+    public long getTlsHandshakeCount() {
+        return tlsStats.handshakes.sum();
+    }
+
+    /**
+     * Of {@link #getTlsHandshakeCount()}, the handshakes that resumed an earlier session.
+     */
+    public long getTlsResumedCount() {
+        return tlsStats.resumed.sum();
+    }
+
+    /**
+     * Tells {@code listener} about every request run on this engine.  Unlike the settings above, listeners can be added
+     * at any time.
+     */
+    public JurlEngine listener(JurlListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public List<JurlListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Whether the running JVM can send HTTP/2 with {@link #http2(boolean)}.
+     */
+    public static boolean isHttp2Supported() {
+        return JurlHttp2Client.isSupported();
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        start();
+        return httpClient;
+    }
+
+    public PoolingHttpClientConnectionManager getConnectionManager() {
+        start();
+        return connectionManager;
+    }
+
+    /**
+     * The non-blocking client used by {@link Jurl#nonBlocking(boolean)} requests.  It has its own connection pool, with
+     * the same limits as the blocking one, and is only started the first time it is needed.
+     */
+    public CloseableHttpAsyncClient getAsyncClient() {
+        startAsync();
+        return asyncClient;
+    }
+
+    /**
+     * The client used for every request, blocking or not, when {@link #http2(boolean)} is set.
+     */
+    JurlHttp2Client getHttp2Client() {
+        start();
+        return http2Client;
+    }
+
+    public PoolingNHttpClientConnectionManager getAsyncConnectionManager() {
+        startAsync();
+        return asyncConnectionManager;
+    }
+
+    /**
+     * A small daemon scheduler for timed work around requests, such as aborting a request at its deadline.  Tasks run
+     * on it must be short and non-blocking.
+     */
+    public ScheduledExecutorService getScheduler() {
+        start();
+        return scheduler;
+    }
+
+    public PoolStats getTotalStats() {
+        return getConnectionManager().getTotalStats();
+    }
+
+    /**
+     * Requests in flight that identical requests can join, by {@link Jurl#coalesce(boolean)} key.
+     */
+    ConcurrentMap<String, CompletableFuture<JurlResponseSnapshot>> getFlights() {
+        return flights;
+    }
+
+    public boolean isStarted() {
+        return httpClient != null;
+    }
+
+    /**
+     * Builds the connection pool and client.  Called automatically on first use.
+     */
+    public JurlEngine start() {
+        if (httpClient != null) {
+            return this;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("JurlEngine has been closed.");
+            }
+            if (httpClient == null) {
+                scheduler = createScheduler();
+                startedSslContext = createSslContext();
+                connectionManager = createConnectionManager();
+                if (http2) {
+                    http2Client = new JurlHttp2Client(startedSslContext);
+                }
+                httpClient = createHttpClientBuilder(connectionManager).build();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    private void startAsync() {
+        if (asyncClient != null) {
+            return;
+        }
+        start();
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("JurlEngine has been closed.");
+            }
+            if (asyncClient == null) {
+                final PoolingNHttpClientConnectionManager manager = createAsyncConnectionManager();
+                final CloseableHttpAsyncClient client = createHttpAsyncClientBuilder(manager).build();
+                client.start();
+                // the non-blocking client has no evictor thread of its own
+                scheduler.scheduleWithFixedDelay(() -> {
+                    manager.closeExpiredConnections();
+                    manager.closeIdleConnections(maxIdle, TimeUnit.MILLISECONDS);
+                }, maxIdle, maxIdle, TimeUnit.MILLISECONDS);
+                asyncConnectionManager = manager;
+                asyncClient = client;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected ScheduledThreadPoolExecutor createScheduler() {
+        final AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "jurl-scheduler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Builds the TLS context shared by all connections, from {@link #sslContext(SSLContext)} or the trust and key
+     * material, and applies the session cache settings to it.
+     */
+    protected SSLContext createSslContext() {
+        SSLContext context = sslContext;
+        if (context == null) {
+            try {
+                final SSLContextBuilder builder = SSLContexts.custom();
+                if (trustStore != null) {
+                    builder.loadTrustMaterial(trustStore, null);
+                }
+                if (keyStore != null) {
+                    builder.loadKeyMaterial(keyStore, keyPassword);
+                }
+                context = builder.build();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not set up TLS: " + e.getMessage(), e);
+            }
+        }
+        if (sslSessionCacheSize >= 0) {
+            context.getClientSessionContext().setSessionCacheSize(sslSessionCacheSize);
+        }
+        if (sslSessionTimeout >= 0) {
+            context.getClientSessionContext().setSessionTimeout(sslSessionTimeout);
+        }
+        return context;
+    }
+
+    protected PoolingHttpClientConnectionManager createConnectionManager() {
+        PoolingHttpClientConnectionManager manager = new GatedConnectionManager(timeToLive, maxTotal, maxPerRoute,
+                dnsResolver, connectAttemptDelay >= 0 ? new JurlHappyEyeballs(dnsResolver, connectAttemptDelay) : null,
+                startedSslContext, tlsStats);
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+        manager.setValidateAfterInactivity(validateAfterInactivity);
+        return manager;
+    }
+
+    protected PoolingNHttpClientConnectionManager createAsyncConnectionManager() {
+        final PoolingNHttpClientConnectionManager manager;
+        try {
+            final DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                    .setIoThreadCount(ioThreads)
+                    .build());
+            final Registry<SchemeIOSessionStrategy> ioSessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                    .register("http", NoopIOSessionStrategy.INSTANCE)
+                    .register("https", new JurlTimings.CountingSslStrategy(startedSslContext, tlsStats))
+                    .build();
+            manager = new PoolingNHttpClientConnectionManager(ioReactor, null, ioSessionStrategies,
+                    null, dnsResolver, timeToLive, TimeUnit.MILLISECONDS);
+        } catch (IOReactorException e) {
+            throw new RuntimeException(e);
+        }
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+        return manager;
+    }
+
+    /**
+     * Extension point for customizing the underlying client.  The client's own cookie store is never used because the
+     * engine is shared; {@link Jurl} supplies a fresh cookie store with every attempt instead.
+     */
+    protected HttpClientBuilder createHttpClientBuilder(PoolingHttpClientConnectionManager connectionManager) {
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new DefaultKeepAliveStrategy(keepAlive))
+                .setRedirectStrategy(new FollowAllRedirectStrategy())
+                .setRequestExecutor(new JurlTimings.TimedRequestExecutor())
+                .addInterceptorLast(new JurlCookieJar.SendCookies())
+                .addInterceptorLast(new JurlCookieJar.KeepCookies())
+                // otherwise connections authenticated with a client certificate are tied to its principal, and never
+                // leased again; an engine has a single TLS identity
+                .disableConnectionState()
+                // Jurl negotiates and decodes compression itself, the same way on both clients
+                .disableContentCompression()
+                // Jurl retries each attempt itself, under its retry policy and budget
+                .disableAutomaticRetries()
+                .evictExpiredConnections()
+                .evictIdleConnections(maxIdle, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Extension point for customizing the underlying non-blocking client.
+     */
+    protected HttpAsyncClientBuilder createHttpAsyncClientBuilder(PoolingNHttpClientConnectionManager connectionManager) {
+        return HttpAsyncClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new DefaultKeepAliveStrategy(keepAlive))
+                .setRedirectStrategy(new FollowAllRedirectStrategy())
+                .addInterceptorLast(new JurlCookieJar.SendCookies())
+                .addInterceptorLast(new JurlCookieJar.KeepCookies())
+                .disableConnectionState();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            if (httpClient != null) {
+                httpClient.close();
+            }
+            if (asyncClient != null) {
+                asyncClient.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void assertNotStarted() {
+        if (httpClient != null) {
+            throw new IllegalStateException("JurlEngine cannot be reconfigured after it has started.");
+        }
+    }
+
+    /**
+     * Queues lease requests on semaphores before they reach the pool.  HttpClient's pool waits for a free connection
+     * inside a {@code synchronized} block, which pins a virtual thread to its carrier; with many virtual threads waiting
+     * on an exhausted pool, that can starve the very threads that would release connections.  Waiting here instead
+     * parks without pinning, and by the time a request reaches the pool a connection is guaranteed to be free.
+     */
+    static class GatedConnectionManager extends PoolingHttpClientConnectionManager {
+
+        private final Semaphore totalPermits;
+        private final int maxPerRoute;
+        private final ConcurrentMap<HttpRoute, Semaphore> routePermits = new ConcurrentHashMap<>();
+        private final ConcurrentMap<HttpClientConnection, Semaphore> leased = new ConcurrentHashMap<>();
+
+        GatedConnectionManager(long timeToLive, int maxTotal, int maxPerRoute, DnsResolver dnsResolver,
+                               JurlHappyEyeballs happyEyeballs, SSLContext sslContext,
+                               JurlTimings.TlsStats tlsStats) {
+            super(RegistryBuilder.<ConnectionSocketFactory>create()
+                            .register("http", new JurlTimings.TimedPlainSocketFactory(happyEyeballs))
+                            .register("https", new JurlTimings.TimedSslSocketFactory(sslContext, happyEyeballs,
+                                    tlsStats))
+                            .build(),
+                    null, null, new JurlTimings.TimedDnsResolver(dnsResolver), timeToLive, TimeUnit.MILLISECONDS);
+            this.totalPermits = new Semaphore(maxTotal, true);
+            this.maxPerRoute = maxPerRoute;
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+            final Semaphore permits = routePermits.computeIfAbsent(route, r -> new Semaphore(maxPerRoute, true));
+            return new ConnectionRequest() {
+
+                private volatile ConnectionRequest delegate;
+                private volatile boolean cancelled;
+
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    final long start = System.nanoTime();
+                    try {
+                        return lease(timeout, timeUnit);
+                    } finally {
+                        JurlTimings.record(JurlMetrics.Phase.LEASE, start);
+                    }
+                }
+
+                private HttpClientConnection lease(long timeout, TimeUnit timeUnit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    final long deadline = timeout > 0 ? System.nanoTime() + timeUnit.toNanos(timeout) : Long.MAX_VALUE;
+                    acquire(permits, deadline);
+                    try {
+                        acquire(totalPermits, deadline);
+                    } catch (InterruptedException | ConnectionPoolTimeoutException e) {
+                        permits.release();
+                        throw e;
+                    }
+                    try {
+                        if (cancelled) {
+                            throw new InterruptedException("Connection request cancelled");
+                        }
+                        delegate = GatedConnectionManager.super.requestConnection(route, state);
+                        final HttpClientConnection connection = delegate.get(
+                                deadline == Long.MAX_VALUE ? 0 : Math.max(1, remainingNanos(deadline)),
+                                TimeUnit.NANOSECONDS);
+                        leased.put(connection, permits);
+                        return connection;
+                    } catch (InterruptedException | ExecutionException | ConnectionPoolTimeoutException
+                            | RuntimeException e) {
+                        permits.release();
+                        totalPermits.release();
+                        throw e;
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    cancelled = true;
+                    final ConnectionRequest request = delegate;
+                    return request == null || request.cancel();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(HttpClientConnection connection, Object newState, long keepAlive,
+                                      TimeUnit timeUnit) {
+            try {
+                super.releaseConnection(connection, newState, keepAlive, timeUnit);
+            } finally {
+                final Semaphore permits = leased.remove(connection);
+                if (permits != null) {
+                    permits.release();
+                    totalPermits.release();
+                }
+            }
+        }
+
+        private static void acquire(Semaphore semaphore, long deadline)
+                throws InterruptedException, ConnectionPoolTimeoutException {
+            if (deadline == Long.MAX_VALUE) {
+                semaphore.acquire();
+            } else if (!semaphore.tryAcquire(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                throw new ConnectionPoolTimeoutException("Timeout waiting for connection from pool");
+            }
+        }
+
+        private static long remainingNanos(long deadline) {
+            return deadline - System.nanoTime();
+        }
+    }
+
+    @Contract(threading = ThreadingBehavior.IMMUTABLE)
+    static class DefaultKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final long defaultKeepAlive;
+
+        DefaultKeepAliveStrategy(long defaultKeepAlive) {
+            this.defaultKeepAlive = defaultKeepAlive;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return TimeUnit.SECONDS.toMillis(Long.parseLong(element.getValue()));
+                    } catch (NumberFormatException e) {
+                        // fall through to the default
+                    }
+                }
+            }
+            return defaultKeepAlive;
+        }
+    }
+
+    /**
+     * Follows redirects for every method.  Whether a given request follows redirects at all is decided per request by
+     * {@link Jurl#followRedirects(boolean)}.
+     */
+    @Contract(threading = ThreadingBehavior.IMMUTABLE)
+    static class FollowAllRedirectStrategy extends DefaultRedirectStrategy {
+        @Override
+        protected boolean isRedirectable(String method) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.DnsResolver;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to a host with several addresses by racing them, after RFC 8305 ("Happy Eyeballs"): addresses are tried in
+ * turn, alternating IPv6 and IPv4, each starting when the one before has failed or has not connected within the attempt
+ * delay, and the first to connect wins.  A host whose first address is unreachable then costs one attempt delay
+ * instead of a whole connect timeout.
+ * <p>
+ * HttpClient tries the addresses of a host one after another, calling the socket factory for each, so only the call
+ * for the first address races; if every address fails, later calls connect plainly and fail fast.
+ */
+final class JurlHappyEyeballs {
+
+    private final DnsResolver resolver;
+    private final long attemptDelay; // ns
+
+    JurlHappyEyeballs(DnsResolver resolver, long attemptDelay) {
+        this.resolver = resolver;
+        this.attemptDelay = TimeUnit.MILLISECONDS.toNanos(attemptDelay);
+    }
+
+    /**
+     * The addresses to race when HttpClient asks to connect {@code hostName} to {@code remoteAddress}, or null to
+     * connect to it alone.
+     */
+    InetAddress[] getRace(String hostName, InetSocketAddress remoteAddress) {
+        final InetAddress[] addresses;
+        try {
+            addresses = resolver.resolve(hostName);
+        } catch (IOException e) {
+            return null;
+        }
+        if (addresses.length < 2 || !addresses[0].equals(remoteAddress.getAddress())) {
+            return null;
+        }
+        return interleave(addresses);
+    }
+
+    /**
+     * Orders {@code addresses} alternating between families, starting with the family of the first.
+     */
+    static InetAddress[] interleave(InetAddress[] addresses) {
+        final boolean firstIs6 = addresses[0] instanceof Inet6Address;
+        final List<InetAddress> same = new ArrayList<>();
+        final List<InetAddress> other = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address == firstIs6 ? same : other).add(address);
+        }
+        final InetAddress[] ordered = new InetAddress[addresses.length];
+        int i = 0;
+        for (int j = 0; j < Math.max(same.size(), other.size()); j++) {
+            if (j < same.size()) {
+                ordered[i++] = same.get(j);
+            }
+            if (j < other.size()) {
+                ordered[i++] = other.get(j);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Races connections to {@code addresses} on {@code port}, returning the winner, connected and blocking, with the
+     * options already set on {@code template}, which is closed.
+     */
+    Socket connect(InetAddress[] addresses, int port, int connectTimeout, Socket template,
+                   InetSocketAddress localAddress) throws IOException {
+        final long deadline = connectTimeout > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeout) : Long.MAX_VALUE;
+        final List<SocketChannel> attempts = new ArrayList<>();
+        SocketChannel winner = null;
+        IOException failure = null;
+        int next = 0;
+        long nextStart = System.nanoTime();
+        try (Selector selector = Selector.open()) {
+            while (winner == null) {
+                final long now = System.nanoTime();
+                if (next < addresses.length && (now - nextStart >= 0 || attempts.isEmpty())) {
+                    final SocketChannel channel = SocketChannel.open();
+                    attempts.add(channel);
+                    try {
+                        channel.configureBlocking(false);
+                        if (localAddress != null) {
+                            channel.bind(localAddress);
+                        }
+                        if (channel.connect(new InetSocketAddress(addresses[next++], port))) {
+                            winner = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT);
+                    } catch (IOException e) {
+                        failure = e;
+                        attempts.remove(channel);
+                        channel.close();
+                        continue;
+                    }
+                    nextStart = now + attemptDelay;
+                }
+                if (attempts.isEmpty()) {
+                    throw failure != null ? failure : new ConnectException("No address to connect to");
+                }
+                if (deadline - now <= 0) {
+                    throw new ConnectTimeoutException("Connect to " + Arrays.toString(addresses) + " timed out");
+                }
+                final long until = next < addresses.length && nextStart - deadline < 0 ? nextStart : deadline;
+                final long wait = until == Long.MAX_VALUE ? 0 : TimeUnit.NANOSECONDS.toMillis(until - now);
+                selector.select(until == Long.MAX_VALUE ? 0 : Math.max(1, wait));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    final SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        // refused or unreachable; start the next address now rather than after the delay
+                        failure = e;
+                        key.cancel();
+                        attempts.remove(channel);
+                        channel.close();
+                        nextStart = System.nanoTime();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel attempt : attempts) {
+                if (attempt != winner) {
+                    closeQuietly(attempt);
+                }
+            }
+        }
+        // closing the selector deregistered it, so it can block again
+        try {
+            winner.configureBlocking(true);
+            final Socket socket = winner.socket();
+            socket.setSoTimeout(template.getSoTimeout());
+            socket.setTcpNoDelay(template.getTcpNoDelay());
+            socket.setKeepAlive(template.getKeepAlive());
+            if (template.getSoLinger() >= 0) {
+                socket.setSoLinger(true, template.getSoLinger());
+            }
+            template.close();
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(winner);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * HTTP headers as a multimap with case-insensitive names, kept in the order they were added.  Entries live in parallel
+ * arrays, and an open-addressed hash table points each distinct name at its first entry, so a lookup hashes the name
+ * once without lower-casing it and never scans the other headers.  Repeated names are chained.
+ * <p>
+ * {@link #getAll(String)} and {@link #asMap()} are read-only views, not copies.  Not thread safe.
+ */
+public final class JurlHeaders implements Iterable<Header> {
+
+    private String[] names;
+    private String[] values;
+    private int[] next; // index of the next entry with the same name, or -1
+    private int[] first; // index of the first entry with the same name
+    private int[] last; // for a first entry, the last entry with its name
+    private int[] count; // for a first entry, how many entries share its name
+    private int size;
+    private int distinct;
+    private int[] table; // entry index + 1 of each name's first entry, 0 when empty
+    private Map<String, List<String>> map;
+
+    public JurlHeaders() {
+        this(8);
+    }
+
+    public JurlHeaders(int capacity) {
+        allocate(Math.max(4, capacity));
+    }
+
+    /**
+     * A copy of {@code other}, sharing nothing with it.
+     */
+    public JurlHeaders(JurlHeaders other) {
+        names = other.names.clone();
+        values = other.values.clone();
+        next = other.next.clone();
+        first = other.first.clone();
+        last = other.last.clone();
+        count = other.count.clone();
+        table = other.table.clone();
+        size = other.size;
+        distinct = other.distinct;
+    }
+
+    /**
+     * Headers filled from {@code headers}, in order.
+     */
+    public static JurlHeaders of(Header[] headers) {
+        final JurlHeaders result = new JurlHeaders(headers.length);
+        for (Header header : headers) {
+            result.add(header.getName(), header.getValue());
+        }
+        return result;
+    }
+
+    private void allocate(int capacity) {
+        names = new String[capacity];
+        values = new String[capacity];
+        next = new int[capacity];
+        first = new int[capacity];
+        last = new int[capacity];
+        count = new int[capacity];
+        table = new int[tableSize(capacity)];
+        size = 0;
+        distinct = 0;
+    }
+
+    private static int tableSize(int capacity) {
+        // a power of two at least twice the entries, so probe runs stay short
+        return Integer.highestOneBit(Math.max(4, capacity) * 2 - 1) << 1;
+    }
+
+    public JurlHeaders add(String name, String value) {
+        if (size == names.length) {
+            grow();
+        }
+        final int index = size++;
+        names[index] = name;
+        values[index] = value;
+        next[index] = -1;
+        final int head = find(name);
+        if (head < 0) {
+            first[index] = index;
+            last[index] = index;
+            count[index] = 1;
+            if (++distinct * 2 > table.length) {
+                rehash(table.length * 2);
+            } else {
+                insert(index);
+            }
+        } else {
+            first[index] = head;
+            next[last[head]] = index;
+            last[head] = index;
+            count[head]++;
+        }
+        return this;
+    }
+
+    /**
+     * Replaces every value of {@code name} with {@code value}.
+     */
+    public JurlHeaders set(String name, String value) {
+        remove(name);
+        return add(name, value);
+    }
+
+    /**
+     * Removes every value of {@code name}, returning whether there were any.
+     */
+    public boolean remove(String name) {
+        if (find(name) < 0) {
+            return false;
+        }
+        final String[] oldNames = names;
+        final String[] oldValues = values;
+        final int oldSize = size;
+        allocate(names.length);
+        for (int i = 0; i < oldSize; i++) {
+            if (!oldNames[i].equalsIgnoreCase(name)) {
+                add(oldNames[i], oldValues[i]);
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+        distinct = 0;
+    }
+
+    /**
+     * The first value of {@code name}, or null.
+     */
+    public String getFirst(String name) {
+        final int head = find(name);
+        return head < 0 ? null : values[head];
+    }
+
+    /**
+     * Every value of {@code name}, in order, as a view that follows later changes to these headers.
+     */
+    public List<String> getAll(String name) {
+        return find(name) < 0 ? Collections.emptyList() : new Values(name);
+    }
+
+    public boolean contains(String name) {
+        return find(name) >= 0;
+    }
+
+    /**
+     * Number of headers, counting each value of a repeated name.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * A read-only map view from each distinct name, as first added, to its values.  Lookups ignore case.
+     */
+    public Map<String, List<String>> asMap() {
+        if (map == null) {
+            map = new MapView();
+        }
+        return map;
+    }
+
+    public Header[] toArray() {
+        final Header[] headers = new Header[size];
+        for (int i = 0; i < size; i++) {
+            headers[i] = new BasicHeader(names[i], values[i]);
+        }
+        return headers;
+    }
+
+    @Override
+    public Iterator<Header> iterator() {
+        return new Iterator<Header>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public Header next() {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                final int i = index++;
+                return new BasicHeader(names[i], values[i]);
+            }
+        };
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    String getValue(int index) {
+        return values[index];
+    }
+
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+
+    private int find(String name) {
+        final int mask = table.length - 1;
+        for (int slot = hash(name) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int index = table[slot] - 1;
+            if (names[index].equalsIgnoreCase(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int index) {
+        final int mask = table.length - 1;
+        int slot = hash(names[index]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private void grow() {
+        final int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        values = Arrays.copyOf(values, capacity);
+        next = Arrays.copyOf(next, capacity);
+        first = Arrays.copyOf(first, capacity);
+        last = Arrays.copyOf(last, capacity);
+        count = Arrays.copyOf(count, capacity);
+    }
+
+    private void rehash(int tableSize) {
+        table = new int[tableSize];
+        for (int i = 0; i < size; i++) {
+            if (first[i] == i) {
+                insert(i);
+            }
+        }
+    }
+
+    /**
+     * A hash that ignores ASCII case, which is all header names may contain, without building a lower-case copy.
+     */
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = 31 * hash + c;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The values of one name, looked up on each access, as {@link #remove(String)} renumbers the entries.
+     */
+    private final class Values extends AbstractList<String> {
+        private final String name;
+
+        Values(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String get(int position) {
+            final int head = find(name);
+            if (position < 0 || head < 0 || position >= count[head]) {
+                throw new IndexOutOfBoundsException("Index: " + position);
+            }
+            int index = head;
+            for (int i = 0; i < position; i++) {
+                index = next[index];
+            }
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            final int head = find(name);
+            return head < 0 ? 0 : count[head];
+        }
+    }
+
+    private final class MapView extends AbstractMap<String, List<String>> {
+
+        @Override
+        public List<String> get(Object key) {
+            return key instanceof String && contains((String) key) ? getAll((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && contains((String) key);
+        }
+
+        @Override
+        public int size() {
+            return distinct;
+        }
+
+        @Override
+        public Set<Entry<String, List<String>>> entrySet() {
+            return new AbstractSet<Entry<String, List<String>>>() {
+                @Override
+                public Iterator<Entry<String, List<String>>> iterator() {
+                    return new Iterator<Entry<String, List<String>>>() {
+                        private int index = advance(0);
+
+                        private int advance(int from) {
+                            while (from < size && first[from] != from) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return index < size;
+                        }
+
+                        @Override
+                        public Entry<String, List<String>> next() {
+                            if (index >= size) {
+                                throw new NoSuchElementException();
+                            }
+                            final int head = index;
+                            index = advance(index + 1);
+                            return new SimpleImmutableEntry<>(names[head], new Values(names[head]));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return distinct;
+                }
+            };
+        }
+    }
+}
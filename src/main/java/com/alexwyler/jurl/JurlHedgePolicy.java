@@ -0,0 +1,130 @@
+package com.alexwyler.jurl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sends a second copy of a slow request, taking whichever response arrives first and cancelling the other, so a single
+ * slow replica does not set the tail latency.  Only GET, PUT and DELETE requests, which are safe to send twice, are
+ * hedged, and only when their responses are not streamed.
+ * <p>
+ * The hedge goes out after a fixed {@link #delay(long)}, or, with {@link #percentile(double)}, after that percentile
+ * of the latencies this policy has seen, e.g. 0.95 to hedge the slowest 5%.  {@link #budget(double, int)} caps hedges
+ * at a share of the requests made, so that hedging cannot double the load on an upstream that is slow for everyone.
+ * <p>
+ * Thread safe; share one policy per upstream so its latencies describe that upstream:
+ * {@code new Jurl().hedge(policy)}.
+ */
+public class JurlHedgePolicy {
+
+    private static final int SAMPLES = 1024;
+    private static final int RECOMPUTE_EVERY = 64;
+
+    private long delay = 100; // ms
+    private double percentile = -1;
+    private int minSamples = 100;
+    private int maxHedges = 1;
+    private JurlRetryBudget budget = null;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES); // ns, a ring of the latest latencies
+    private final AtomicLong sampleCount = new AtomicLong();
+    private volatile long percentileDelay = -1; // ms
+    private volatile long percentileComputedAt = 0; // sampleCount when last computed
+
+    /**
+     * Time in ms to wait for a response before hedging, or, with {@link #percentile(double)}, until enough latencies
+     * have been seen.  100 ms by default.
+     */
+    public JurlHedgePolicy delay(long delay) {
+        this.delay = delay;
+        return this;
+    }
+
+    /**
+     * Hedges once a request has taken longer than this percentile, from 0 to 1, of recent latencies.
+     */
+    public JurlHedgePolicy percentile(double percentile) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Latencies needed before {@link #percentile(double)} is used instead of {@link #delay(long)}.  100 by default.
+     */
+    public JurlHedgePolicy minSamples(int minSamples) {
+        this.minSamples = Math.min(minSamples, SAMPLES);
+        return this;
+    }
+
+    /**
+     * Most hedges sent for one attempt, each one a delay after the last.  1 by default.
+     */
+    public JurlHedgePolicy maxHedges(int maxHedges) {
+        this.maxHedges = maxHedges;
+        return this;
+    }
+
+    /**
+     * Allows {@code ratio} hedges per request, e.g. 0.05 for 5%, saving up at most {@code maxTokens}.
+     *
+     * @see JurlRetryBudget
+     */
+    public JurlHedgePolicy budget(double ratio, int maxTokens) {
+        this.budget = new JurlRetryBudget(ratio, maxTokens);
+        return this;
+    }
+
+    /**
+     * Time in ms after which a request still waiting for its response is hedged.
+     */
+    public long getHedgeDelay() {
+        final long count = sampleCount.get();
+        if (percentile < 0 || count < minSamples) {
+            return delay;
+        }
+        if (percentileDelay < 0 || count - percentileComputedAt >= RECOMPUTE_EVERY) {
+            final int size = (int) Math.min(count, SAMPLES);
+            final long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            final long nanos = sorted[(int) Math.min(size - 1, Math.ceil(percentile * size) - 1)];
+            percentileDelay = Math.max(1, Math.round(nanos / 1e6));
+            percentileComputedAt = count;
+        }
+        return percentileDelay;
+    }
+
+    int getMaxHedges() {
+        return maxHedges;
+    }
+
+    /**
+     * Records how long a response took to arrive, or, for a request that failed or was cancelled, how long it had been
+     * waiting.
+     */
+    void recordLatency(long nanos) {
+        samples.set((int) (sampleCount.getAndIncrement() % SAMPLES), nanos);
+    }
+
+    /**
+     * Credits the budget for a hedged request about to be made.
+     */
+    void recordRequest() {
+        if (budget != null) {
+            budget.recordRequest();
+        }
+    }
+
+    /**
+     * Takes a hedge from the budget, returning false if there is none left.
+     */
+    boolean tryAcquireHedge() {
+        return budget == null || budget.tryAcquireRetry();
+    }
+}
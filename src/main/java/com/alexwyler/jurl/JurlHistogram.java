@@ -0,0 +1,101 @@
+package com.alexwyler.jurl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, such as latencies in ns, laid out like HdrHistogram: values below 128
+ * are counted exactly, and each power of two above that is split into 64 buckets, so any value read back is within
+ * about 1.6% of what was recorded.  Values above 2<sup>40</sup> (about 18 minutes in ns) count as 2<sup>40</sup>.
+ * <p>
+ * Recording is a few atomic increments and never allocates, so it can run on the hot path of every request from any
+ * thread.  Reads are not a consistent snapshot while values are being recorded, but are never off by more than the
+ * values recorded during the read.
+ */
+public final class JurlHistogram {
+
+    private static final int SUB_BUCKETS = 64;
+    private static final int MAX_SHIFT = 34;
+    private static final long MAX_VALUE = 1L << 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS * MAX_SHIFT + 2 * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Cannot record a negative value: " + value);
+        }
+        value = Math.min(value, MAX_VALUE);
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        final long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The value below which {@code quantile} (0 to 1) of the recorded values fall, e.g. 0.99 for the 99th
+     * percentile, or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("The quantile must be between 0 and 1: " + quantile);
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * count.sum()));
+        long seen = 0;
+        int last = -1;
+        for (int i = 0; i < buckets.length(); i++) {
+            final long n = buckets.get(i);
+            if (n == 0) {
+                continue;
+            }
+            last = i;
+            seen += n;
+            if (seen >= rank) {
+                return Math.min(valueOf(i), getMax());
+            }
+        }
+        return last < 0 ? 0 : Math.min(valueOf(last), getMax());
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    /**
+     * The middle of the values counted in bucket {@code index}.
+     */
+    static long valueOf(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long low = (long) (index - SUB_BUCKETS * shift) << shift;
+        return low + ((1L << shift) - 1) / 2;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + (long) getMean() + " p50=" + getPercentile(0.5)
+                + " p99=" + getPercentile(0.99) + " max=" + getMax();
+    }
+}
@@ -0,0 +1,459 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.CookieHandler;
+import java.net.HttpCookie;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Sends Jurl's requests over HTTP/2 with the JDK's own client ({@code java.net.http}, Java 11 and later), which
+ * multiplexes concurrent requests to a host as streams on one connection and compresses headers with HPACK.  Jurl
+ * targets Java 8, so the client is driven reflectively, the same way {@link JurlExecutors} reaches virtual threads.
+ * <p>
+ * Requests are built by Jurl as usual and translated here; responses are translated back into HttpCore responses, so
+ * everything after the exchange (decoding, caching, retries) is unchanged.  Servers that only speak HTTP/1.1 still
+ * work: TLS connections negotiate the protocol with ALPN, and cleartext ones offer an h2c upgrade on the first request.
+ */
+final class JurlHttp2Client {
+
+    // the JDK client sets these itself and refuses them from callers
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade"));
+
+    static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    private static final Api API = Api.find();
+
+    private final SSLContext sslContext;
+    private final Object following;
+    private final Object notFollowing;
+    // the JDK client reads and fills cookies through a handler of its own, so each jar needs its own clients; they go
+    // with the jar, as their handlers only hold it weakly
+    private final Map<JurlCookieJar, Object[]> jarClients = Collections.synchronizedMap(new WeakHashMap<>());
+
+    JurlHttp2Client(SSLContext sslContext) {
+        assertSupported();
+        this.sslContext = sslContext;
+        this.following = API.newClient(true, sslContext, null);
+        this.notFollowing = API.newClient(false, sslContext, null);
+    }
+
+    /**
+     * Whether the running JVM has the {@code java.net.http} client (Java 11 and later).
+     */
+    static boolean isSupported() {
+        return API != null;
+    }
+
+    static void assertSupported() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("HTTP/2 requires Java 11 or later.");
+        }
+    }
+
+    /**
+     * Sends {@code request} and waits for the response, which is buffered unless {@code stream}.  Aborting
+     * {@code request} cancels the exchange.
+     *
+     * @param timeout ms to wait for the response, or 0 for no limit
+     */
+    CloseableHttpResponse execute(HttpUriRequest request, JurlCookieJar cookieJar, boolean followRedirects, long timeout,
+                                  boolean stream) throws IOException {
+        final CompletableFuture<?> exchange = send(request, cookieJar, followRedirects, timeout, stream);
+        try {
+            return toResponse(exchange.get());
+        } catch (InterruptedException e) {
+            exchange.cancel(true);
+            throw new InterruptedIOException("Interrupted");
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Request aborted");
+        } catch (ExecutionException e) {
+            throw toIOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends {@code request} without waiting, buffering the response, and reports the outcome to {@code callback}.
+     * Cancelling the returned future cancels the exchange.
+     */
+    Future<HttpResponse> execute(HttpUriRequest request, JurlCookieJar cookieJar, boolean followRedirects, long timeout,
+                                 FutureCallback<HttpResponse> callback) {
+        final CompletableFuture<?> exchange = send(request, cookieJar, followRedirects, timeout, false);
+        final BasicFuture<HttpResponse> future = new BasicFuture<HttpResponse>(callback) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                exchange.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        exchange.whenComplete((response, t) -> {
+            if (t == null) {
+                future.completed(toResponse(response));
+            } else if (!(t instanceof CancellationException)) {
+                future.failed(toIOException(t));
+            }
+        });
+        return future;
+    }
+
+    private CompletableFuture<?> send(HttpUriRequest request, JurlCookieJar cookieJar, boolean followRedirects,
+                                      long timeout, boolean stream) {
+        final Object builder = API.newRequestBuilder(request.getURI());
+        for (Header header : request.getAllHeaders()) {
+            API.header(builder, header.getName(), header.getValue());
+        }
+        Object body = API.noBody();
+        if (request instanceof HttpEntityEnclosingRequest) {
+            final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                if (entity.getContentType() != null && !request.containsHeader("Content-Type")) {
+                    API.header(builder, "Content-Type", entity.getContentType().getValue());
+                }
+                if (entity.getContentEncoding() != null && !request.containsHeader("Content-Encoding")) {
+                    API.header(builder, "Content-Encoding", entity.getContentEncoding().getValue());
+                }
+                body = API.ofInputStream(() -> {
+                    try {
+                        return entity.getContent();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        }
+        API.method(builder, request.getMethod(), body);
+        if (timeout > 0) {
+            API.timeout(builder, Duration.ofMillis(timeout));
+        }
+        final CompletableFuture<?> exchange = API.sendAsync(getClient(cookieJar, followRedirects), API.build(builder),
+                stream);
+        if (request instanceof HttpRequestBase) {
+            ((HttpRequestBase) request).setCancellable(() -> exchange.cancel(true));
+        }
+        return exchange;
+    }
+
+    private Object getClient(JurlCookieJar cookieJar, boolean followRedirects) {
+        if (cookieJar == null) {
+            return followRedirects ? following : notFollowing;
+        }
+        final Object[] clients = jarClients.computeIfAbsent(cookieJar, jar -> {
+            final CookieHandler handler = new JarCookieHandler(jar);
+            return new Object[]{API.newClient(true, sslContext, handler), API.newClient(false, sslContext, handler)};
+        });
+        return clients[followRedirects ? 0 : 1];
+    }
+
+    private static CloseableHttpResponse toResponse(Object jdkResponse) {
+        final int code = API.statusCode(jdkResponse);
+        final Http2Response response = new Http2Response(API.isHttp2(jdkResponse) ? HTTP_2 : HttpVersion.HTTP_1_1,
+                code, EnglishReasonPhraseCatalog.INSTANCE.getReason(code, Locale.ENGLISH));
+        for (Map.Entry<String, List<String>> header : API.headers(jdkResponse).entrySet()) {
+            if (header.getKey().startsWith(":")) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                response.addHeader(header.getKey(), value);
+            }
+        }
+        final Object body = API.body(jdkResponse);
+        final AbstractHttpEntity entity;
+        if (body instanceof InputStream) {
+            final Header length = response.getFirstHeader("Content-Length");
+            entity = new InputStreamEntity((InputStream) body, length != null ? Long.parseLong(length.getValue()) : -1);
+        } else {
+            entity = new ByteArrayEntity((byte[]) body);
+        }
+        entity.setContentType(response.getFirstHeader("Content-Type"));
+        entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+        response.setEntity(entity);
+        return response;
+    }
+
+    /**
+     * Maps the JDK client's failures onto the exceptions HttpClient throws for the same conditions, so Jurl reports
+     * them the same way.
+     */
+    private static IOException toIOException(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        final String type = t.getClass().getName();
+        if (type.equals("java.net.http.HttpConnectTimeoutException")) {
+            return new ConnectTimeoutException(t.getMessage());
+        } else if (type.equals("java.net.http.HttpTimeoutException")) {
+            final SocketTimeoutException timeout = new SocketTimeoutException(t.getMessage());
+            timeout.initCause(t);
+            return timeout;
+        } else if (t instanceof IOException) {
+            return (IOException) t;
+        } else if (t instanceof UncheckedIOException) {
+            return ((UncheckedIOException) t).getCause();
+        }
+        return new IOException(t);
+    }
+
+    private static final class Http2Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+        Http2Response(ProtocolVersion version, int code, String reason) {
+            super(version, code, reason);
+        }
+
+        @Override
+        public void close() throws IOException {
+            final HttpEntity entity = getEntity();
+            if (entity != null && entity.isStreaming()) {
+                // releases the stream, or the connection under HTTP/1.1
+                entity.getContent().close();
+            }
+        }
+    }
+
+    /**
+     * Lets the JDK client send and keep the cookies of a {@link JurlCookieJar} at every hop of a request.
+     */
+    private static final class JarCookieHandler extends CookieHandler {
+        private final WeakReference<JurlCookieJar> jar;
+
+        JarCookieHandler(JurlCookieJar jar) {
+            this.jar = new WeakReference<>(jar);
+        }
+
+        @Override
+        public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders) {
+            final JurlCookieJar cookieJar = jar.get();
+            final String cookies = cookieJar != null ? cookieJar.getCookieHeader(uri) : null;
+            return cookies != null ? Collections.singletonMap("Cookie", Collections.singletonList(cookies))
+                    : Collections.emptyMap();
+        }
+
+        @Override
+        public void put(URI uri, Map<String, List<String>> responseHeaders) {
+            final JurlCookieJar cookieJar = jar.get();
+            if (cookieJar == null) {
+                return;
+            }
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
+                    for (String value : header.getValue()) {
+                        try {
+                            cookieJar.store(uri, HttpCookie.parse(value));
+                        } catch (IllegalArgumentException e) {
+                            // a malformed cookie is ignored, as a browser would
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The parts of {@code java.net.http} Jurl uses, looked up once through their public types.
+     */
+    private static final class Api {
+        final Method newBuilder;
+        final Method version;
+        final Method followRedirects;
+        final Method sslContext;
+        final Method cookieHandler;
+        final Method buildClient;
+        final Object http2;
+        final Object redirectNormal;
+        final Object redirectNever;
+        final Method newRequestBuilder;
+        final Method header;
+        final Method method;
+        final Method timeout;
+        final Method buildRequest;
+        final Method noBody;
+        final Method ofInputStream;
+        final Method sendAsync;
+        final Object ofByteArray;
+        final Object ofInputStreamHandler;
+        final Method statusCode;
+        final Method headers;
+        final Method headerMap;
+        final Method body;
+        final Method responseVersion;
+
+        private Api() throws ReflectiveOperationException {
+            final Class<?> client = Class.forName("java.net.http.HttpClient");
+            final Class<?> clientBuilder = Class.forName("java.net.http.HttpClient$Builder");
+            final Class<?> versionType = Class.forName("java.net.http.HttpClient$Version");
+            final Class<?> redirect = Class.forName("java.net.http.HttpClient$Redirect");
+            final Class<?> request = Class.forName("java.net.http.HttpRequest");
+            final Class<?> requestBuilder = Class.forName("java.net.http.HttpRequest$Builder");
+            final Class<?> publisher = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+            final Class<?> publishers = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+            final Class<?> response = Class.forName("java.net.http.HttpResponse");
+            final Class<?> handler = Class.forName("java.net.http.HttpResponse$BodyHandler");
+            final Class<?> handlers = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+            final Class<?> httpHeaders = Class.forName("java.net.http.HttpHeaders");
+
+            newBuilder = client.getMethod("newBuilder");
+            version = clientBuilder.getMethod("version", versionType);
+            followRedirects = clientBuilder.getMethod("followRedirects", redirect);
+            sslContext = clientBuilder.getMethod("sslContext", SSLContext.class);
+            cookieHandler = clientBuilder.getMethod("cookieHandler", CookieHandler.class);
+            buildClient = clientBuilder.getMethod("build");
+            http2 = versionType.getField("HTTP_2").get(null);
+            redirectNormal = redirect.getField("NORMAL").get(null);
+            redirectNever = redirect.getField("NEVER").get(null);
+            newRequestBuilder = request.getMethod("newBuilder", URI.class);
+            header = requestBuilder.getMethod("header", String.class, String.class);
+            method = requestBuilder.getMethod("method", String.class, publisher);
+            timeout = requestBuilder.getMethod("timeout", Duration.class);
+            buildRequest = requestBuilder.getMethod("build");
+            noBody = publishers.getMethod("noBody");
+            ofInputStream = publishers.getMethod("ofInputStream", Supplier.class);
+            sendAsync = client.getMethod("sendAsync", request, handler);
+            ofByteArray = handlers.getMethod("ofByteArray").invoke(null);
+            ofInputStreamHandler = handlers.getMethod("ofInputStream").invoke(null);
+            statusCode = response.getMethod("statusCode");
+            headers = response.getMethod("headers");
+            headerMap = httpHeaders.getMethod("map");
+            body = response.getMethod("body");
+            responseVersion = response.getMethod("version");
+        }
+
+        static Api find() {
+            try {
+                return new Api();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+
+        Object newClient(boolean follow, SSLContext context, CookieHandler handler) {
+            Object builder = invoke(newBuilder, null);
+            builder = invoke(version, builder, http2);
+            builder = invoke(followRedirects, builder, follow ? redirectNormal : redirectNever);
+            builder = invoke(sslContext, builder, context);
+            if (handler != null) {
+                builder = invoke(cookieHandler, builder, handler);
+            }
+            return invoke(buildClient, builder);
+        }
+
+        Object newRequestBuilder(URI uri) {
+            return invoke(newRequestBuilder, null, uri);
+        }
+
+        void header(Object builder, String name, String value) {
+            if (RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                return;
+            }
+            try {
+                header.invoke(builder, name, value);
+            } catch (InvocationTargetException e) {
+                // older JDKs refuse a few more headers, such as Date and Via; send the request without them
+                if (!(e.getCause() instanceof IllegalArgumentException)) {
+                    throw unwrap(e);
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void method(Object builder, String name, Object publisher) {
+            invoke(method, builder, name, publisher);
+        }
+
+        void timeout(Object builder, Duration duration) {
+            invoke(timeout, builder, duration);
+        }
+
+        Object build(Object builder) {
+            return invoke(buildRequest, builder);
+        }
+
+        Object noBody() {
+            return invoke(noBody, null);
+        }
+
+        Object ofInputStream(Supplier<InputStream> supplier) {
+            return invoke(ofInputStream, null, supplier);
+        }
+
+        CompletableFuture<?> sendAsync(Object client, Object request, boolean stream) {
+            return (CompletableFuture<?>) invoke(sendAsync, client, request, stream ? ofInputStreamHandler : ofByteArray);
+        }
+
+        int statusCode(Object response) {
+            return (Integer) invoke(statusCode, response);
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, List<String>> headers(Object response) {
+            return (Map<String, List<String>>) invoke(headerMap, invoke(headers, response));
+        }
+
+        Object body(Object response) {
+            return invoke(body, response);
+        }
+
+        boolean isHttp2(Object response) {
+            return http2.equals(invoke(responseVersion, response));
+        }
+
+        private static Object invoke(Method method, Object target, Object... args) {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw unwrap(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static RuntimeException unwrap(InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                return (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            return new IllegalStateException(e.getCause());
+        }
+    }
+}
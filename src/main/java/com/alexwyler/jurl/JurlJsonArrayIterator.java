@@ -0,0 +1,121 @@
+package com.alexwyler.jurl;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the elements of a JSON array one at a time from a token stream, so only the current element is ever held in
+ * memory.  The array may be the document itself or nested under a JSON pointer such as {@code /data/items}.  The
+ * parser, and with it the response, is closed once the array is exhausted or {@link #close()} is called.
+ */
+class JurlJsonArrayIterator<S> implements Iterator<S>, Closeable {
+
+    private final JsonParser parser;
+    private final ObjectMapper mapper;
+    private final JavaType type;
+    private boolean closed;
+
+    JurlJsonArrayIterator(JsonParser parser, ObjectMapper mapper, JavaType type, String jsonPointer)
+            throws IOException {
+        this.parser = parser;
+        this.mapper = mapper;
+        this.type = type;
+        try {
+            parser.nextToken();
+            seek(JsonPointer.compile(jsonPointer == null ? "" : jsonPointer));
+            if (parser.currentToken() != JsonToken.START_ARRAY) {
+                throw new IOException(String.format("Expected a JSON array at '%s' but found %s",
+                        jsonPointer, parser.currentToken()));
+            }
+            parser.nextToken();
+            closeIfExhausted();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Advances the parser to the value at {@code pointer}, skipping over everything else without binding it.
+     */
+    private void seek(JsonPointer pointer) throws IOException {
+        while (!pointer.matches()) {
+            JsonToken token = parser.currentToken();
+            if (token == JsonToken.START_OBJECT && pointer.mayMatchProperty()) {
+                String property = pointer.getMatchingProperty();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if (name.equals(property)) {
+                        break;
+                    }
+                    parser.skipChildren();
+                }
+                if (parser.currentToken() == JsonToken.END_OBJECT) {
+                    throw new IOException(String.format("No property '%s' in the response", property));
+                }
+            } else if (token == JsonToken.START_ARRAY && pointer.mayMatchElement()) {
+                int index = pointer.getMatchingIndex();
+                parser.nextToken();
+                for (int i = 0; i < index && parser.currentToken() != JsonToken.END_ARRAY; i++) {
+                    parser.skipChildren();
+                    parser.nextToken();
+                }
+                if (parser.currentToken() == JsonToken.END_ARRAY) {
+                    throw new IOException(String.format("No element %d in the response", index));
+                }
+            } else {
+                throw new IOException(String.format("Cannot resolve '%s' against %s", pointer, token));
+            }
+            pointer = pointer.tail();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !closed;
+    }
+
+    @Override
+    public S next() {
+        if (closed) {
+            throw new NoSuchElementException();
+        }
+        try {
+            S value = mapper.readValue(parser, type);
+            parser.nextToken();
+            closeIfExhausted();
+            return value;
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void closeIfExhausted() {
+        JsonToken token = parser.currentToken();
+        if (token == null || token == JsonToken.END_ARRAY) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // Silently close
+            }
+        }
+    }
+}
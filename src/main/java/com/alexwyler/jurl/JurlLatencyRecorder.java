@@ -0,0 +1,98 @@
+package com.alexwyler.jurl;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link JurlListener} that keeps a {@link JurlHistogram} of every phase, in ns, and a count of every outcome, for
+ * each method and host it sees:
+ * <pre>{@code
+ * JurlLatencyRecorder recorder = new JurlLatencyRecorder();
+ * engine.listener(recorder);
+ * ...
+ * long p99 = recorder.getHistogram("api.example.com:443", "GET", JurlMetrics.Phase.TOTAL).getPercentile(0.99);
+ * }</pre>
+ * Lock-free once a method and host has been seen.  Hosts are never forgotten, so it suits a client talking to a
+ * bounded set of upstreams.
+ */
+public class JurlLatencyRecorder implements JurlListener {
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    private static final class Stats {
+        final AtomicReferenceArray<JurlHistogram> phases =
+                new AtomicReferenceArray<>(JurlMetrics.Phase.values().length);
+        final LongAdder[] outcomes = new LongAdder[JurlMetrics.Outcome.values().length];
+
+        Stats() {
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = new LongAdder();
+            }
+        }
+
+        JurlHistogram histogram(JurlMetrics.Phase phase) {
+            final int i = phase.ordinal();
+            JurlHistogram histogram = phases.get(i);
+            if (histogram == null) {
+                phases.compareAndSet(i, null, new JurlHistogram());
+                histogram = phases.get(i);
+            }
+            return histogram;
+        }
+    }
+
+    private static String key(String host, String method) {
+        return method + " " + host;
+    }
+
+    private Stats stats(String host, String method) {
+        final String key = key(host, method);
+        final Stats existing = stats.get(key);
+        return existing != null ? existing : stats.computeIfAbsent(key, k -> new Stats());
+    }
+
+    @Override
+    public void onComplete(JurlMetrics metrics) {
+        final Stats stats = stats(metrics.getHost(), metrics.getMethod());
+        stats.outcomes[metrics.getOutcome().ordinal()].increment();
+        for (JurlMetrics.Phase phase : JurlMetrics.Phase.values()) {
+            final long nanos = metrics.getNanos(phase);
+            if (nanos >= 0) {
+                stats.histogram(phase).record(nanos);
+            }
+        }
+    }
+
+    @Override
+    public void onDeserialize(JurlMetrics metrics, long nanos) {
+        stats(metrics.getHost(), metrics.getMethod()).histogram(JurlMetrics.Phase.DESERIALIZE).record(nanos);
+    }
+
+    /**
+     * The histogram of {@code phase} for requests with {@code method} to {@code host} (host:port, as in
+     * {@link JurlMetrics#getHost()}), or null if none has been recorded.
+     */
+    public JurlHistogram getHistogram(String host, String method, JurlMetrics.Phase phase) {
+        final Stats stats = this.stats.get(key(host, method));
+        return stats != null ? stats.phases.get(phase.ordinal()) : null;
+    }
+
+    public long getOutcomeCount(String host, String method, JurlMetrics.Outcome outcome) {
+        final Stats stats = this.stats.get(key(host, method));
+        return stats != null ? stats.outcomes[outcome.ordinal()].sum() : 0;
+    }
+
+    /**
+     * The method and host pairs seen so far, as {@code "GET api.example.com:443"}.
+     */
+    public Set<String> getKeys() {
+        return stats.keySet();
+    }
+
+    public void clear() {
+        stats.clear();
+    }
+}
@@ -0,0 +1,12 @@
+package com.alexwyler.jurl;
+
+/**
+ * Thrown when no pooled connection became available within {@link Jurl#leaseTimeout(long)}.  This usually means the
+ * engine's pool is exhausted for the target host.
+ */
+public class JurlLeaseTimeoutException extends JurlTimeoutException {
+
+    public JurlLeaseTimeoutException(Jurl jurlInstance, Throwable cause) {
+        super(jurlInstance, "Timed out waiting for a pooled connection", cause);
+    }
+}
@@ -0,0 +1,29 @@
+package com.alexwyler.jurl;
+
+/**
+ * Observes requests as they finish, for metrics and tracing, without subclassing {@link Jurl}.  Register one for every
+ * request on an engine with {@link JurlEngine#listener(JurlListener)}, or for a single request with
+ * {@link Jurl#listener(JurlListener)}.
+ * <p>
+ * Listeners are called on the thread that finished the request: the caller's for {@link Jurl#go()}, and a
+ * {@link Jurl#backgroundExecutor} thread for {@link Jurl#goAsync()}, non-blocking or not.  They run before the caller
+ * hears of the result, so they should be quick.  An exception thrown by a listener is ignored.
+ *
+ * @see JurlLatencyRecorder
+ * @see JurlMicrometerListener
+ */
+public interface JurlListener {
+
+    /**
+     * Called once per {@link Jurl#go()}, successful or not, as it returns or throws, or as the future of
+     * {@link Jurl#goAsync()} completes.
+     */
+    default void onComplete(JurlMetrics metrics) {
+    }
+
+    /**
+     * Called each time the body of a finished request is bound to a new type, with the time it took in ns.
+     */
+    default void onDeserialize(JurlMetrics metrics, long nanos) {
+    }
+}
@@ -0,0 +1,203 @@
+package com.alexwyler.jurl;
+
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+/**
+ * What one {@link Jurl#go()} cost, phase by phase, as handed to each {@link JurlListener} when the request finishes.
+ * Connection phases are those of the attempt that produced the result; a reused connection has no DNS, connect or TLS
+ * time, and a response from the cache or shared with another request has none of the network phases.  A phase that
+ * was not measured is -1.
+ * <p>
+ * The blocking client measures every phase, and whether the TLS handshake resumed a session.  The non-blocking client
+ * does not break out connection set up, so its time to first byte includes the pool lease and any connect, and the
+ * HTTP/2 engine only measures the total.  Handshakes on either HTTP/1.1 client are also counted by the engine, in
+ * {@link JurlEngine#getTlsHandshakeCount()} and {@link JurlEngine#getTlsResumedCount()}.
+ */
+public final class JurlMetrics {
+
+    public enum Phase {
+        /**
+         * Waiting for a pooled connection.
+         */
+        LEASE,
+        DNS,
+        /**
+         * Opening the TCP connection, after DNS.
+         */
+        CONNECT,
+        TLS,
+        /**
+         * Sending the request and waiting for the response's headers.
+         */
+        FIRST_BYTE,
+        /**
+         * Reading the response body, unless it is streamed.
+         */
+        BODY,
+        /**
+         * Binding the body to objects, reported separately through {@link JurlListener#onDeserialize}.
+         */
+        DESERIALIZE,
+        /**
+         * The whole request, from {@link Jurl#go()} until it returns or throws, including retries.
+         */
+        TOTAL
+    }
+
+    public enum Outcome {
+        /**
+         * A response with a status below 400.
+         */
+        SUCCESS,
+        HTTP_ERROR,
+        TIMEOUT,
+        /**
+         * Refused before being sent, by an open circuit, a full bulkhead or a rate limit.
+         */
+        REJECTED,
+        CANCELLED,
+        FAILURE
+    }
+
+    /**
+     * The TLS handshake, if any, that set up the connection of the attempt that produced the result.
+     */
+    public enum TlsHandshake {
+        /**
+         * No handshake: plain HTTP, a reused connection, or not measured.
+         */
+        NONE,
+        FULL,
+        /**
+         * An abbreviated handshake that resumed a session from an earlier connection, skipping the key exchange and
+         * certificate validation.
+         */
+        RESUMED
+    }
+
+    private final Jurl jurl;
+    private final String host;
+    private final String method;
+    private final int statusCode;
+    private final int attempts;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final Outcome outcome;
+    private final Throwable error;
+    private final long[] nanos;
+    private final TlsHandshake tlsHandshake;
+
+    JurlMetrics(Jurl jurl, String host, String method, int statusCode, int attempts, long bytesSent,
+                long bytesReceived, Throwable error, long[] nanos, TlsHandshake tlsHandshake) {
+        this.jurl = jurl;
+        this.host = host;
+        this.method = method;
+        this.statusCode = statusCode;
+        this.attempts = attempts;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.error = error;
+        this.outcome = classify(statusCode, error);
+        this.nanos = nanos;
+        this.tlsHandshake = tlsHandshake;
+    }
+
+    private static Outcome classify(int statusCode, Throwable error) {
+        if (error == null) {
+            return statusCode >= 400 ? Outcome.HTTP_ERROR : Outcome.SUCCESS;
+        } else if (error instanceof JurlHttpStatusCodeException) {
+            return Outcome.HTTP_ERROR;
+        } else if (error instanceof JurlTimeoutException) {
+            return Outcome.TIMEOUT;
+        } else if (error instanceof JurlCircuitOpenException || error instanceof JurlBulkheadFullException
+                || error instanceof JurlRateLimitedException) {
+            return Outcome.REJECTED;
+        } else if (error instanceof CancellationException) {
+            return Outcome.CANCELLED;
+        }
+        return Outcome.FAILURE;
+    }
+
+    public Jurl getJurl() {
+        return jurl;
+    }
+
+    /**
+     * The host and port the request went to, e.g. {@code api.example.com:443}.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * The status of the response, or 0 if there was none.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Attempts sent, counting retries; 0 when the response came from the cache or another request.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Bytes of request body sent, after compression, or -1 if none was sent.  Bodies whose length is not known up
+     * front, such as streams, are counted as they are written.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Bytes of response body read from the connection, before decompression.  For a streamed response, only what was
+     * read before {@link Jurl#go()} returned.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * What the request threw, or null.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Time spent in {@code phase} in ns, or -1 if it was not measured.
+     */
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    public TlsHandshake getTlsHandshake() {
+        return tlsHandshake;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(method).append(' ').append(host).append(' ').append(outcome);
+        for (Phase phase : Phase.values()) {
+            if (nanos[phase.ordinal()] >= 0) {
+                sb.append(' ').append(phase.name().toLowerCase(Locale.ROOT)).append('=')
+                        .append(nanos[phase.ordinal()] / 1000).append("us");
+            }
+        }
+        if (tlsHandshake != TlsHandshake.NONE) {
+            sb.append(" tls=").append(tlsHandshake.name().toLowerCase(Locale.ROOT));
+        }
+        return sb.toString();
+    }
+}
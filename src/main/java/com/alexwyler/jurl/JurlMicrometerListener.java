@@ -0,0 +1,166 @@
+package com.alexwyler.jurl;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes request metrics to a Micrometer {@code MeterRegistry}, as two timers with percentile histograms:
+ * <ul>
+ * <li>{@code jurl.requests}, tagged {@code host}, {@code method}, {@code outcome} and {@code status}, timing each
+ * request as a whole</li>
+ * <li>{@code jurl.request.phase}, tagged {@code host}, {@code method} and {@code phase}, timing each phase that was
+ * measured</li>
+ * </ul>
+ * and a counter, {@code jurl.tls.handshakes}, tagged {@code host} and {@code handshake}, {@code full} or
+ * {@code resumed}, counting the TLS handshakes of the blocking client.
+ * <pre>{@code
+ * engine.listener(new JurlMicrometerListener(Metrics.globalRegistry));
+ * }</pre>
+ * Micrometer is not a dependency of Jurl, so it is driven reflectively, as {@link JurlHttp2Client} drives the JDK's
+ * HTTP/2 client; any version from 1.0 on works if it is on the classpath.
+ */
+public class JurlMicrometerListener implements JurlListener {
+
+    private static final Api API = Api.find();
+
+    private final Object registry;
+    private final ConcurrentMap<String, Object> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Object> counters = new ConcurrentHashMap<>();
+
+    /**
+     * @param meterRegistry an {@code io.micrometer.core.instrument.MeterRegistry}, typed loosely so Jurl compiles
+     *                      without Micrometer
+     */
+    public JurlMicrometerListener(Object meterRegistry) {
+        if (API == null) {
+            throw new IllegalStateException("Micrometer is not on the classpath.");
+        }
+        if (!API.registryType.isInstance(meterRegistry)) {
+            throw new IllegalArgumentException("Not a MeterRegistry: " + meterRegistry);
+        }
+        this.registry = meterRegistry;
+    }
+
+    @Override
+    public void onComplete(JurlMetrics metrics) {
+        final String host = String.valueOf(metrics.getHost());
+        final String method = metrics.getMethod();
+        record(metrics.getNanos(JurlMetrics.Phase.TOTAL), "jurl.requests", "host", host, "method", method,
+                "outcome", metrics.getOutcome().name(), "status", Integer.toString(metrics.getStatusCode()));
+        for (JurlMetrics.Phase phase : JurlMetrics.Phase.values()) {
+            if (phase != JurlMetrics.Phase.TOTAL) {
+                recordPhase(metrics, phase, metrics.getNanos(phase));
+            }
+        }
+        if (metrics.getTlsHandshake() != JurlMetrics.TlsHandshake.NONE) {
+            final String handshake = metrics.getTlsHandshake().name().toLowerCase(Locale.ROOT);
+            final String key = host + '\0' + handshake;
+            Object counter = counters.get(key);
+            if (counter == null) {
+                counter = counters.computeIfAbsent(key,
+                        k -> API.counter(registry, "jurl.tls.handshakes", "host", host, "handshake", handshake));
+            }
+            API.invoke(API.increment, counter);
+        }
+    }
+
+    @Override
+    public void onDeserialize(JurlMetrics metrics, long nanos) {
+        recordPhase(metrics, JurlMetrics.Phase.DESERIALIZE, nanos);
+    }
+
+    private void recordPhase(JurlMetrics metrics, JurlMetrics.Phase phase, long nanos) {
+        record(nanos, "jurl.request.phase", "host", String.valueOf(metrics.getHost()), "method", metrics.getMethod(),
+                "phase", phase.name().toLowerCase(Locale.ROOT));
+    }
+
+    private void record(long nanos, String name, String... tags) {
+        if (nanos < 0) {
+            return;
+        }
+        final StringBuilder key = new StringBuilder(name);
+        for (String tag : tags) {
+            key.append('\0').append(tag);
+        }
+        Object timer = timers.get(key.toString());
+        if (timer == null) {
+            // the registry keeps one timer per name and tags, so a lost race registers the same timer twice
+            timer = timers.computeIfAbsent(key.toString(), k -> API.timer(registry, name, tags));
+        }
+        API.invoke(API.record, timer, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The parts of Micrometer Jurl uses, looked up once through their public types.
+     */
+    private static final class Api {
+        final Class<?> registryType;
+        final Method builder;
+        final Method tags;
+        final Method publishPercentileHistogram;
+        final Method register;
+        final Method record;
+        final Method counterBuilder;
+        final Method counterTags;
+        final Method counterRegister;
+        final Method increment;
+
+        private Api() throws ReflectiveOperationException {
+            final Class<?> timer = Class.forName("io.micrometer.core.instrument.Timer");
+            final Class<?> timerBuilder = Class.forName("io.micrometer.core.instrument.Timer$Builder");
+            registryType = Class.forName("io.micrometer.core.instrument.MeterRegistry");
+            builder = timer.getMethod("builder", String.class);
+            tags = timerBuilder.getMethod("tags", String[].class);
+            publishPercentileHistogram = timerBuilder.getMethod("publishPercentileHistogram");
+            register = timerBuilder.getMethod("register", registryType);
+            record = timer.getMethod("record", long.class, TimeUnit.class);
+            final Class<?> counter = Class.forName("io.micrometer.core.instrument.Counter");
+            final Class<?> counterBuilderType = Class.forName("io.micrometer.core.instrument.Counter$Builder");
+            counterBuilder = counter.getMethod("builder", String.class);
+            counterTags = counterBuilderType.getMethod("tags", String[].class);
+            counterRegister = counterBuilderType.getMethod("register", registryType);
+            increment = counter.getMethod("increment");
+        }
+
+        static Api find() {
+            try {
+                return new Api();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+
+        Object timer(Object registry, String name, String[] tagValues) {
+            Object timerBuilder = invoke(builder, null, name);
+            timerBuilder = invoke(tags, timerBuilder, (Object) tagValues);
+            timerBuilder = invoke(publishPercentileHistogram, timerBuilder);
+            return invoke(register, timerBuilder, registry);
+        }
+
+        Object counter(Object registry, String name, String... tagValues) {
+            Object builder = invoke(counterBuilder, null, name);
+            builder = invoke(counterTags, builder, (Object) tagValues);
+            return invoke(counterRegister, builder, registry);
+        }
+
+        Object invoke(Method method, Object target, Object... args) {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
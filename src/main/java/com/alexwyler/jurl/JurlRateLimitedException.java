@@ -0,0 +1,39 @@
+package com.alexwyler.jurl;
+
+/**
+ * Thrown instead of sending a request when its {@link JurlRateLimiter} has no permit free within the time the request
+ * may wait for one.
+ */
+public class JurlRateLimitedException extends RuntimeException {
+
+    public Jurl getJurlInstance() {
+        return jurlInstance;
+    }
+
+    public void setJurlInstance(Jurl jurlInstance) {
+        this.jurlInstance = jurlInstance;
+    }
+
+    public String getRateLimiterKey() {
+        return rateLimiterKey;
+    }
+
+    /**
+     * Time in ms until a permit is free, when the request failed.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
+    private Jurl jurlInstance;
+    private final String rateLimiterKey;
+    private final long retryAfter;
+
+    public JurlRateLimitedException(Jurl jurlInstance, String rateLimiterKey, long retryAfter) {
+        super(String.format("Rate limit %s reached for %s to %s, next permit in %d ms",
+                rateLimiterKey, jurlInstance.getMethod(), jurlInstance.getUrlWithParams(), retryAfter));
+        this.jurlInstance = jurlInstance;
+        this.rateLimiterKey = rateLimiterKey;
+        this.retryAfter = retryAfter;
+    }
+}
@@ -0,0 +1,276 @@
+package com.alexwyler.jurl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Keeps the requests sent to each upstream under a rate, so a partner's quota is never exceeded in the first place.
+ * There is one limit per key, the host and port by default, or e.g. an API key with {@link #keyFunction(Function)}.
+ * Every attempt, retries included, takes a permit before it is sent; one that would have to wait longer than
+ * {@link #maxWait(long)} fails with {@link JurlRateLimitedException} instead.  Hedged copies are only sent if a permit
+ * is free at once.
+ * <p>
+ * The limit is a generic cell rate algorithm (GCRA), the token bucket kept as a single timestamp per key: the time the
+ * next permit is due.  Taking a permit moves it on by one interval with a compare-and-set, so the limiter never locks
+ * and costs nothing per key while idle.  Up to {@link #burst(int)} permits can be taken at once after a quiet period.
+ * <p>
+ * With {@link #followResponseHeaders(boolean)}, on by default, each limit also follows what the upstream says: a
+ * {@code Retry-After} on a 429 or 503 stops requests until it has passed, and {@code X-RateLimit-Remaining} with
+ * {@code X-RateLimit-Reset} (or the same without {@code X-}) spreads the remaining quota evenly over the rest of the
+ * window, and stops requests until the reset once it runs out.
+ * <p>
+ * One limiter is meant to be shared: {@code new Jurl().rateLimiter(limiter)}.  It can also pace other work directly,
+ * with {@link #tryAcquire(String)}, {@link #tryAcquire(String, long, TimeUnit)} and {@link #acquire(String)}.
+ */
+public class JurlRateLimiter {
+
+    // X-RateLimit-Reset values above this are epoch seconds rather than seconds from now
+    private static final long EPOCH_SECONDS = 1_000_000_000L;
+
+    private double rate = 10; // permits per second
+    private int burst = 1;
+    private long maxWait = 1000; // ms, 0 to never wait, -1 to wait as long as the request's deadline allows
+    private boolean followResponseHeaders = true;
+    private Function<Jurl, String> keyFunction = Jurl::getHostKey;
+
+    private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+
+    /**
+     * Permits per second for each key.  10 by default.
+     */
+    public JurlRateLimiter rate(double permitsPerSecond) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("The rate must be positive.");
+        }
+        this.rate = permitsPerSecond;
+        return this;
+    }
+
+    /**
+     * Permits that can be taken at once after a quiet period.  1 by default, so requests are evenly spaced.
+     */
+    public JurlRateLimiter burst(int burst) {
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+        this.burst = burst;
+        return this;
+    }
+
+    /**
+     * Time in ms a request waits for a permit before failing: 0 to fail at once when none is free, or -1 to wait as
+     * long as the request's own deadline allows.  1 second by default.
+     */
+    public JurlRateLimiter maxWait(long maxWait) {
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    /**
+     * Whether limits follow {@code Retry-After} and {@code X-RateLimit-*} response headers.  True by default.
+     */
+    public JurlRateLimiter followResponseHeaders(boolean followResponseHeaders) {
+        this.followResponseHeaders = followResponseHeaders;
+        return this;
+    }
+
+    /**
+     * Which limit a request counts against.  The request's host and port by default.
+     */
+    public JurlRateLimiter keyFunction(Function<Jurl, String> keyFunction) {
+        this.keyFunction = keyFunction;
+        return this;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Takes a permit for {@code key} if one is free now.
+     */
+    public boolean tryAcquire(String key) {
+        return limit(key).reserve(0) == 0;
+    }
+
+    /**
+     * Takes a permit for {@code key}, waiting for it if it comes free within {@code timeout}.
+     */
+    public boolean tryAcquire(String key, long timeout, TimeUnit unit) throws InterruptedException {
+        final long wait = limit(key).reserve(unit.toNanos(timeout));
+        if (wait < 0) {
+            return false;
+        }
+        TimeUnit.NANOSECONDS.sleep(wait);
+        return true;
+    }
+
+    /**
+     * Takes a permit for {@code key}, waiting as long as it takes.
+     */
+    public void acquire(String key) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(limit(key).reserve(Long.MAX_VALUE));
+    }
+
+    /**
+     * Time in ms until a permit for {@code key} is free, 0 if one is free now.
+     */
+    public long getWaitMillis(String key) {
+        final Limit limit = limits.get(key);
+        return limit != null ? TimeUnit.NANOSECONDS.toMillis(limit.getWait(System.nanoTime())) : 0;
+    }
+
+    /**
+     * Permits per second currently allowed for {@code key}, below {@link #rate(double)} while the upstream's headers
+     * ask for less.
+     */
+    public double getRate(String key) {
+        final Limit limit = limits.get(key);
+        return limit != null ? 1e9 / limit.getInterval(System.nanoTime()) : rate;
+    }
+
+    String getKey(Jurl jurl) {
+        return keyFunction.apply(jurl);
+    }
+
+    private Limit limit(String key) {
+        final Limit limit = limits.get(key);
+        return limit != null ? limit : limits.computeIfAbsent(key, k -> new Limit());
+    }
+
+    /**
+     * Takes a permit for {@code jurl}, returning how long in ns to wait before sending it, or throws
+     * {@link JurlRateLimitedException} if that would be longer than {@code maxWaitMillis}.
+     */
+    long reserve(Jurl jurl, long maxWaitMillis) {
+        final String key = getKey(jurl);
+        final Limit limit = limit(key);
+        final long wait = limit.reserve(TimeUnit.MILLISECONDS.toNanos(maxWaitMillis));
+        if (wait < 0) {
+            throw new JurlRateLimitedException(jurl, key,
+                    TimeUnit.NANOSECONDS.toMillis(limit.getWait(System.nanoTime())));
+        }
+        return wait;
+    }
+
+    /**
+     * Takes a permit for {@code jurl} if one is free now.
+     */
+    boolean tryReserve(Jurl jurl) {
+        return limit(getKey(jurl)).reserve(0) == 0;
+    }
+
+    /**
+     * Adjusts the limit for {@code jurl} to what its response's headers say about the upstream's quota.
+     */
+    void onResponse(Jurl jurl) {
+        if (!followResponseHeaders) {
+            return;
+        }
+        final Limit limit = limit(getKey(jurl));
+        final long now = System.nanoTime();
+        final int code = jurl.getResponseCode();
+        final String retryAfter = jurl.getReceivedHeader("Retry-After");
+        if ((code == 429 || code == 503) && retryAfter != null) {
+            limit.pauseUntil(now + TimeUnit.MILLISECONDS.toNanos(JurlBackoffRetryPolicy.getRetryAfter(retryAfter)));
+        }
+        final long remaining = parseLong(getRateLimitHeader(jurl, "Remaining"));
+        final long reset = parseLong(getRateLimitHeader(jurl, "Reset"));
+        if (remaining < 0 || reset < 0) {
+            return;
+        }
+        final long resetMillis = reset > EPOCH_SECONDS
+                ? reset * 1000 - System.currentTimeMillis() : TimeUnit.SECONDS.toMillis(reset);
+        if (resetMillis <= 0) {
+            return;
+        }
+        final long resetAt = now + TimeUnit.MILLISECONDS.toNanos(resetMillis);
+        if (remaining == 0) {
+            limit.pauseUntil(resetAt);
+        } else {
+            limit.pace(TimeUnit.MILLISECONDS.toNanos(resetMillis) / remaining, resetAt);
+        }
+    }
+
+    private static String getRateLimitHeader(Jurl jurl, String name) {
+        final String value = jurl.getReceivedHeader("X-RateLimit-" + name);
+        return value != null ? value : jurl.getReceivedHeader("RateLimit-" + name);
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long later(long a, long b) {
+        return a - b >= 0 ? a : b;
+    }
+
+    final class Limit {
+        // when the next permit may be taken, on System.nanoTime()'s clock; the GCRA's theoretical arrival time less
+        // the burst tolerance
+        private final AtomicLong due;
+        private volatile long pacedInterval; // ns, 0 unless the upstream asked for a slower pace
+        private volatile long pacedUntil;
+
+        Limit() {
+            due = new AtomicLong(System.nanoTime() - tolerance(getInterval(System.nanoTime())));
+        }
+
+        long getInterval(long now) {
+            final long interval = (long) (1e9 / rate);
+            final long paced = pacedInterval;
+            return paced > interval && pacedUntil - now > 0 ? paced : interval;
+        }
+
+        private long tolerance(long interval) {
+            return interval * (burst - 1);
+        }
+
+        long getWait(long now) {
+            return Math.max(0, due.get() - now);
+        }
+
+        /**
+         * Takes the next permit if it is due within {@code maxWait} ns, returning how long until it is due, or -1
+         * without taking it.
+         */
+        long reserve(long maxWait) {
+            while (true) {
+                final long now = System.nanoTime();
+                final long interval = getInterval(now);
+                final long current = due.get();
+                final long wait = Math.max(0, current - now);
+                if (wait > maxWait) {
+                    return -1;
+                }
+                // an idle limit saves up at most the burst
+                final long next = later(current, now - tolerance(interval)) + interval;
+                if (due.compareAndSet(current, next)) {
+                    return wait;
+                }
+            }
+        }
+
+        /**
+         * Holds every permit back until {@code until}.
+         */
+        void pauseUntil(long until) {
+            due.accumulateAndGet(until, JurlRateLimiter::later);
+        }
+
+        void pace(long interval, long until) {
+            pacedInterval = interval;
+            pacedUntil = until;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.alexwyler.jurl;
+
+/**
+ * Thrown when the server sent no data for longer than {@link Jurl#readTimeout(long)}.
+ */
+public class JurlReadTimeoutException extends JurlTimeoutException {
+
+    public JurlReadTimeoutException(Jurl jurlInstance, Throwable cause) {
+        super(jurlInstance, "Timed out reading the response", cause);
+    }
+}
@@ -0,0 +1,392 @@
+package com.alexwyler.jurl;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.entity.NFileEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A request body that is not a String.  Each attempt asks for a fresh {@link HttpEntity}, which is written straight
+ * to the connection: byte arrays and buffers are not copied, files are sent with {@link FileChannel#transferTo}, and
+ * JSON is serialized once to bytes, or directly onto the wire when streamed.  The entities also implement {@link HttpAsyncContentProducer} so the
+ * non-blocking client writes them to the socket channel without going through an {@link InputStream}.
+ */
+abstract class JurlRequestBody {
+
+    static final ContentType OCTET_STREAM = ContentType.APPLICATION_OCTET_STREAM;
+
+    abstract HttpEntity toEntity() throws IOException;
+
+    /**
+     * Length in bytes, or -1 when unknown until the body is written.
+     */
+    abstract long length();
+
+    /**
+     * Whether the body can be sent more than once, and so whether the request can be retried.
+     */
+    boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * The body as text, for {@link Jurl#getRequestBody()}, or null when it is not held in memory.
+     */
+    abstract String asString();
+
+    /**
+     * The curl arguments that send this body.
+     */
+    String toCurl() {
+        String body = asString();
+        return body == null || body.isEmpty() ? "" : String.format(" --data-binary '%s'", body.replaceAll("'", "\\'"));
+    }
+
+    static class BytesBody extends JurlRequestBody {
+        private final byte[] bytes;
+
+        BytesBody(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        HttpEntity toEntity() {
+            return new NByteArrayEntity(bytes, OCTET_STREAM);
+        }
+
+        @Override
+        long length() {
+            return bytes.length;
+        }
+
+        @Override
+        String asString() {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    static class BufferBody extends JurlRequestBody {
+        private final ByteBuffer buffer;
+
+        BufferBody(ByteBuffer buffer) {
+            // the caller's position and limit are left alone; every attempt sends from the same starting point
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        HttpEntity toEntity() {
+            return new ByteBufferEntity(buffer.duplicate());
+        }
+
+        @Override
+        long length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        String asString() {
+            return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+        }
+    }
+
+    static class FileBody extends JurlRequestBody {
+        private final Path path;
+
+        FileBody(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        HttpEntity toEntity() {
+            return new FileChannelEntity(path);
+        }
+
+        @Override
+        long length() {
+            try {
+                return Files.size(path);
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        String asString() {
+            return null;
+        }
+
+        @Override
+        String toCurl() {
+            return String.format(" --data-binary '@%s'", path);
+        }
+    }
+
+    static class StreamBody extends JurlRequestBody {
+        private final InputStream stream;
+        private final long length;
+        private boolean sent;
+
+        StreamBody(InputStream stream, long length) {
+            this.stream = stream;
+            this.length = length;
+        }
+
+        @Override
+        synchronized HttpEntity toEntity() throws IOException {
+            if (sent) {
+                throw new IOException("An InputStream request body can only be sent once.");
+            }
+            sent = true;
+            return new InputStreamEntity(stream, length, OCTET_STREAM);
+        }
+
+        @Override
+        long length() {
+            return length;
+        }
+
+        @Override
+        boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        String asString() {
+            return null;
+        }
+
+        @Override
+        String toCurl() {
+            return " --data-binary @-";
+        }
+    }
+
+    static class JsonBody extends JurlRequestBody {
+        private final ObjectMapper mapper;
+        private final Object value;
+        private final boolean stream;
+        private byte[] bytes;
+
+        JsonBody(ObjectMapper mapper, Object value, boolean stream) {
+            this.mapper = mapper;
+            this.value = value;
+            this.stream = stream;
+        }
+
+        /**
+         * The value serialized once, on first use, and reused by every attempt and by {@link #asString()}.
+         */
+        private synchronized byte[] bytes() {
+            if (bytes == null) {
+                try {
+                    bytes = mapper.writeValueAsBytes(value);
+                } catch (JsonProcessingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return bytes;
+        }
+
+        @Override
+        HttpEntity toEntity() {
+            return stream ? new JsonEntity(mapper, value) : new NByteArrayEntity(bytes(), ContentType.APPLICATION_JSON);
+        }
+
+        @Override
+        long length() {
+            return stream ? -1 : bytes().length;
+        }
+
+        @Override
+        String asString() {
+            return new String(bytes(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        String toCurl() {
+            return String.format(" --data '%s'", asString().replaceAll("'", "\\'"));
+        }
+    }
+
+    /**
+     * Sends a buffer without copying it into a byte array first; heap buffers are written from their backing array and
+     * direct buffers go to the channel as they are.
+     */
+    static class ByteBufferEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+        private final ByteBuffer buffer;
+        private ByteBuffer producing;
+
+        ByteBufferEntity(ByteBuffer buffer) {
+            this.buffer = buffer;
+            setContentType(OCTET_STREAM.toString());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public InputStream getContent() {
+            if (buffer.hasArray()) {
+                return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+            }
+            ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+            copy.put(buffer.duplicate());
+            return new ByteArrayInputStream(copy.array());
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                WritableByteChannel channel = Channels.newChannel(out);
+                ByteBuffer source = buffer.duplicate();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            }
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            if (producing == null) {
+                producing = buffer.duplicate();
+            }
+            encoder.write(producing);
+            if (!producing.hasRemaining()) {
+                encoder.complete();
+                producing = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            producing = null;
+        }
+    }
+
+    /**
+     * A file sent with {@link FileChannel#transferTo}.  On the non-blocking client {@link NFileEntity} hands the file
+     * channel to the socket, so the kernel copies the file without it passing through the heap.
+     */
+    static class FileChannelEntity extends NFileEntity {
+        private final Path path;
+
+        FileChannelEntity(Path path) {
+            super(path.toFile(), OCTET_STREAM);
+            this.path = path;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long size = channel.size();
+                long position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Serializes a value straight onto the connection with no intermediate String or byte array.  The length is not
+     * known up front, so the body is sent chunked; see {@link Jurl#bodyJson(Object, boolean)}.
+     */
+    static class JsonEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+        private final ObjectMapper mapper;
+        private final Object value;
+        private ByteBuffer producing;
+
+        JsonEntity(ObjectMapper mapper, Object value) {
+            this.mapper = mapper;
+            this.value = value;
+            setContentType(ContentType.APPLICATION_JSON.toString());
+            setChunked(true);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new ByteArrayInputStream(mapper.writeValueAsBytes(value));
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            // the connection's stream is closed by the client once the entity is written, not by the generator
+            JsonGenerator generator = mapper.getFactory().createGenerator(out);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            mapper.writeValue(generator, value);
+            generator.close();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            // the non-blocking client pulls content as the socket can take it, so the value is serialized once up front
+            if (producing == null) {
+                producing = ByteBuffer.wrap(mapper.writeValueAsBytes(value));
+            }
+            encoder.write(producing);
+            if (!producing.hasRemaining()) {
+                encoder.complete();
+                producing = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            producing = null;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.alexwyler.jurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives a streamed response body from {@link Jurl#goStreaming(JurlResponseConsumer)}.
+ */
+@FunctionalInterface
+public interface JurlResponseConsumer {
+
+    /**
+     * Reads the response body.  The stream is closed by the caller once this returns.
+     */
+    void accept(InputStream body) throws IOException;
+}
@@ -0,0 +1,58 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * An immutable, fully buffered copy of a response: status, headers as Jurl received them (after any decoding) and the
+ * body bytes.  Replaying it through {@link #toHttpResponse()} fills a {@link Jurl} exactly as the original network
+ * response did.
+ */
+final class JurlResponseSnapshot {
+
+    final int code;
+    final String reason;
+    final Header[] headers;
+    final byte[] body;
+
+    JurlResponseSnapshot(int code, String reason, Header[] headers, byte[] body) {
+        this.code = code;
+        this.reason = reason;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    Header getFirstHeader(String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Approximate bytes held by this snapshot.
+     */
+    long size() {
+        long size = body != null ? body.length : 0;
+        for (Header header : headers) {
+            size += header.getName().length() + header.getValue().length();
+        }
+        return size;
+    }
+
+    HttpResponse toHttpResponse() {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, code, reason);
+        response.setHeaders(headers);
+        if (body != null) {
+            final ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(response.getFirstHeader("Content-Type"));
+            response.setEntity(entity);
+        }
+        return response;
+    }
+}
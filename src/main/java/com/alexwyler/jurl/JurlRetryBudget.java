@@ -0,0 +1,67 @@
+package com.alexwyler.jurl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps retries at a share of the requests made, so that a brownout upstream cannot be multiplied by every client
+ * retrying at once.  A token bucket shared between requests: each request deposits {@code ratio} of a token, up to
+ * {@code maxTokens}, and each retry has to withdraw a whole one.  With a ratio of 0.1, retries can add at most 10% to
+ * the traffic once the initial tokens are spent.
+ * <p>
+ * Lock-free; one budget is meant to be shared by every request to an upstream.
+ */
+public class JurlRetryBudget {
+
+    private static final long SCALE = 1000; // tokens are kept in thousandths
+
+    private final long deposit;
+    private final long maxTokens;
+    private final AtomicLong tokens;
+
+    /**
+     * @param ratio     retries allowed per request, e.g. 0.1 for 10%
+     * @param maxTokens most retries that can be saved up, and how many are available before any request is made
+     */
+    public JurlRetryBudget(double ratio, int maxTokens) {
+        if (ratio < 0 || maxTokens < 0) {
+            throw new IllegalArgumentException("ratio and maxTokens must not be negative");
+        }
+        this.deposit = Math.round(ratio * SCALE);
+        this.maxTokens = maxTokens * SCALE;
+        this.tokens = new AtomicLong(this.maxTokens);
+    }
+
+    /**
+     * Credits the budget for a request about to be made.
+     */
+    public void recordRequest() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= maxTokens) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(maxTokens, current + deposit)));
+    }
+
+    /**
+     * Withdraws a token for a retry, returning false, and leaving the budget untouched, if there is none left.
+     */
+    public boolean tryAcquireRetry() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < SCALE) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - SCALE));
+        return true;
+    }
+
+    /**
+     * Whole retries currently available.
+     */
+    public long getAvailableRetries() {
+        return tokens.get() / SCALE;
+    }
+}
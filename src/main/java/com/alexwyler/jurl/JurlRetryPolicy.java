@@ -0,0 +1,31 @@
+package com.alexwyler.jurl;
+
+/**
+ * Decides whether, and after how long, {@link Jurl#go()} tries again once an attempt has failed.  The default,
+ * {@link #fixed(long)}, retries 5xx responses and any exception after {@link Jurl#timeBetweenAttempts(long)};
+ * {@link JurlBackoffRetryPolicy} backs off exponentially with jitter and honours {@code Retry-After}.
+ * <p>
+ * Policies are shared between requests and called from whichever thread finished the attempt, so they must be
+ * thread-safe.  Retries are still limited by {@link Jurl#maxAttempts(int)}, the deadline and any
+ * {@link Jurl#retryBudget(JurlRetryBudget)}.
+ */
+@FunctionalInterface
+public interface JurlRetryPolicy {
+
+    /**
+     * Called after attempt number {@code attempt} (from 1) either failed with {@code error} or, when {@code error} is
+     * null, received the response now readable from {@code jurl}.
+     *
+     * @param previousDelay the delay returned before the previous attempt, or 0 after the first
+     * @return ms to wait before the next attempt, or -1 to stop and keep this outcome
+     */
+    long retryDelay(Jurl jurl, int attempt, long previousDelay, Exception error);
+
+    /**
+     * Retries responses with a 5xx status and every exception, {@code delay} ms apart.
+     */
+    static JurlRetryPolicy fixed(long delay) {
+        return (jurl, attempt, previousDelay, error) ->
+                error != null || (jurl.getResponseCode() >= 500 && jurl.getResponseCode() < 600) ? delay : -1;
+    }
+}
@@ -0,0 +1,87 @@
+package com.alexwyler.jurl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A long-lived client for one partner or site: its own connection pool, headers sent with every request, and a
+ * {@link JurlCookieJar} that every request reads and fills, so cookies set by one response go out with the next
+ * request that matches them, whichever thread makes it.
+ * <pre>{@code
+ * try (JurlSession session = new JurlSession().header("User-Agent", "jurl")) {
+ *     session.newJurl("https://example.com/login").method("POST").param("user", user).go();
+ *     String page = session.newJurl("https://example.com/account").go().getResponseBody();
+ * }
+ * }</pre>
+ * Thread safe.  A session made without an engine creates its own and closes it in {@link #close()}; one given an
+ * engine leaves it open.
+ */
+public class JurlSession implements Closeable {
+
+    private final JurlEngine engine;
+    private final boolean ownsEngine;
+    private final JurlCookieJar cookieJar;
+    private volatile JurlHeaders headers = new JurlHeaders(); // replaced, never changed, once published
+
+    public JurlSession() {
+        this(new JurlEngine(), true, new JurlCookieJar());
+    }
+
+    public JurlSession(JurlEngine engine) {
+        this(engine, false, new JurlCookieJar());
+    }
+
+    public JurlSession(JurlEngine engine, JurlCookieJar cookieJar) {
+        this(engine, false, cookieJar);
+    }
+
+    private JurlSession(JurlEngine engine, boolean ownsEngine, JurlCookieJar cookieJar) {
+        this.engine = engine;
+        this.ownsEngine = ownsEngine;
+        this.cookieJar = cookieJar;
+    }
+
+    /**
+     * Adds a header sent with every request made from now on.
+     */
+    public synchronized JurlSession header(String name, String value) {
+        final JurlHeaders headers = new JurlHeaders(this.headers);
+        headers.add(name, value);
+        this.headers = headers;
+        return this;
+    }
+
+    /**
+     * A new request on this session's engine, with its headers and cookies.
+     */
+    public Jurl newJurl() {
+        final Jurl jurl = new Jurl().engine(engine).cookieJar(cookieJar);
+        jurl.requestHeaders = new JurlHeaders(headers);
+        return jurl;
+    }
+
+    public Jurl newJurl(String url) {
+        return newJurl().url(url);
+    }
+
+    public JurlEngine getEngine() {
+        return engine;
+    }
+
+    public JurlCookieJar getCookieJar() {
+        return cookieJar;
+    }
+
+    public Map<String, List<String>> getHeaders() {
+        return headers.asMap();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsEngine) {
+            engine.close();
+        }
+    }
+}
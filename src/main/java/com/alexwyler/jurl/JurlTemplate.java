@@ -0,0 +1,196 @@
+package com.alexwyler.jurl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URIBuilder;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The shared part of many requests, frozen so each call only adds what varies:
+ * <pre>{@code
+ * JurlTemplate api = new Jurl().url("https://api.example.com/v1").basicHttpAuth(user, password)
+ *         .header("Accept-Language", "en").timeout(2000).maxAttempts(3).toTemplate();
+ * Jurl jurl = api.newJurl("/orders").param("status", "open").go();
+ * }</pre>
+ * The URL is parsed, the auth header encoded and the cookie string built once, when the template is made; each
+ * {@link #newJurl()} copies them into a fresh {@link Jurl} without parsing or encoding anything again.  Policies,
+ * caches, cookie jars and engines are shared by every request stamped from the template, as they would be if each set
+ * them itself.
+ * <p>
+ * Immutable and thread safe.  Later changes to the {@link Jurl} it was made from do not affect it.  A request body can
+ * be part of the template only if it can be sent more than once.
+ */
+public final class JurlTemplate {
+
+    private final String method;
+    private final URL url;
+    private final URI baseUri; // without its query, which is in params
+    private final List<NameValuePair> params;
+    private final JurlHeaders headers;
+    private final List<NameValuePair> cookies;
+    private final String cookieString;
+    private final JurlCookieJar cookieJar;
+    private final String requestBody;
+    private final JurlRequestBody requestContent;
+    private final boolean streamResponse;
+    private final boolean acceptEncoding;
+    private final long compressRequestsAbove;
+    private final JurlCache cache;
+    private final boolean coalesce;
+    private final long timeout;
+    private final long connectTimeout;
+    private final long leaseTimeout;
+    private final long readTimeout;
+    private final int maxAttempts;
+    private final long timeBetweenAttempts;
+    private final JurlRetryPolicy retryPolicy;
+    private final JurlRetryBudget retryBudget;
+    private final JurlCircuitBreaker circuitBreaker;
+    private final JurlBulkhead bulkhead;
+    private final JurlRateLimiter rateLimiter;
+    private final JurlHedgePolicy hedgePolicy;
+    private final boolean throwOnNon200;
+    private final boolean followRedirects;
+    private final ObjectMapper jacksonObjectMapper;
+    private final XmlMapper jacksonXmlMapper;
+    private final JurlEngine engine;
+    private final boolean nonBlocking;
+    private final List<JurlListener> listeners;
+
+    /**
+     * A template of everything {@code jurl} has been told so far, other than its response.
+     *
+     * @see Jurl#toTemplate()
+     */
+    public JurlTemplate(Jurl jurl) {
+        if (jurl.requestContent != null && !jurl.requestContent.isRepeatable()) {
+            throw new IllegalArgumentException("A template cannot hold a request body that can only be sent once.");
+        }
+        this.method = jurl.method;
+        this.url = jurl.url;
+        try {
+            this.baseUri = jurl.url != null ? new URIBuilder(jurl.builder.build()).removeQuery().build() : null;
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+        this.params = Collections.unmodifiableList(new ArrayList<>(jurl.builder.getQueryParams()));
+        this.headers = new JurlHeaders(jurl.requestHeaders);
+        this.cookies = Collections.unmodifiableList(new ArrayList<>(jurl.requestCookies));
+        this.cookieString = jurl.getCookieString();
+        this.cookieJar = jurl.cookieJar;
+        this.requestBody = jurl.requestBody;
+        this.requestContent = jurl.requestContent;
+        this.streamResponse = jurl.streamResponse;
+        this.acceptEncoding = jurl.acceptEncoding;
+        this.compressRequestsAbove = jurl.compressRequestsAbove;
+        this.cache = jurl.cache;
+        this.coalesce = jurl.coalesce;
+        this.timeout = jurl.timeout;
+        this.connectTimeout = jurl.connectTimeout;
+        this.leaseTimeout = jurl.leaseTimeout;
+        this.readTimeout = jurl.readTimeout;
+        this.maxAttempts = jurl.maxAttempts;
+        this.timeBetweenAttempts = jurl.timeBetweenAttempts;
+        this.retryPolicy = jurl.retryPolicy;
+        this.retryBudget = jurl.retryBudget;
+        this.circuitBreaker = jurl.circuitBreaker;
+        this.bulkhead = jurl.bulkhead;
+        this.rateLimiter = jurl.rateLimiter;
+        this.hedgePolicy = jurl.hedgePolicy;
+        this.throwOnNon200 = jurl.throwOnNon200;
+        this.followRedirects = jurl.followRedirects;
+        this.jacksonObjectMapper = jurl.jacksonObjectMapper;
+        this.jacksonXmlMapper = jurl.jacksonXmlMapper;
+        this.engine = jurl.engine;
+        this.nonBlocking = jurl.nonBlocking;
+        this.listeners = jurl.listeners != null ? Collections.unmodifiableList(new ArrayList<>(jurl.listeners)) : null;
+    }
+
+    /**
+     * A new request set up as the template describes, ready for the parts that vary.
+     */
+    public Jurl newJurl() {
+        return stamp(new Jurl(), url, baseUri);
+    }
+
+    /**
+     * A new request to the template's URL with {@code path} appended, e.g. {@code "/orders/42"}.
+     */
+    public Jurl newJurl(String path) {
+        if (url == null) {
+            throw new IllegalStateException("The template has no URL to append a path to.");
+        }
+        if (url.getQuery() != null) {
+            throw new IllegalStateException("The template's URL has a query; give its parameters with param().");
+        }
+        try {
+            final URL pathUrl = new URL(url.toString() + path);
+            return stamp(new Jurl(), pathUrl, pathUrl.toURI());
+        } catch (MalformedURLException | URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Jurl stamp(Jurl jurl, URL url, URI uri) {
+        jurl.method = method;
+        if (url != null) {
+            jurl.url = url;
+            jurl.builder = new URIBuilder(uri);
+            if (!params.isEmpty()) {
+                jurl.builder.addParameters(params);
+            }
+        }
+        jurl.requestHeaders = new JurlHeaders(headers);
+        if (!cookies.isEmpty()) {
+            // shared until the request changes its cookies; see Jurl#getMutableCookies()
+            jurl.requestCookies = cookies;
+            jurl.cookieString = cookieString;
+        }
+        jurl.cookieJar = cookieJar;
+        jurl.requestBody = requestBody;
+        jurl.requestContent = requestContent;
+        jurl.streamResponse = streamResponse;
+        jurl.acceptEncoding = acceptEncoding;
+        jurl.compressRequestsAbove = compressRequestsAbove;
+        jurl.cache = cache;
+        jurl.coalesce = coalesce;
+        jurl.timeout = timeout;
+        jurl.connectTimeout = connectTimeout;
+        jurl.leaseTimeout = leaseTimeout;
+        jurl.readTimeout = readTimeout;
+        jurl.maxAttempts = maxAttempts;
+        jurl.timeBetweenAttempts = timeBetweenAttempts;
+        jurl.retryPolicy = retryPolicy;
+        jurl.retryBudget = retryBudget;
+        jurl.circuitBreaker = circuitBreaker;
+        jurl.bulkhead = bulkhead;
+        jurl.rateLimiter = rateLimiter;
+        jurl.hedgePolicy = hedgePolicy;
+        jurl.throwOnNon200 = throwOnNon200;
+        jurl.followRedirects = followRedirects;
+        jurl.jacksonObjectMapper = jacksonObjectMapper;
+        jurl.jacksonXmlMapper = jacksonXmlMapper;
+        jurl.engine = engine;
+        jurl.nonBlocking = nonBlocking;
+        if (listeners != null) {
+            jurl.listeners = new ArrayList<>(listeners);
+        }
+        return jurl;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url != null ? url.toString() : null;
+    }
+}
@@ -0,0 +1,23 @@
+package com.alexwyler.jurl;
+
+/**
+ * Thrown by {@link Jurl#go()} when a request runs out of time.  Subclasses identify which limit was hit.
+ */
+public class JurlTimeoutException extends RuntimeException {
+
+    public Jurl getJurlInstance() {
+        return jurlInstance;
+    }
+
+    public void setJurlInstance(Jurl jurlInstance) {
+        this.jurlInstance = jurlInstance;
+    }
+
+    private Jurl jurlInstance;
+
+    public JurlTimeoutException(Jurl jurlInstance, String reason, Throwable cause) {
+        super(String.format("%s for %s to %s",
+                reason, jurlInstance.getMethod(), jurlInstance.getUrlWithParams()), cause);
+        this.jurlInstance = jurlInstance;
+    }
+}
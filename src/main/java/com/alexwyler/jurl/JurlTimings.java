@@ -0,0 +1,308 @@
+package com.alexwyler.jurl;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLIOSession;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Phase timings of one attempt, filled in by hooks in the engine's clients as the attempt runs.  The blocking client
+ * runs an attempt, including its redirects, on the caller's thread, so its hooks find the attempt's timings in
+ * {@link #CURRENT}.  Phases repeated by redirects add up.
+ */
+final class JurlTimings {
+
+    static final ThreadLocal<JurlTimings> CURRENT = new ThreadLocal<>();
+
+    private static final String STALE_CONNECTION = "jurl.stale-connection";
+
+    private final long[] nanos = new long[JurlMetrics.Phase.values().length];
+    private JurlMetrics.TlsHandshake tlsHandshake = JurlMetrics.TlsHandshake.NONE;
+
+    JurlTimings() {
+        Arrays.fill(nanos, -1);
+    }
+
+    synchronized void add(JurlMetrics.Phase phase, long elapsed) {
+        final int i = phase.ordinal();
+        nanos[i] = nanos[i] < 0 ? elapsed : nanos[i] + elapsed;
+    }
+
+    synchronized long get(JurlMetrics.Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    synchronized void setTlsHandshake(JurlMetrics.TlsHandshake tlsHandshake) {
+        this.tlsHandshake = tlsHandshake;
+    }
+
+    synchronized JurlMetrics.TlsHandshake getTlsHandshake() {
+        return tlsHandshake;
+    }
+
+    synchronized long[] toArray() {
+        return nanos.clone();
+    }
+
+    /**
+     * Adds the time since {@code start} to {@code phase} of the current thread's attempt, if there is one.
+     */
+    static void record(JurlMetrics.Phase phase, long start) {
+        final JurlTimings timings = CURRENT.get();
+        if (timings != null) {
+            timings.add(phase, System.nanoTime() - start);
+        }
+    }
+
+    static final class TimedDnsResolver implements DnsResolver {
+        private final DnsResolver delegate;
+
+        TimedDnsResolver(DnsResolver delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            final long start = System.nanoTime();
+            try {
+                return delegate.resolve(host);
+            } finally {
+                record(JurlMetrics.Phase.DNS, start);
+            }
+        }
+    }
+
+    /**
+     * Times connecting, racing the host's addresses when {@code happyEyeballs} is given.
+     */
+    static final class TimedPlainSocketFactory extends PlainConnectionSocketFactory {
+        private final JurlHappyEyeballs happyEyeballs;
+
+        TimedPlainSocketFactory(JurlHappyEyeballs happyEyeballs) {
+            this.happyEyeballs = happyEyeballs;
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                final InetAddress[] race = happyEyeballs != null
+                        ? happyEyeballs.getRace(host.getHostName(), remoteAddress) : null;
+                if (race != null) {
+                    return happyEyeballs.connect(race, remoteAddress.getPort(), connectTimeout, socket, localAddress);
+                }
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                record(JurlMetrics.Phase.CONNECT, start);
+            }
+        }
+    }
+
+    /**
+     * Splits connecting into TCP and the TLS handshake, which the superclass does in
+     * {@link #createLayeredSocket(Socket, String, int, HttpContext)}, racing the host's addresses when
+     * {@code happyEyeballs} is given.
+     */
+    static final class TimedSslSocketFactory extends SSLConnectionSocketFactory {
+        private final JurlHappyEyeballs happyEyeballs;
+        private final TlsStats tlsStats;
+
+        TimedSslSocketFactory(SSLContext sslContext, JurlHappyEyeballs happyEyeballs, TlsStats tlsStats) {
+            super(sslContext, getDefaultHostnameVerifier());
+            this.happyEyeballs = happyEyeballs;
+            this.tlsStats = tlsStats;
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            final InetAddress[] race = happyEyeballs != null
+                    ? happyEyeballs.getRace(host.getHostName(), remoteAddress) : null;
+            if (race != null) {
+                final long start = System.nanoTime();
+                final Socket plain;
+                try {
+                    plain = happyEyeballs.connect(race, remoteAddress.getPort(), connectTimeout, socket, localAddress);
+                } finally {
+                    record(JurlMetrics.Phase.CONNECT, start);
+                }
+                try {
+                    // as the superclass does, so the handshake cannot hang
+                    if (connectTimeout > 0 && plain.getSoTimeout() == 0) {
+                        plain.setSoTimeout(connectTimeout);
+                    }
+                    return createLayeredSocket(plain, host.getHostName(), remoteAddress.getPort(), context);
+                } catch (IOException e) {
+                    plain.close();
+                    throw e;
+                }
+            }
+            final JurlTimings timings = CURRENT.get();
+            final long tlsBefore = timings != null ? Math.max(0, timings.get(JurlMetrics.Phase.TLS)) : 0;
+            final long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                if (timings != null) {
+                    final long tls = Math.max(0, timings.get(JurlMetrics.Phase.TLS)) - tlsBefore;
+                    timings.add(JurlMetrics.Phase.CONNECT, System.nanoTime() - start - tls);
+                }
+            }
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            final long start = System.nanoTime();
+            final long startMillis = System.currentTimeMillis();
+            final Socket layered;
+            try {
+                layered = super.createLayeredSocket(socket, target, port, context);
+            } finally {
+                record(JurlMetrics.Phase.TLS, start);
+            }
+            final boolean resumed = tlsStats.record(((SSLSocket) layered).getSession(), startMillis);
+            final JurlTimings timings = CURRENT.get();
+            if (timings != null) {
+                timings.setTlsHandshake(resumed ? JurlMetrics.TlsHandshake.RESUMED : JurlMetrics.TlsHandshake.FULL);
+            }
+            return layered;
+        }
+    }
+
+    /**
+     * Counts the TLS handshakes of an engine, and how many of them resumed an earlier session instead of negotiating a
+     * new one.  JSSE keeps a resumed session's creation time, so a handshake resumed if its session is older than the
+     * handshake.
+     */
+    static final class TlsStats {
+        final LongAdder handshakes = new LongAdder();
+        final LongAdder resumed = new LongAdder();
+
+        /**
+         * Counts the handshake started at {@code startMillis} that produced {@code session}, returning whether it
+         * resumed.
+         */
+        boolean record(SSLSession session, long startMillis) {
+            final boolean isResumed = session.getCreationTime() < startMillis;
+            handshakes.increment();
+            if (isResumed) {
+                resumed.increment();
+            }
+            return isResumed;
+        }
+    }
+
+    /**
+     * Counts the non-blocking client's TLS handshakes into {@code tlsStats}.  They are not timed, as the non-blocking
+     * client does not break out connection set up.
+     */
+    static final class CountingSslStrategy extends SSLIOSessionStrategy {
+        private static final String HANDSHAKE_START = "jurl.tls.start";
+
+        private final TlsStats tlsStats;
+
+        CountingSslStrategy(SSLContext sslContext, TlsStats tlsStats) {
+            super(sslContext, getDefaultHostnameVerifier());
+            this.tlsStats = tlsStats;
+        }
+
+        @Override
+        public SSLIOSession upgrade(HttpHost host, IOSession iosession) throws IOException {
+            iosession.setAttribute(HANDSHAKE_START, System.currentTimeMillis());
+            return super.upgrade(host, iosession);
+        }
+
+        @Override
+        protected void verifySession(HttpHost host, IOSession iosession, SSLSession sslsession) throws SSLException {
+            super.verifySession(host, iosession, sslsession);
+            final Object start = iosession.getAttribute(HANDSHAKE_START);
+            tlsStats.record(sslsession, start instanceof Long ? (Long) start : System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Times sending each request and waiting for its response's headers.  Also notes, for {@link #isStaleConnection},
+     * when a connection taken from the pool failed before any response arrived.
+     */
+    static final class TimedRequestExecutor extends HttpRequestExecutor {
+        @Override
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            final long start = System.nanoTime();
+            final boolean reused = conn.getMetrics().getResponseCount() > 0;
+            context.setAttribute(STALE_CONNECTION, false);
+            try {
+                return super.execute(request, conn, context);
+            } catch (NoHttpResponseException | SocketException e) {
+                context.setAttribute(STALE_CONNECTION, reused);
+                throw e;
+            } finally {
+                record(JurlMetrics.Phase.FIRST_BYTE, start);
+            }
+        }
+    }
+
+    /**
+     * Whether the blocking client's last request in {@code context} failed on a pooled connection that the server had
+     * already closed, so the server never saw the request.
+     */
+    static boolean isStaleConnection(HttpContext context) {
+        return Boolean.TRUE.equals(context.getAttribute(STALE_CONNECTION));
+    }
+
+    /**
+     * Buffers a non-blocking response like the default consumer, noting when its headers and the end of its body
+     * arrive.
+     */
+    static final class TimedResponseConsumer extends BasicAsyncResponseConsumer {
+        private final JurlTimings timings;
+        private final long start;
+        private volatile long headersAt;
+
+        TimedResponseConsumer(JurlTimings timings, long start) {
+            this.timings = timings;
+            this.start = start;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws IOException {
+            headersAt = System.nanoTime();
+            timings.add(JurlMetrics.Phase.FIRST_BYTE, headersAt - start);
+            super.onResponseReceived(response);
+        }
+
+        @Override
+        protected HttpResponse buildResult(HttpContext context) {
+            if (headersAt != 0) {
+                timings.add(JurlMetrics.Phase.BODY, System.nanoTime() - headersAt);
+            }
+            return super.buildResult(context);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.alexwyler.jurl;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link Jurl#goAsync()} with 1k and 10k requests in flight against a loopback stub server that answers
+ * after a fixed delay.  Compares the default 100-thread pool, virtual threads (Java 21+) and the non-blocking client.
+ * <p>
+ * Not a unit test; run it with {@code java -cp <test classpath> com.alexwyler.jurl.JurlConcurrencyBenchmark}.  Add
+ * {@code -Djdk.tracePinnedThreads=full} to report any virtual thread pinned while blocked.
+ */
+public class JurlConcurrencyBenchmark {
+
+    static final long SERVER_DELAY = 20; // ms
+    static final int CONNECTIONS = 200; // the JDK stub server keeps at most 200 idle connections
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 20000);
+        server.setExecutor(JurlExecutors.isVirtualThreadSupported()
+                ? JurlExecutors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(SERVER_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "{\"ok\": true}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/";
+
+        try {
+            // warm up the JIT
+            run("warmup", url, Executors.newFixedThreadPool(100), false, 2000);
+            run("warmup", url, null, true, 2000);
+
+            for (int concurrency : new int[]{1000, 10000}) {
+                run("platform-100", url, Executors.newFixedThreadPool(100), false, concurrency);
+                if (JurlExecutors.isVirtualThreadSupported()) {
+                    run("virtual", url, JurlExecutors.newVirtualThreadPerTaskExecutor(), false, concurrency);
+                } else {
+                    System.out.println("virtual: not supported on this JVM");
+                }
+                run("non-blocking", url, null, true, concurrency);
+            }
+        } finally {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdownNow();
+        }
+    }
+
+    static void run(String name, String url, ExecutorService executor, boolean nonBlocking, int concurrency)
+            throws IOException {
+        ExecutorService previous = Jurl.backgroundExecutor;
+        if (executor != null) {
+            Jurl.setBackgroundExecutor(executor);
+        }
+        // a fresh pool per run, so idle connections from one mode never count against the stub server's limit
+        try (JurlEngine engine = new JurlEngine().maxTotal(CONNECTIONS).maxPerRoute(CONNECTIONS)) {
+            long start = System.nanoTime();
+            List<CompletableFuture<Jurl>> futures = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                futures.add(new Jurl().engine(engine).url(url).timeout(0).nonBlocking(nonBlocking).goAsync());
+            }
+            int errors = 0;
+            for (CompletableFuture<Jurl> future : futures) {
+                try {
+                    if (future.join().getResponseCode() != 200) {
+                        errors++;
+                    }
+                } catch (RuntimeException e) {
+                    errors++;
+                }
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.printf("%-14s concurrency=%-6d elapsed=%6d ms  throughput=%8.0f req/s  errors=%d  threads=%d%n",
+                    name, concurrency, elapsed, concurrency * 1000.0 / Math.max(1, elapsed), errors,
+                    Thread.activeCount());
+        } finally {
+            Jurl.setBackgroundExecutor(previous);
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+}
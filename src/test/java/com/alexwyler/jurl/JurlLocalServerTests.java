@@ -0,0 +1,2000 @@
+package com.alexwyler.jurl;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.NameValuePair;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpCookie;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Tests against an in-process loopback server, so they run without network access.
+ */
+public class JurlLocalServerTests {
+
+    static HttpServer server;
+    static String baseUrl;
+    static final Map<String, AtomicInteger> fetches = new ConcurrentHashMap<>();
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/echo-port", exchange ->
+                respond(exchange, 200, String.valueOf(exchange.getRemoteAddress().getPort())));
+        server.createContext("/mirror", exchange -> {
+            Map<String, String> request = new HashMap<>();
+            request.put("path", exchange.getRequestURI().getPath());
+            request.put("query", exchange.getRequestURI().getRawQuery());
+            request.put("authorization", exchange.getRequestHeaders().getFirst("Authorization"));
+            request.put("cookie", exchange.getRequestHeaders().getFirst("Cookie"));
+            request.put("language", exchange.getRequestHeaders().getFirst("Accept-Language"));
+            respond(exchange, 200, Jurl.DEFAULT_OBJECT_MAPPER.writeValueAsString(request));
+        });
+        server.createContext("/login", exchange -> {
+            exchange.getResponseHeaders().add("Set-Cookie", "session=abc; Path=/");
+            exchange.getResponseHeaders().add("Set-Cookie", "scoped=1; Path=/mirror/private");
+            exchange.getResponseHeaders().add("Set-Cookie", "foreign=x; Domain=example.com");
+            respond(exchange, 200, "{}");
+        });
+        server.createContext("/login-redirect", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() != -1) {
+                    // the body is ignored
+                }
+            }
+            exchange.getResponseHeaders().add("Set-Cookie", "sid=1; Path=/");
+            exchange.getResponseHeaders().add("Location", "/mirror");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/bounce", exchange -> {
+            exchange.getResponseHeaders().add("Location", exchange.getRequestURI().getQuery().substring("to=".length()));
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/logout", exchange -> {
+            exchange.getResponseHeaders().add("Set-Cookie", "session=; Path=/; Max-Age=0");
+            respond(exchange, 200, "{}");
+        });
+        server.createContext("/json", exchange ->
+                respond(exchange, 200, "{\"name\": \"jurl\", \"count\": 3}"));
+        server.createContext("/slow", exchange -> {
+            fetches.computeIfAbsent(exchange.getRequestURI().toString(), k -> new AtomicInteger()).incrementAndGet();
+            try {
+                Thread.sleep(Long.parseLong(exchange.getRequestURI().getQuery().replaceAll("^ms=|&.*$", "")));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.createContext("/straggler", exchange -> {
+            // only the first request for each URI is slow
+            int count = fetches.computeIfAbsent(exchange.getRequestURI().toString(), k -> new AtomicInteger())
+                    .incrementAndGet();
+            if (count == 1) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            respond(exchange, 200, "{\"count\":" + count + "}");
+        });
+        server.createContext("/unavailable", exchange -> {
+            fetches.computeIfAbsent(exchange.getRequestURI().toString(), k -> new AtomicInteger()).incrementAndGet();
+            respond(exchange, 503, "{}");
+        });
+        server.createContext("/throttled", exchange -> {
+            int count = fetches.computeIfAbsent(exchange.getRequestURI().toString(), k -> new AtomicInteger())
+                    .incrementAndGet();
+            if (count == 1) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, 429, "{}");
+            } else {
+                respond(exchange, 200, "{}");
+            }
+        });
+        server.createContext("/quota", exchange -> {
+            for (String param : exchange.getRequestURI().getQuery().split("&")) {
+                String[] pair = param.split("=");
+                exchange.getResponseHeaders().add("X-RateLimit-" + pair[0], pair[1]);
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.createContext("/records", exchange -> {
+            int count = Integer.parseInt(exchange.getRequestURI().getQuery().replace("count=", ""));
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write('[');
+                for (int i = 0; i < count; i++) {
+                    out.write(String.format("%s{\"id\": %d, \"name\": \"record %d\"}", i > 0 ? "," : "", i, i)
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                out.write(']');
+            }
+        });
+        server.createContext("/latin1", exchange -> {
+            byte[] bytes = "caf\u00e9".getBytes(StandardCharsets.ISO_8859_1);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=ISO-8859-1");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.createContext("/nested", exchange -> respond(exchange, 200,
+                "{\"meta\": {\"items\": [0]}, \"data\": {\"total\": 3, \"items\": "
+                        + "[{\"id\": 1}, {\"id\": 2}, {\"id\": 3}]}}"));
+        server.createContext("/upload", exchange -> {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer)) != -1; ) {
+                    received.write(buffer, 0, n);
+                }
+            }
+            String encoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            exchange.getResponseHeaders().add("X-Content-Encoding",
+                    String.valueOf(exchange.getRequestHeaders().getFirst("Content-Encoding")));
+            exchange.getResponseHeaders().add("X-Transfer-Encoding", encoding == null ? "identity" : encoding);
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            exchange.getResponseHeaders().add("X-Content-Type", String.valueOf(contentType));
+            if (contentType != null) {
+                exchange.getResponseHeaders().add("Content-Type", contentType);
+            }
+            exchange.sendResponseHeaders(200, received.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                received.writeTo(out);
+            }
+        });
+        server.createContext("/compressed", exchange -> {
+            String accepted = String.valueOf(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            byte[] bytes = records(1000).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            if (accepted.contains("gzip")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(bytes);
+                }
+                bytes = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            } else if (accepted.contains("deflate")) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (DeflaterOutputStream deflate = new DeflaterOutputStream(compressed)) {
+                    deflate.write(bytes);
+                }
+                bytes = compressed.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "deflate");
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.createContext("/cacheable", exchange -> {
+            int count = fetches.computeIfAbsent(exchange.getRequestURI().toString(), k -> new AtomicInteger())
+                    .incrementAndGet();
+            exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            exchange.getResponseHeaders().add("Vary", "X-Variant");
+            String variant = exchange.getRequestHeaders().getFirst("X-Variant");
+            respond(exchange, 200, String.format("{\"count\": %d, \"variant\": \"%s\"}", count, variant));
+        });
+        server.createContext("/whoami", exchange -> {
+            int count = fetches.computeIfAbsent(exchange.getRequestURI().toString(), k -> new AtomicInteger())
+                    .incrementAndGet();
+            String query = exchange.getRequestURI().getQuery();
+            exchange.getResponseHeaders().add("Cache-Control", query.contains("cacheControl=public") ? "public, max-age=60"
+                    : query.contains("cacheControl=private") ? "private, max-age=60" : "max-age=60");
+            String user = exchange.getRequestHeaders().getFirst("Authorization");
+            respond(exchange, 200, String.format("{\"count\": %d, \"user\": \"%s\"}", count, user));
+        });
+        server.createContext("/etag", exchange -> {
+            String uri = exchange.getRequestURI().toString();
+            exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                fetches.computeIfAbsent(uri + "#304", k -> new AtomicInteger()).incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            fetches.computeIfAbsent(uri, k -> new AtomicInteger()).incrementAndGet();
+            respond(exchange, 200, "{\"name\": \"jurl\", \"count\": 3}");
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Record {
+        public long id;
+        public String name;
+    }
+
+    static String records(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            json.append(String.format("%s{\"id\": %d, \"name\": \"record %d\"}", i > 0 ? "," : "", i, i));
+        }
+        return json.append(']').toString();
+    }
+
+    static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Test
+    public void testConnectionReuse() throws IOException {
+        try (JurlEngine engine = new JurlEngine().maxPerRoute(1)) {
+            String port1 = new Jurl().engine(engine).url(baseUrl + "/echo-port").go().getResponseBody();
+            String port2 = new Jurl().engine(engine).url(baseUrl + "/echo-port").go().getResponseBody();
+            Assert.assertEquals(port1, port2);
+            Assert.assertEquals(1, engine.getTotalStats().getAvailable());
+        }
+    }
+
+    @Test
+    public void testDefaultEngine() {
+        Jurl jurl = new Jurl().url(baseUrl + "/json").go();
+        Assert.assertEquals(200, jurl.getResponseCode());
+        Assert.assertEquals("jurl", jurl.getResponseJsonMap().get("name"));
+        Assert.assertSame(Jurl.defaultEngine, jurl.getEngine());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEngineConfigurationFixedAfterStart() throws IOException {
+        try (JurlEngine engine = new JurlEngine()) {
+            engine.start();
+            engine.maxTotal(10);
+        }
+    }
+
+    @Test
+    public void testDeadlineAbortsSlowRequest() {
+        long start = System.currentTimeMillis();
+        try {
+            new Jurl().url(baseUrl + "/slow").param("ms", 2000).timeout(200).go();
+            Assert.fail();
+        } catch (JurlDeadlineExceededException e) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+        }
+    }
+
+    @Test(expected = JurlReadTimeoutException.class)
+    public void testReadTimeout() {
+        new Jurl().url(baseUrl + "/slow").param("ms", 1000).timeout(0).readTimeout(100).go();
+    }
+
+    @Test
+    public void testDeadlineCoversRetries() {
+        long start = System.currentTimeMillis();
+        Jurl jurl = new Jurl().url(baseUrl + "/unavailable")
+                .maxAttempts(10)
+                .timeBetweenAttempts(100)
+                .timeout(500)
+                .go();
+        Assert.assertEquals(503, jurl.getResponseCode());
+        Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    @Test
+    public void testLeaseTimeout() throws IOException, InterruptedException, ExecutionException {
+        try (JurlEngine engine = new JurlEngine().maxPerRoute(1)) {
+            Future<Jurl> slow = new Jurl().engine(engine).url(baseUrl + "/slow").param("ms", 500).goAsync();
+            Thread.sleep(100);
+            try {
+                new Jurl().engine(engine).url(baseUrl + "/json").leaseTimeout(50).go();
+                Assert.fail();
+            } catch (JurlLeaseTimeoutException e) {
+                Assert.assertNotNull(e.getJurlInstance());
+            }
+            Assert.assertEquals(200, slow.get().getResponseCode());
+        }
+    }
+
+    @Test
+    public void testNonBlocking() throws ExecutionException, InterruptedException {
+        String name = new Jurl().url(baseUrl + "/json").nonBlocking(true)
+                .goAsync()
+                .thenApply(jurl -> (String) jurl.getResponseJsonMap().get("name"))
+                .get();
+        Assert.assertEquals("jurl", name);
+    }
+
+    @Test
+    public void testNonBlockingRetriesAndHooks() throws ExecutionException, InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicInteger afterGo = new AtomicInteger();
+        Jurl jurl = new Jurl() {
+            @Override
+            protected void onBeforeAttempt() {
+                attempts.incrementAndGet();
+            }
+
+            @Override
+            protected void onAfterGo() {
+                afterGo.incrementAndGet();
+            }
+        }.url(baseUrl + "/unavailable").nonBlocking(true).maxAttempts(3).timeBetweenAttempts(10).goAsync().get();
+        Assert.assertEquals(503, jurl.getResponseCode());
+        Assert.assertEquals(3, attempts.get());
+        Assert.assertEquals(1, afterGo.get());
+
+        // hooks, listeners and chained callbacks run off the I/O and scheduler threads
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        new Jurl() {
+            @Override
+            protected void onAfterGo() {
+                threads.add(Thread.currentThread().getName());
+            }
+        }.url(baseUrl + "/json").nonBlocking(true)
+                .listener(new JurlListener() {
+                    @Override
+                    public void onComplete(JurlMetrics metrics) {
+                        threads.add(Thread.currentThread().getName());
+                    }
+                })
+                .goAsync()
+                .thenRun(() -> threads.add(Thread.currentThread().getName()))
+                .get();
+        new Jurl().url(baseUrl + "/slow").param("ms", 2000).nonBlocking(true).timeout(100).goAsync()
+                .handle((done, t) -> threads.add(Thread.currentThread().getName()))
+                .get();
+        Assert.assertEquals(4, threads.size());
+        for (String thread : threads) {
+            Assert.assertFalse(thread, thread.startsWith("I/O dispatcher") || thread.startsWith("jurl-scheduler"));
+        }
+    }
+
+    @Test
+    public void testNonBlockingDeadline() throws InterruptedException {
+        CompletableFuture<Jurl> future = new Jurl().url(baseUrl + "/slow").param("ms", 2000)
+                .nonBlocking(true).timeout(100).goAsync();
+        try {
+            future.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof JurlDeadlineExceededException);
+        }
+    }
+
+    @Test
+    public void testNonBlockingCancel() {
+        CompletableFuture<Jurl> future = new Jurl().url(baseUrl + "/slow").param("ms", 2000)
+                .nonBlocking(true).goAsync();
+        Assert.assertTrue(future.cancel(true));
+        Assert.assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void testNonBlockingConcurrency() throws IOException {
+        // many more requests in flight than there are I/O threads
+        try (JurlEngine engine = new JurlEngine().ioThreads(1).maxTotal(300).maxPerRoute(300)) {
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<Jurl>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(new Jurl().engine(engine).url(baseUrl + "/slow").param("ms", 300)
+                        .nonBlocking(true).goAsync());
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            for (CompletableFuture<Jurl> future : futures) {
+                Assert.assertEquals(200, future.join().getResponseCode());
+            }
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws ExecutionException, InterruptedException {
+        ExecutorService previous = Jurl.backgroundExecutor;
+        try {
+            Assert.assertEquals(JurlExecutors.isVirtualThreadSupported(), Jurl.useVirtualThreads());
+            Assert.assertEquals(200, new Jurl().url(baseUrl + "/json").goAsync().get().getResponseCode());
+        } finally {
+            Jurl.setBackgroundExecutor(previous);
+        }
+    }
+
+    @Test
+    public void testGoStreaming() throws IOException {
+        try (JurlEngine engine = new JurlEngine()) {
+            final long[] total = new long[1];
+            new Jurl().engine(engine).url(baseUrl + "/records").param("count", 100000).goStreaming(body -> {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    total[0] += read;
+                }
+            });
+            Assert.assertTrue(total[0] > 1000000);
+            Assert.assertEquals(0, engine.getTotalStats().getLeased());
+        }
+    }
+
+    @Test
+    public void testStreamedJsonList() throws IOException {
+        try (JurlEngine engine = new JurlEngine()) {
+            Jurl jurl = new Jurl().engine(engine).url(baseUrl + "/records").param("count", 1000)
+                    .streamResponse(true)
+                    .go();
+            Assert.assertEquals(1, engine.getTotalStats().getLeased());
+            List<Record> records = jurl.getResponseJsonList(Record.class);
+            Assert.assertEquals(1000, records.size());
+            Assert.assertEquals("record 999", records.get(999).name);
+            Assert.assertEquals(0, engine.getTotalStats().getLeased());
+            try {
+                jurl.getResponseStream();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // the stream can only be read once
+            }
+        }
+    }
+
+    @Test
+    public void testResponseStreamClosedEarly() throws IOException {
+        try (JurlEngine engine = new JurlEngine()) {
+            Jurl jurl = new Jurl().engine(engine).url(baseUrl + "/records").param("count", 1000)
+                    .streamResponse(true)
+                    .go();
+            try (InputStream in = jurl.getResponseStream()) {
+                Assert.assertEquals('[', in.read());
+            }
+            Assert.assertEquals(0, engine.getTotalStats().getLeased());
+        }
+    }
+
+    @Test
+    public void testResponseCharset() {
+        Jurl jurl = new Jurl().url(baseUrl + "/latin1").go();
+        Assert.assertEquals("caf\u00e9", jurl.getResponseBody());
+    }
+
+    @Test
+    public void testJsonIterator() throws IOException {
+        try (JurlEngine engine = new JurlEngine()) {
+            Iterator<Record> records = new Jurl().engine(engine).url(baseUrl + "/records").param("count", 50000)
+                    .streamResponse(true)
+                    .go()
+                    .getResponseJsonIterator(Record.class);
+            long count = 0;
+            while (records.hasNext()) {
+                Assert.assertEquals(count++, records.next().id);
+            }
+            Assert.assertEquals(50000, count);
+            Assert.assertEquals(0, engine.getTotalStats().getLeased());
+        }
+    }
+
+    @Test
+    public void testJsonStreamAtPointer() {
+        Jurl jurl = new Jurl().url(baseUrl + "/nested").go();
+        try (Stream<Record> records = jurl.getResponseJsonStream(Record.class, "/data/items")) {
+            Assert.assertEquals(Arrays.asList(1L, 2L, 3L),
+                    records.map(record -> record.id).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void testJsonStreamClosedEarly() throws IOException {
+        try (JurlEngine engine = new JurlEngine()) {
+            Jurl jurl = new Jurl().engine(engine).url(baseUrl + "/records").param("count", 1000)
+                    .streamResponse(true)
+                    .go();
+            try (Stream<Record> records = jurl.getResponseJsonStream(Record.class)) {
+                Assert.assertEquals(0, records.findFirst().get().id);
+            }
+            Assert.assertEquals(0, engine.getTotalStats().getLeased());
+        }
+    }
+
+    @Test
+    public void testParsedResponsesMemoized() {
+        Jurl jurl = new Jurl().url(baseUrl + "/json").go();
+        Map<String, Object> map = jurl.getResponseJsonMap();
+        Assert.assertSame(map, jurl.getResponseJsonMap());
+
+        Record record = jurl.getResponseJsonObject(Record.class);
+        Assert.assertEquals("jurl", record.name);
+        Assert.assertSame(record, jurl.getResponseJsonObject(Record.class));
+
+        // a second type parses the tree once; everything after converts from it
+        JsonNode tree = jurl.getResponseJsonTree();
+        Assert.assertSame(tree, jurl.getResponseJsonTree());
+        Map<String, Object> copy = jurl.getResponseJsonObject(new TypeReference<HashMap<String, Object>>() {
+        });
+        Assert.assertEquals(map, copy);
+        Assert.assertEquals(3L, copy.get("count"));
+    }
+
+    @Test
+    public void testByteBodies() throws IOException {
+        byte[] bytes = "caf\u00e9 \u2603".getBytes(StandardCharsets.UTF_8);
+
+        Jurl jurl = new Jurl().url(baseUrl + "/upload").method("POST").body(bytes).go();
+        Assert.assertArrayEquals(bytes, jurl.getResponseBytes());
+        Assert.assertEquals("identity", jurl.getResponseHeader("X-transfer-encoding"));
+        Assert.assertEquals("application/octet-stream", jurl.getResponseHeader("X-content-type"));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 2);
+        direct.put((byte) 0).put(bytes).put((byte) 0);
+        direct.position(1);
+        direct.limit(bytes.length + 1);
+        jurl = new Jurl().url(baseUrl + "/upload").method("PUT").body(direct).go();
+        Assert.assertArrayEquals(bytes, jurl.getResponseBytes());
+        Assert.assertEquals("the caller's buffer is left as it was", 1, direct.position());
+
+        Path file = Files.createTempFile("jurl", ".bin");
+        try {
+            byte[] large = new byte[1 << 20];
+            new Random(0).nextBytes(large);
+            Files.write(file, large);
+            jurl = new Jurl().url(baseUrl + "/upload").method("POST").body(file).go();
+            Assert.assertArrayEquals(large, jurl.getResponseBytes());
+            jurl = new Jurl().url(baseUrl + "/upload").method("POST").body(file).nonBlocking(true).goAsync().join();
+            Assert.assertArrayEquals(large, jurl.getResponseBytes());
+        } finally {
+            Files.delete(file);
+        }
+
+        jurl = new Jurl().url(baseUrl + "/upload").method("POST")
+                .body(new ByteArrayInputStream(bytes), -1)
+                .contentType("text/plain; charset=UTF-8")
+                .go();
+        Assert.assertArrayEquals(bytes, jurl.getResponseBytes());
+        Assert.assertEquals("chunked", jurl.getResponseHeader("X-transfer-encoding"));
+        Assert.assertEquals("text/plain; charset=UTF-8", jurl.getResponseHeader("X-content-type"));
+        Assert.assertEquals(bytes.length, jurl.getMetrics().getBytesSent());
+
+        jurl = new Jurl().url(baseUrl + "/upload").method("POST").body(new ByteArrayInputStream(bytes), -1)
+                .nonBlocking(true).goAsync().join();
+        Assert.assertArrayEquals(bytes, jurl.getResponseBytes());
+        Assert.assertEquals(bytes.length, jurl.getMetrics().getBytesSent());
+    }
+
+    @Test
+    public void testStreamBodyIsNotRetried() {
+        AtomicInteger attempts = new AtomicInteger();
+        Jurl jurl = new Jurl() {
+            @Override
+            protected void onBeforeAttempt() {
+                attempts.incrementAndGet();
+            }
+        }.url(baseUrl + "/unavailable").method("POST").maxAttempts(3)
+                .body(new ByteArrayInputStream(new byte[]{1, 2, 3}), 3)
+                .go();
+        Assert.assertEquals(503, jurl.getResponseCode());
+        Assert.assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testJsonBodyIsStreamed() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("name", "caf\u00e9");
+        value.put("count", 3L);
+        String json = "{\"name\":\"caf\u00e9\",\"count\":3}";
+
+        for (boolean stream : new boolean[]{false, true}) {
+            for (boolean nonBlocking : new boolean[]{false, true}) {
+                Jurl jurl = new Jurl().url(baseUrl + "/upload").method("POST").bodyJson(value, stream)
+                        .nonBlocking(nonBlocking).goAsync().join();
+                Assert.assertEquals(value, jurl.getResponseJsonMap());
+                Assert.assertEquals("application/json", jurl.getResponseHeader("X-content-type"));
+                Assert.assertEquals(stream ? "chunked" : "identity", jurl.getResponseHeader("X-transfer-encoding"));
+                Assert.assertEquals(json.getBytes(StandardCharsets.UTF_8).length, jurl.getRequestCompressedLength());
+                Assert.assertEquals(json.getBytes(StandardCharsets.UTF_8).length, jurl.getMetrics().getBytesSent());
+                Assert.assertEquals(json, jurl.getRequestBody());
+            }
+        }
+    }
+
+    @Test
+    public void testResponseDecompression() {
+        for (boolean nonBlocking : new boolean[]{false, true}) {
+            Jurl jurl = new Jurl().url(baseUrl + "/compressed").nonBlocking(nonBlocking).goAsync().join();
+            Assert.assertEquals(1000, jurl.getResponseJsonList(Record.class).size());
+            Assert.assertTrue(jurl.getResponseHeaders("Content-Encoding").isEmpty());
+            Assert.assertTrue(jurl.getResponseCompressedLength() * 5 < jurl.getResponseUncompressedLength());
+            Assert.assertEquals(jurl.getResponseBytes().length, jurl.getResponseUncompressedLength());
+        }
+
+        Jurl deflated = new Jurl().url(baseUrl + "/compressed").header("Accept-Encoding", "deflate").go();
+        Assert.assertEquals(1000, deflated.getResponseJsonList(Record.class).size());
+        Assert.assertTrue(deflated.getResponseCompressedLength() < deflated.getResponseUncompressedLength());
+
+        Jurl identity = new Jurl().url(baseUrl + "/compressed").acceptEncoding(false).go();
+        Assert.assertEquals(1000, identity.getResponseJsonList(Record.class).size());
+        Assert.assertEquals(identity.getResponseCompressedLength(), identity.getResponseUncompressedLength());
+    }
+
+    @Test
+    public void testStreamedResponseDecompression() {
+        List<Long> ids = new ArrayList<>();
+        Jurl jurl = new Jurl().url(baseUrl + "/compressed").streamResponse(true).go();
+        try (Stream<Record> records = jurl.getResponseJsonStream(Record.class)) {
+            records.forEach(record -> ids.add(record.id));
+        }
+        Assert.assertEquals(1000, ids.size());
+        Assert.assertEquals(999L, (long) ids.get(999));
+        Assert.assertTrue(jurl.getResponseCompressedLength() < jurl.getResponseUncompressedLength());
+    }
+
+    @Test
+    public void testRequestCompression() throws IOException {
+        byte[] large = records(1000).getBytes(StandardCharsets.UTF_8);
+        Jurl jurl = new Jurl().url(baseUrl + "/upload").method("POST").compressRequestsAbove(1024).body(large).go();
+        Assert.assertEquals("gzip", jurl.getResponseHeader("X-content-encoding"));
+        Assert.assertEquals(large.length, jurl.getRequestUncompressedLength());
+        Assert.assertEquals(jurl.getResponseBytes().length, jurl.getRequestCompressedLength());
+        Assert.assertTrue(jurl.getRequestCompressedLength() * 5 < large.length);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(jurl.getResponseBytes()))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+            Assert.assertArrayEquals(large, out.toByteArray());
+        }
+
+        jurl = new Jurl().url(baseUrl + "/upload").method("POST").compressRequestsAbove(1024).body("small").go();
+        Assert.assertEquals("null", jurl.getResponseHeader("X-content-encoding"));
+        Assert.assertEquals("small", jurl.getResponseBody());
+        Assert.assertEquals(5, jurl.getRequestCompressedLength());
+
+        jurl = new Jurl().url(baseUrl + "/upload").method("POST").compressRequestsAbove(1024).body(large)
+                .nonBlocking(true).goAsync().join();
+        Assert.assertEquals("gzip", jurl.getResponseHeader("X-content-encoding"));
+        Assert.assertEquals(jurl.getResponseBytes().length, jurl.getRequestCompressedLength());
+
+        // streamed bodies are compressed a chunk at a time on either client
+        for (boolean nonBlocking : Arrays.asList(false, true)) {
+            jurl = new Jurl().url(baseUrl + "/upload").method("POST").compressRequestsAbove(1024)
+                    .body(new ByteArrayInputStream(large), -1).nonBlocking(nonBlocking).goAsync().join();
+            Assert.assertEquals("gzip", jurl.getResponseHeader("X-content-encoding"));
+            Assert.assertEquals(large.length, jurl.getRequestUncompressedLength());
+            Assert.assertEquals(jurl.getResponseBytes().length, jurl.getRequestCompressedLength());
+            Assert.assertArrayEquals(large, gunzip(new ByteArrayInputStream(jurl.getResponseBytes())));
+        }
+        JurlContentCoding.GzipEntity entity = new JurlContentCoding.GzipEntity(new ByteArrayEntity(large));
+        Assert.assertArrayEquals(large, gunzip(entity.getContent()));
+        Assert.assertEquals(large.length, entity.getUncompressedLength());
+
+        // JSON bodies too
+        Map<String, Object> json = Collections.singletonMap("records", records(1000));
+        for (boolean nonBlocking : Arrays.asList(false, true)) {
+            jurl = new Jurl().url(baseUrl + "/upload").method("POST").compressRequestsAbove(1024).bodyJson(json)
+                    .nonBlocking(nonBlocking).goAsync().join();
+            Assert.assertEquals("gzip", jurl.getResponseHeader("X-content-encoding"));
+            Assert.assertEquals(jurl.getResponseBytes().length, jurl.getRequestCompressedLength());
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(jurl.getResponseBytes()))) {
+                Assert.assertEquals(json, Jurl.DEFAULT_OBJECT_MAPPER.readValue(in, Map.class));
+            }
+        }
+    }
+
+    static int fetchCount(String uri) {
+        AtomicInteger count = fetches.get(uri);
+        return count != null ? count.get() : 0;
+    }
+
+    private static byte[] gunzip(InputStream compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(compressed)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testCacheServesFreshResponses() {
+        JurlCache cache = new JurlCache();
+        Jurl first = new Jurl().url(baseUrl + "/cacheable").param("test", "fresh").cache(cache).go();
+        Jurl second = new Jurl().url(baseUrl + "/cacheable").param("test", "fresh").cache(cache).go();
+        Assert.assertFalse(first.isResponseFromCache());
+        Assert.assertTrue(second.isResponseFromCache());
+        Assert.assertEquals(1, fetchCount("/cacheable?test=fresh"));
+        Assert.assertEquals(200, second.getResponseCode());
+        Assert.assertEquals(first.getResponseBody(), second.getResponseBody());
+        Assert.assertEquals(first.getResponseHeaders(), second.getResponseHeaders());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        Jurl async = new Jurl().url(baseUrl + "/cacheable").param("test", "fresh").cache(cache)
+                .nonBlocking(true).goAsync().join();
+        Assert.assertTrue(async.isResponseFromCache());
+        Assert.assertEquals(first.getResponseBody(), async.getResponseBody());
+
+        // Vary: X-Variant keeps a different variant from being served
+        Jurl variant = new Jurl().url(baseUrl + "/cacheable").param("test", "fresh").header("X-Variant", "b")
+                .cache(cache).go();
+        Assert.assertFalse(variant.isResponseFromCache());
+        Assert.assertEquals("b", variant.getResponseJsonMap().get("variant"));
+
+        Jurl bypass = new Jurl().url(baseUrl + "/cacheable").param("test", "fresh").header("X-Variant", "b")
+                .header("Cache-Control", "no-cache").cache(cache).go();
+        Assert.assertFalse(bypass.isResponseFromCache());
+        Assert.assertEquals(3, fetchCount("/cacheable?test=fresh"));
+    }
+
+    @Test
+    public void testCacheKeepsUsersApart() {
+        JurlCache cache = new JurlCache();
+        for (String user : Arrays.asList("Bearer a", "Bearer b", "Bearer a")) {
+            Jurl jurl = new Jurl().url(baseUrl + "/whoami").param("test", "users").header("Authorization", user)
+                    .cache(cache).go();
+            Assert.assertFalse(jurl.isResponseFromCache());
+            Assert.assertEquals(user, jurl.getResponseJsonMap().get("user"));
+        }
+        Assert.assertEquals(3, fetchCount("/whoami?test=users"));
+
+        // a response to an anonymous request is never served to a user
+        new Jurl().url(baseUrl + "/whoami").param("test", "anonymous").cache(cache).go();
+        Assert.assertTrue(new Jurl().url(baseUrl + "/whoami").param("test", "anonymous").cache(cache).go()
+                .isResponseFromCache());
+        Jurl user = new Jurl().url(baseUrl + "/whoami").param("test", "anonymous").cookie("session", "a")
+                .cache(cache).go();
+        Assert.assertFalse(user.isResponseFromCache());
+        Assert.assertTrue(new Jurl().url(baseUrl + "/whoami").param("test", "anonymous").cache(cache).go()
+                .isResponseFromCache());
+
+        // unless it says it can be shared
+        new Jurl().url(baseUrl + "/whoami").param("test", "public").param("cacheControl", "public")
+                .header("Authorization", "Bearer a").cache(cache).go();
+        Jurl shared = new Jurl().url(baseUrl + "/whoami").param("test", "public").param("cacheControl", "public")
+                .header("Authorization", "Bearer b").cache(cache).go();
+        Assert.assertTrue(shared.isResponseFromCache());
+
+        // and private responses are never stored
+        new Jurl().url(baseUrl + "/whoami").param("test", "private").param("cacheControl", "private").cache(cache).go();
+        Assert.assertFalse(new Jurl().url(baseUrl + "/whoami").param("test", "private").param("cacheControl", "private")
+                .cache(cache).go().isResponseFromCache());
+    }
+
+    @Test
+    public void testCacheRevalidates() {
+        JurlCache cache = new JurlCache();
+        for (boolean nonBlocking : new boolean[]{false, true}) {
+            Jurl jurl = new Jurl().url(baseUrl + "/etag").param("test", nonBlocking).cache(cache)
+                    .nonBlocking(nonBlocking);
+            Assert.assertFalse(jurl.goAsync().join().isResponseFromCache());
+            Jurl revalidated = new Jurl().url(baseUrl + "/etag").param("test", nonBlocking).cache(cache)
+                    .nonBlocking(nonBlocking).goAsync().join();
+            Assert.assertTrue(revalidated.isResponseFromCache());
+            Assert.assertEquals(200, revalidated.getResponseCode());
+            Assert.assertEquals(jurl.getResponseJsonMap(), revalidated.getResponseJsonMap());
+            Assert.assertEquals("\"v1\"", revalidated.getResponseHeaders("Etag").get(0));
+            Assert.assertEquals(1, fetchCount("/etag?test=" + nonBlocking));
+            Assert.assertEquals(1, fetchCount("/etag?test=" + nonBlocking + "#304"));
+        }
+        Assert.assertEquals(2, cache.getRevalidatedCount());
+    }
+
+    @Test
+    public void testCacheInvalidatedByUnsafeMethods() {
+        JurlCache cache = new JurlCache();
+        new Jurl().url(baseUrl + "/cacheable").param("test", "invalidate").cache(cache).go();
+        new Jurl().url(baseUrl + "/cacheable").param("test", "invalidate").method("POST").cache(cache).go();
+        Jurl jurl = new Jurl().url(baseUrl + "/cacheable").param("test", "invalidate").cache(cache).go();
+        Assert.assertFalse(jurl.isResponseFromCache());
+        Assert.assertEquals(3, fetchCount("/cacheable?test=invalidate"));
+    }
+
+    @Test
+    public void testCacheEvictsLeastRecentlyUsed() {
+        JurlCache cache = new JurlCache().maxBytes(400);
+        for (String test : new String[]{"lru-a", "lru-b", "lru-c", "lru-a"}) {
+            new Jurl().url(baseUrl + "/cacheable").param("test", test).cache(cache).go();
+        }
+        Assert.assertTrue(cache.getSize() <= 400);
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+        Assert.assertEquals(2, fetchCount("/cacheable?test=lru-a"));
+    }
+
+    @Test
+    public void testCacheDiskTier() throws IOException {
+        Path directory = Files.createTempDirectory("jurl-cache");
+        try {
+            // nothing fits in memory, so every hit is read back from disk
+            JurlCache cache = new JurlCache().maxBytes(0).diskDirectory(directory);
+            Jurl first = new Jurl().url(baseUrl + "/cacheable").param("test", "disk").cache(cache).go();
+            Jurl second = new Jurl().url(baseUrl + "/cacheable").param("test", "disk").cache(cache).go();
+            Assert.assertTrue(second.isResponseFromCache());
+            Assert.assertEquals(first.getResponseBody(), second.getResponseBody());
+
+            JurlCache restarted = new JurlCache().diskDirectory(directory);
+            Jurl third = new Jurl().url(baseUrl + "/cacheable").param("test", "disk").cache(restarted).go();
+            Assert.assertTrue(third.isResponseFromCache());
+            Assert.assertEquals(first.getResponseHeaders(), third.getResponseHeaders());
+            Assert.assertEquals(1, fetchCount("/cacheable?test=disk"));
+
+            // a corrupt file is a miss, and is replaced
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    byte[] bytes = Files.readAllBytes(file);
+                    ByteBuffer.wrap(bytes, 4, 4).putInt(Integer.MAX_VALUE); // the key's length
+                    Files.write(file, bytes);
+                }
+            }
+            JurlCache corrupted = new JurlCache().diskDirectory(directory);
+            Jurl fourth = new Jurl().url(baseUrl + "/cacheable").param("test", "disk").cache(corrupted).go();
+            Assert.assertFalse(fourth.isResponseFromCache());
+            Assert.assertEquals(2, fetchCount("/cacheable?test=disk"));
+            corrupted.clear();
+            restarted.clear();
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws InterruptedException {
+        for (boolean nonBlocking : new boolean[]{false, true}) {
+            List<CompletableFuture<Jurl>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(new Jurl().url(baseUrl + "/slow").param("ms", 300).param("test", "coalesce" + nonBlocking)
+                        .coalesce(true).nonBlocking(nonBlocking).goAsync());
+            }
+            // a different header is a different request
+            Jurl other = new Jurl().url(baseUrl + "/slow").param("ms", 300).param("test", "coalesce" + nonBlocking)
+                    .header("X-Variant", "b").coalesce(true).nonBlocking(nonBlocking).go();
+            Assert.assertFalse(other.isResponseShared());
+
+            int shared = 0;
+            for (CompletableFuture<Jurl> future : futures) {
+                Jurl jurl = future.join();
+                Assert.assertEquals(200, jurl.getResponseCode());
+                Assert.assertEquals("{}", jurl.getResponseBody());
+                shared += jurl.isResponseShared() ? 1 : 0;
+            }
+            Assert.assertEquals(2, fetchCount("/slow?ms=300&test=coalesce" + nonBlocking));
+            Assert.assertEquals(19, shared);
+        }
+
+        // once the shared call is done, the next request goes out on its own
+        Jurl later = new Jurl().url(baseUrl + "/slow").param("ms", 300).param("test", "coalescefalse")
+                .coalesce(true).go();
+        Assert.assertFalse(later.isResponseShared());
+        Assert.assertEquals(3, fetchCount("/slow?ms=300&test=coalescefalse"));
+
+        // requests that would handle the response differently are not merged
+        CompletableFuture<Jurl> following = new Jurl().url(baseUrl + "/slow").param("ms", 300)
+                .param("test", "coalesce-flags").coalesce(true).goAsync();
+        Assert.assertFalse(new Jurl().url(baseUrl + "/slow").param("ms", 300).param("test", "coalesce-flags")
+                .followRedirects(false).coalesce(true).go().isResponseShared());
+        Assert.assertFalse(new Jurl().url(baseUrl + "/slow").param("ms", 300).param("test", "coalesce-flags")
+                .throwOnNon200(true).coalesce(true).go().isResponseShared());
+        following.join();
+        Assert.assertEquals(3, fetchCount("/slow?ms=300&test=coalesce-flags"));
+
+        // a request that gives up does not take the ones waiting on it down with it
+        for (boolean nonBlocking : new boolean[]{false, true}) {
+            String test = "coalesce-leader" + nonBlocking;
+            CompletableFuture<Jurl> impatient = new Jurl().url(baseUrl + "/slow").param("ms", 500).param("test", test)
+                    .timeout(100).coalesce(true).nonBlocking(nonBlocking).goAsync();
+            CompletableFuture<Jurl> cancelled = new Jurl().url(baseUrl + "/slow").param("ms", 500).param("test", test)
+                    .coalesce(true).nonBlocking(nonBlocking).goAsync();
+            Thread.sleep(50);
+            CompletableFuture<Jurl> patient = new Jurl().url(baseUrl + "/slow").param("ms", 500).param("test", test)
+                    .coalesce(true).nonBlocking(nonBlocking).goAsync();
+            Thread.sleep(100);
+            cancelled.cancel(true);
+            Jurl jurl = patient.join();
+            Assert.assertEquals(200, jurl.getResponseCode());
+            Assert.assertTrue(impatient.isCompletedExceptionally());
+            Assert.assertTrue(cancelled.isCancelled());
+        }
+    }
+
+    @Test
+    public void testRetryAfter() {
+        for (boolean nonBlocking : new boolean[]{false, true}) {
+            long start = System.currentTimeMillis();
+            Jurl jurl = new Jurl().url(baseUrl + "/throttled").param("test", "retry-after" + nonBlocking)
+                    .maxAttempts(3)
+                    .retryPolicy(new JurlBackoffRetryPolicy().baseDelay(10).jitter(JurlBackoffRetryPolicy.Jitter.NONE))
+                    .nonBlocking(nonBlocking)
+                    .goAsync().join();
+            Assert.assertEquals(200, jurl.getResponseCode());
+            Assert.assertTrue(System.currentTimeMillis() - start >= 1000);
+            Assert.assertEquals(2, fetchCount("/throttled?test=retry-after" + nonBlocking));
+        }
+
+        // waiting longer than allowed is not worth a retry
+        Jurl impatient = new Jurl().url(baseUrl + "/throttled").param("test", "impatient")
+                .maxAttempts(3)
+                .retryPolicy(new JurlBackoffRetryPolicy().maxRetryAfter(500))
+                .go();
+        Assert.assertEquals(429, impatient.getResponseCode());
+        Assert.assertEquals(1, fetchCount("/throttled?test=impatient"));
+    }
+
+    @Test
+    public void testRetryPolicyStatusCodes() {
+        Jurl jurl = new Jurl().url(baseUrl + "/unavailable").param("test", "status-codes")
+                .maxAttempts(3)
+                .retryPolicy(new JurlBackoffRetryPolicy().baseDelay(1).retryOnStatus(500))
+                .go();
+        Assert.assertEquals(503, jurl.getResponseCode());
+        Assert.assertEquals(1, fetchCount("/unavailable?test=status-codes"));
+
+        JurlBackoffRetryPolicy policy = new JurlBackoffRetryPolicy().baseDelay(1)
+                .retryOn(IllegalStateException.class);
+        Assert.assertEquals(-1, policy.retryDelay(jurl, 1, 0, new IOException()));
+        Assert.assertTrue(policy.retryDelay(jurl, 1, 0, new IllegalStateException()) >= 0);
+        policy.retryOn(IOException.class, TimeoutException.class);
+        Assert.assertTrue(policy.retryDelay(jurl, 1, 0, new IOException()) >= 0);
+        Assert.assertEquals(-1, policy.retryDelay(jurl, 1, 0, new IllegalStateException()));
+    }
+
+    @Test
+    public void testOnlyJurlRetries() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AtomicBoolean drop = new AtomicBoolean();
+        try (ServerSocket dropping = startDroppingServer(requests, drop)) {
+            String url = "http://localhost:" + dropping.getLocalPort() + "/json";
+            for (boolean nonBlocking : new boolean[]{false, true}) {
+                // the dropped connection is not retried underneath a single attempt
+                requests.set(0);
+                drop.set(true);
+                try {
+                    new Jurl().url(url).maxAttempts(1).nonBlocking(nonBlocking).goAsync().join();
+                    Assert.fail();
+                } catch (CompletionException e) {
+                    // the server never answered
+                }
+                Assert.assertEquals(1, requests.get());
+
+                requests.set(0);
+                drop.set(true);
+                Jurl jurl = new Jurl().url(url).maxAttempts(2).nonBlocking(nonBlocking)
+                        .retryPolicy(new JurlBackoffRetryPolicy().baseDelay(1))
+                        .goAsync().join();
+                Assert.assertEquals(200, jurl.getResponseCode());
+                Assert.assertEquals(2, requests.get());
+            }
+
+            // a pooled connection the server has since closed is replaced within the attempt
+            try (JurlEngine engine = new JurlEngine()) {
+                requests.set(0);
+                new Jurl().engine(engine).url(url).go();
+                Jurl jurl = new Jurl().engine(engine).url(url).maxAttempts(1).go();
+                Assert.assertEquals(200, jurl.getResponseCode());
+                Assert.assertEquals(2, requests.get());
+            }
+        }
+    }
+
+    /**
+     * Starts a server that counts requests and, while {@code drop} is set, closes the next connection without
+     * answering.  Answered connections are closed too, though the response does not say so, like a server closing a
+     * kept-alive connection.
+     */
+    private static ServerSocket startDroppingServer(AtomicInteger requests, AtomicBoolean drop) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    BufferedReader in = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    for (String line; (line = in.readLine()) != null && !line.isEmpty(); ) {
+                        // the request is ignored
+                    }
+                    requests.incrementAndGet();
+                    if (!drop.getAndSet(false)) {
+                        socket.getOutputStream().write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                                + "Content-Length: 2\r\n\r\n{}")
+                                .getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "dropping-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket;
+    }
+
+    @Test
+    public void testHeaderLookupIgnoresCase() {
+        Jurl jurl = new Jurl().url(baseUrl + "/throttled").param("test", "headers")
+                .header("X-Trace", "a")
+                .header("x-trace", "b")
+                .maxAttempts(2)
+                .retryPolicy(new JurlBackoffRetryPolicy().baseDelay(1))
+                .go();
+        Assert.assertEquals(Arrays.asList("a", "b"), jurl.getRequestHeaders("X-TRACE"));
+        Assert.assertEquals("a", jurl.getRequestHeader("x-trace"));
+        Assert.assertNull(jurl.getRequestHeader("X-Missing"));
+        Assert.assertEquals(1, jurl.getRequestHeaders().size());
+
+        Assert.assertEquals(200, jurl.getResponseCode());
+        Assert.assertEquals("application/json", jurl.getResponseHeader("content-type"));
+        Assert.assertEquals(jurl.getResponseHeaders("Content-Type"), jurl.getResponseHeaders().get("CONTENT-TYPE"));
+        // only the last attempt's headers are kept
+        Assert.assertNull(jurl.getResponseHeader("Retry-After"));
+        Assert.assertEquals(1, jurl.getResponseHeaders("Content-Type").size());
+
+        JurlHeaders headers = new JurlHeaders(2);
+        for (int i = 0; i < 50; i++) {
+            headers.add("X-Header-" + i, String.valueOf(i)).add("x-header-" + i, "again");
+        }
+        Assert.assertEquals(100, headers.size());
+        Assert.assertEquals(50, headers.asMap().size());
+        Assert.assertEquals(Arrays.asList("7", "again"), headers.getAll("X-HEADER-7"));
+        Assert.assertTrue(headers.remove("x-header-7"));
+        Assert.assertFalse(headers.contains("X-Header-7"));
+        Assert.assertEquals("again", headers.set("X-Header-8", "only").getAll("x-header-9").get(1));
+        Assert.assertEquals(Collections.singletonList("only"), headers.getAll("X-Header-8"));
+        Assert.assertEquals("X-Header-0", headers.iterator().next().getName());
+
+        // views follow removals, which renumber the entries
+        JurlHeaders abc = new JurlHeaders().add("A", "a").add("B", "b").add("C", "c");
+        List<String> b = abc.getAll("b");
+        abc.remove("A");
+        Assert.assertEquals(Collections.singletonList("b"), b);
+        abc.set("B", "b2");
+        Assert.assertEquals(Collections.singletonList("b2"), b);
+        abc.clear();
+        Assert.assertTrue(b.isEmpty());
+        abc.add("b", "again");
+        Assert.assertEquals(Collections.singletonList("again"), b);
+    }
+
+    @Test
+    public void testRetryBudget() {
+        // no credit for new requests, and one retry saved up
+        JurlRetryBudget budget = new JurlRetryBudget(0, 1);
+        new Jurl().url(baseUrl + "/unavailable").param("test", "budget-1").maxAttempts(3).retryBudget(budget).go();
+        new Jurl().url(baseUrl + "/unavailable").param("test", "budget-2").maxAttempts(3).retryBudget(budget).go();
+        Assert.assertEquals(2, fetchCount("/unavailable?test=budget-1"));
+        Assert.assertEquals(1, fetchCount("/unavailable?test=budget-2"));
+        Assert.assertEquals(0, budget.getAvailableRetries());
+
+        JurlRetryBudget tenPercent = new JurlRetryBudget(0.1, 10);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(tenPercent.tryAcquireRetry());
+        }
+        Assert.assertFalse(tenPercent.tryAcquireRetry());
+        for (int i = 0; i < 10; i++) {
+            tenPercent.recordRequest();
+        }
+        Assert.assertTrue(tenPercent.tryAcquireRetry());
+        Assert.assertFalse(tenPercent.tryAcquireRetry());
+    }
+
+    @Test
+    public void testBackoffJitter() {
+        JurlBackoffRetryPolicy full = new JurlBackoffRetryPolicy().baseDelay(100).maxDelay(1000);
+        JurlBackoffRetryPolicy decorrelated = new JurlBackoffRetryPolicy().baseDelay(100).maxDelay(1000)
+                .jitter(JurlBackoffRetryPolicy.Jitter.DECORRELATED);
+        JurlBackoffRetryPolicy none = new JurlBackoffRetryPolicy().baseDelay(100).maxDelay(1000)
+                .jitter(JurlBackoffRetryPolicy.Jitter.NONE);
+        Assert.assertEquals(100, none.backoff(1, 0));
+        Assert.assertEquals(400, none.backoff(3, 0));
+        Assert.assertEquals(1000, none.backoff(10, 0));
+        long previous = 0;
+        for (int attempt = 1; attempt < 50; attempt++) {
+            long delay = full.backoff(attempt, 0);
+            Assert.assertTrue(delay >= 0 && delay <= Math.min(1000, 100 << Math.min(attempt - 1, 20)));
+            long next = decorrelated.backoff(attempt, previous);
+            Assert.assertTrue(next >= 100 && next <= Math.min(1000, Math.max(100, previous * 3)));
+            previous = next;
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws InterruptedException {
+        JurlCircuitBreaker breaker = new JurlCircuitBreaker().minimumCalls(3).openDuration(300).halfOpenCalls(1);
+        String key = "localhost:" + server.getAddress().getPort();
+
+        // opens part way through the retries, which then stop
+        try {
+            new Jurl().url(baseUrl + "/unavailable").param("test", "breaker").maxAttempts(10).circuitBreaker(breaker)
+                    .go();
+            Assert.fail();
+        } catch (JurlCircuitOpenException e) {
+            Assert.assertEquals(key, e.getCircuitKey());
+        }
+        Assert.assertEquals(3, fetchCount("/unavailable?test=breaker"));
+        Assert.assertEquals(JurlCircuitBreaker.State.OPEN, breaker.getState(key));
+
+        try {
+            new Jurl().url(baseUrl + "/json").circuitBreaker(breaker).nonBlocking(true).goAsync().join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof JurlCircuitOpenException);
+        }
+
+        // half open: a failed trial opens it again, a successful one closes it
+        Thread.sleep(350);
+        Assert.assertEquals(503, new Jurl().url(baseUrl + "/unavailable").param("test", "breaker")
+                .circuitBreaker(breaker).go().getResponseCode());
+        Assert.assertEquals(JurlCircuitBreaker.State.OPEN, breaker.getState(key));
+        Thread.sleep(350);
+        Assert.assertEquals(200, new Jurl().url(baseUrl + "/json").circuitBreaker(breaker).go().getResponseCode());
+        Assert.assertEquals(JurlCircuitBreaker.State.CLOSED, breaker.getState(key));
+
+        // a new window only applies to new circuits; the existing one keeps counting in its own
+        breaker.window(20000, 1000);
+        Assert.assertEquals(503, new Jurl().url(baseUrl + "/unavailable").param("test", "breaker-window")
+                .maxAttempts(3).circuitBreaker(breaker).go().getResponseCode());
+        Assert.assertEquals(JurlCircuitBreaker.State.OPEN, breaker.getState(key));
+
+        // another key has its own circuit
+        JurlCircuitBreaker byPath = new JurlCircuitBreaker().minimumCalls(1)
+                .keyFunction(jurl -> jurl.getUrl().replaceAll("\\?.*", ""));
+        new Jurl().url(baseUrl + "/unavailable").circuitBreaker(byPath).go();
+        Assert.assertEquals(200, new Jurl().url(baseUrl + "/json").circuitBreaker(byPath).go().getResponseCode());
+    }
+
+    @Test
+    public void testCircuitBreakerSlowCalls() {
+        JurlCircuitBreaker breaker = new JurlCircuitBreaker().minimumCalls(2).slowCallDuration(50)
+                .slowCallRateThreshold(0.5);
+        String key = "localhost:" + server.getAddress().getPort();
+        new Jurl().url(baseUrl + "/json").circuitBreaker(breaker).go();
+        Assert.assertEquals(JurlCircuitBreaker.State.CLOSED, breaker.getState(key));
+        new Jurl().url(baseUrl + "/slow").param("ms", 100).circuitBreaker(breaker).go();
+        Assert.assertEquals(JurlCircuitBreaker.State.OPEN, breaker.getState(key));
+    }
+
+    @Test
+    public void testBulkhead() throws Exception {
+        for (boolean nonBlocking : new boolean[]{false, true}) {
+            JurlBulkhead bulkhead = new JurlBulkhead().maxConcurrent(2).maxQueued(1).queueTimeout(5000);
+            String key = "localhost:" + server.getAddress().getPort();
+            long start = System.currentTimeMillis();
+            List<CompletableFuture<Jurl>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(new Jurl().url(baseUrl + "/slow").param("ms", 300).bulkhead(bulkhead)
+                        .nonBlocking(nonBlocking).goAsync());
+            }
+            while (bulkhead.getQueued(key) < 1) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(2, bulkhead.getInFlight(key));
+            try {
+                new Jurl().url(baseUrl + "/json").bulkhead(bulkhead).go();
+                Assert.fail();
+            } catch (JurlBulkheadFullException e) {
+                Assert.assertFalse(e.isQueueTimeout());
+                Assert.assertEquals(key, e.getBulkheadKey());
+            }
+            for (CompletableFuture<Jurl> future : futures) {
+                Assert.assertEquals(200, future.get().getResponseCode());
+            }
+            // the third waited for one of the first two
+            Assert.assertTrue(System.currentTimeMillis() - start >= 600);
+            Assert.assertEquals(0, bulkhead.getInFlight(key));
+        }
+    }
+
+    @Test
+    public void testBulkheadQueueTimeout() throws Exception {
+        JurlBulkhead bulkhead = new JurlBulkhead().maxConcurrent(1).queueTimeout(100);
+        String key = "localhost:" + server.getAddress().getPort();
+        CompletableFuture<Jurl> slow = new Jurl().url(baseUrl + "/slow").param("ms", 500).bulkhead(bulkhead).goAsync();
+        while (bulkhead.getInFlight(key) < 1) {
+            Thread.sleep(5);
+        }
+        try {
+            new Jurl().url(baseUrl + "/json").bulkhead(bulkhead).nonBlocking(true).goAsync().join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(((JurlBulkheadFullException) e.getCause()).isQueueTimeout());
+        }
+        Assert.assertEquals(0, bulkhead.getQueued(key));
+
+        // a streamed response keeps its slot until the stream is closed
+        slow.get();
+        Jurl streamed = new Jurl().url(baseUrl + "/json").bulkhead(bulkhead).streamResponse(true).go();
+        Assert.assertEquals(1, bulkhead.getInFlight(key));
+        streamed.getResponseStream().close();
+        Assert.assertEquals(0, bulkhead.getInFlight(key));
+    }
+
+    @Test
+    public void testAdaptiveBulkhead() {
+        JurlBulkhead bulkhead = new JurlBulkhead().maxConcurrent(5).adaptive(2, 6, 250).backoffRatio(0.5);
+        String key = "localhost:" + server.getAddress().getPort();
+        Jurl jurl = new Jurl().url(baseUrl + "/json");
+        // latencies are recorded directly rather than waited out, so the test does not depend on timing
+        recordAttempt(bulkhead, jurl, 249, false);
+        Assert.assertEquals(5, bulkhead.getLimit(key));
+        recordAttempt(bulkhead, jurl, 250, false);
+        Assert.assertEquals(2, bulkhead.getLimit(key));
+        // an overloaded upstream backs off too, but never below the minimum
+        new Jurl().url(baseUrl + "/unavailable").bulkhead(bulkhead).go();
+        Assert.assertEquals(2, bulkhead.getLimit(key));
+        // about one more per limit's worth of good calls, up to the maximum
+        for (int i = 0; i < 40; i++) {
+            recordAttempt(bulkhead, jurl, 1, false);
+        }
+        Assert.assertEquals(6, bulkhead.getLimit(key));
+        recordAttempt(bulkhead, jurl, 1, true);
+        Assert.assertEquals(3, bulkhead.getLimit(key));
+    }
+
+    private static void recordAttempt(JurlBulkhead bulkhead, Jurl jurl, long millis, boolean dropped) {
+        JurlBulkhead.Permit permit = bulkhead.tryAcquire(jurl);
+        permit.record(TimeUnit.MILLISECONDS.toNanos(millis), dropped);
+        permit.release();
+    }
+
+    @Test
+    public void testRateLimiter() throws Exception {
+        String key = "localhost:" + server.getAddress().getPort();
+        for (boolean nonBlocking : Arrays.asList(false, true)) {
+            JurlRateLimiter limiter = new JurlRateLimiter().rate(20).maxWait(-1);
+            long start = System.nanoTime();
+            List<CompletableFuture<Jurl>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(new Jurl().url(baseUrl + "/json").rateLimiter(limiter).nonBlocking(nonBlocking).goAsync());
+            }
+            for (CompletableFuture<Jurl> future : futures) {
+                Assert.assertEquals(200, future.get().getResponseCode());
+            }
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 190);
+
+            limiter = new JurlRateLimiter().rate(1).burst(2).maxWait(0);
+            new Jurl().url(baseUrl + "/json").rateLimiter(limiter).nonBlocking(nonBlocking).go();
+            new Jurl().url(baseUrl + "/json").rateLimiter(limiter).nonBlocking(nonBlocking).go();
+            try {
+                new Jurl().url(baseUrl + "/json").rateLimiter(limiter).nonBlocking(nonBlocking).goAsync().join();
+                Assert.fail();
+            } catch (CompletionException e) {
+                JurlRateLimitedException limited = (JurlRateLimitedException) e.getCause();
+                Assert.assertEquals(key, limited.getRateLimiterKey());
+                Assert.assertTrue(limited.getRetryAfter() > 0);
+            }
+
+            // a request that never gets a bulkhead slot does not spend a permit
+            limiter = new JurlRateLimiter().rate(1).burst(2).maxWait(0);
+            JurlBulkhead bulkhead = new JurlBulkhead().maxConcurrent(1).queueTimeout(100);
+            CompletableFuture<Jurl> holding = new Jurl().url(baseUrl + "/slow").param("ms", 300)
+                    .bulkhead(bulkhead).rateLimiter(limiter).nonBlocking(nonBlocking).goAsync();
+            Thread.sleep(50);
+            try {
+                new Jurl().url(baseUrl + "/json").bulkhead(bulkhead).rateLimiter(limiter).nonBlocking(nonBlocking)
+                        .goAsync().join();
+                Assert.fail();
+            } catch (CompletionException e) {
+                Assert.assertTrue(e.getCause() instanceof JurlBulkheadFullException);
+            }
+            holding.join();
+            Assert.assertEquals(200, new Jurl().url(baseUrl + "/json").bulkhead(bulkhead).rateLimiter(limiter)
+                    .nonBlocking(nonBlocking).go().getResponseCode());
+        }
+
+        // the upstream's headers hold requests back
+        JurlRateLimiter limiter = new JurlRateLimiter().rate(100).maxWait(0);
+        Jurl jurl = new Jurl().url(baseUrl + "/throttled").param("test", "rateLimiter").rateLimiter(limiter).go();
+        Assert.assertEquals(429, jurl.getResponseCode());
+        Assert.assertFalse(limiter.tryAcquire(key));
+        Assert.assertTrue(limiter.getWaitMillis(key) > 500);
+
+        limiter = new JurlRateLimiter().rate(100).burst(10);
+        new Jurl().url(baseUrl + "/quota").param("Remaining", 4).param("Reset", 2).rateLimiter(limiter).go();
+        Assert.assertEquals(2, limiter.getRate(key), 0.01);
+        new Jurl().url(baseUrl + "/quota").param("Remaining", 0).param("Reset", 2).rateLimiter(limiter).go();
+        Assert.assertFalse(limiter.tryAcquire(key, 500, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(limiter.tryAcquire("elsewhere"));
+    }
+
+    @Test
+    public void testDnsCacheAndHappyEyeballs() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        Map<String, InetAddress[]> zone = new ConcurrentHashMap<>();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        DnsResolver resolver = host -> {
+            lookups.incrementAndGet();
+            InetAddress[] addresses = zone.get(host);
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        };
+        JurlDnsCache cache = new JurlDnsCache(resolver).positiveTtl(400).negativeTtl(400).refreshAfter(0.5);
+        zone.put("api.test", new InetAddress[]{loopback});
+        Assert.assertArrayEquals(new InetAddress[]{loopback}, cache.resolve("api.test"));
+        cache.resolve("api.test");
+        Assert.assertEquals(1, lookups.get());
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.resolve("missing.test");
+                Assert.fail();
+            } catch (UnknownHostException e) {
+                // remembered
+            }
+        }
+        Assert.assertEquals(2, lookups.get());
+
+        // refreshed in the background once half the time to live has passed
+        Thread.sleep(250);
+        InetAddress other = InetAddress.getByName("127.0.0.2");
+        zone.put("api.test", new InetAddress[]{other});
+        Assert.assertArrayEquals(new InetAddress[]{loopback}, cache.resolve("api.test"));
+        for (int i = 0; i < 100 && cache.getCached("api.test")[0].equals(loopback); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertArrayEquals(new InetAddress[]{other}, cache.resolve("api.test"));
+
+        // the first address never answers, its accept queue being full; the second wins the race
+        int port = server.getAddress().getPort();
+        zone.put("multi.test", new InetAddress[]{other, loopback});
+        zone.put("single.test", new InetAddress[]{loopback});
+        List<Socket> queued = new ArrayList<>();
+        try (ServerSocket full = new ServerSocket(port, 1, other);
+             JurlEngine engine = new JurlEngine().dnsResolver(cache).happyEyeballs(100)) {
+            for (int i = 0; i < 2; i++) {
+                Socket socket = new Socket();
+                socket.connect(full.getLocalSocketAddress(), 1000);
+                queued.add(socket);
+            }
+            long start = System.nanoTime();
+            Jurl jurl = new Jurl().engine(engine).url("http://multi.test:" + port + "/json").connectTimeout(5000).go();
+            Assert.assertEquals(200, jurl.getResponseCode());
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+
+            jurl = new Jurl().engine(engine).url("http://single.test:" + port + "/json").nonBlocking(true).goAsync().get();
+            Assert.assertEquals(200, jurl.getResponseCode());
+        } finally {
+            for (Socket socket : queued) {
+                socket.close();
+            }
+        }
+        InetAddress v6 = InetAddress.getByName("::1");
+        Assert.assertArrayEquals(new InetAddress[]{loopback, v6, other},
+                JurlHappyEyeballs.interleave(new InetAddress[]{loopback, other, v6}));
+    }
+
+    @Test
+    public void testTlsSessionResumptionAndClientCertificates() throws Exception {
+        char[] password = "changeit".toCharArray();
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = getClass().getResourceAsStream("/localhost.p12")) {
+            store.load(in, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, password);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(store);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        HttpsServer https = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        https.setHttpsConfigurator(new HttpsConfigurator(serverContext) {
+            @Override
+            public void configure(HttpsParameters params) {
+                SSLParameters parameters = getSSLContext().getDefaultSSLParameters();
+                parameters.setNeedClientAuth(true);
+                params.setSSLParameters(parameters);
+            }
+        });
+        https.createContext("/json", exchange -> respond(exchange, 200, "{}"));
+        https.start();
+        String url = "https://localhost:" + https.getAddress().getPort() + "/json";
+        try {
+            SimpleMeterRegistry registry = new SimpleMeterRegistry();
+            try (JurlEngine engine = new JurlEngine().trustMaterial(store).keyMaterial(store, password)
+                    .listener(new JurlMicrometerListener(registry))) {
+                JurlMetrics metrics = new Jurl().engine(engine).url(url).go().getMetrics();
+                Assert.assertEquals(JurlMetrics.TlsHandshake.FULL, metrics.getTlsHandshake());
+                Assert.assertTrue(metrics.getNanos(JurlMetrics.Phase.TLS) >= 0);
+
+                // a new connection resumes the session, from either client
+                engine.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+                metrics = new Jurl().engine(engine).url(url).go().getMetrics();
+                Assert.assertEquals(JurlMetrics.TlsHandshake.RESUMED, metrics.getTlsHandshake());
+                metrics = new Jurl().engine(engine).url(url).go().getMetrics();
+                Assert.assertEquals(JurlMetrics.TlsHandshake.NONE, metrics.getTlsHandshake());
+                Assert.assertEquals(200, new Jurl().engine(engine).url(url).nonBlocking(true).goAsync().get()
+                        .getResponseCode());
+                Assert.assertEquals(3, engine.getTlsHandshakeCount());
+                Assert.assertEquals(2, engine.getTlsResumedCount());
+            }
+            String host = "localhost:" + https.getAddress().getPort();
+            Assert.assertEquals(1, registry.get("jurl.tls.handshakes").tags("host", host, "handshake", "full")
+                    .counter().count(), 0);
+            Assert.assertEquals(1, registry.get("jurl.tls.handshakes").tags("host", host, "handshake", "resumed")
+                    .counter().count(), 0);
+
+            // the server wants a client certificate, and the JVM does not trust the server's
+            for (JurlEngine engine : Arrays.asList(new JurlEngine().trustMaterial(store), new JurlEngine())) {
+                try {
+                    new Jurl().engine(engine).url(url).go();
+                    Assert.fail();
+                } catch (RuntimeException e) {
+                    // refused
+                } finally {
+                    engine.close();
+                }
+            }
+        } finally {
+            https.stop(0);
+        }
+    }
+
+    @Test
+    public void testHedging() throws Exception {
+        JurlHedgePolicy policy = new JurlHedgePolicy().delay(100);
+        long start = System.currentTimeMillis();
+        Jurl jurl = new Jurl().url(baseUrl + "/straggler").param("test", "hedge").hedge(policy).go();
+        Assert.assertTrue(System.currentTimeMillis() - start < 900);
+        Assert.assertEquals("{\"count\":2}", jurl.getResponseBody());
+        Assert.assertEquals(2, fetchCount("/straggler?test=hedge"));
+
+        jurl = new Jurl().url(baseUrl + "/straggler").param("test", "hedgeAsync").hedge(policy).goAsync().get();
+        Assert.assertEquals("{\"count\":2}", jurl.getResponseBody());
+
+        // fast responses are not hedged, and neither is POST
+        new Jurl().url(baseUrl + "/slow").param("ms", 0).hedge(policy).go();
+        Assert.assertEquals(1, fetchCount("/slow?ms=0"));
+        new Jurl().url(baseUrl + "/straggler?test=post").method("POST").body("{}").hedge(policy).go();
+        Assert.assertEquals(1, fetchCount("/straggler?test=post"));
+    }
+
+    @Test
+    public void testHedgingPercentileAndBudget() throws Exception {
+        JurlHedgePolicy policy = new JurlHedgePolicy().percentile(0.9).minSamples(5).delay(5000).budget(0, 1);
+        for (int i = 0; i < 5; i++) {
+            new Jurl().url(baseUrl + "/json").hedge(policy).go();
+        }
+        Assert.assertTrue(policy.getHedgeDelay() < 500);
+
+        long start = System.currentTimeMillis();
+        new Jurl().url(baseUrl + "/straggler").param("test", "percentile").hedge(policy).go();
+        Assert.assertTrue(System.currentTimeMillis() - start < 900);
+
+        // the one hedge in the budget is spent
+        start = System.currentTimeMillis();
+        Jurl jurl = new Jurl().url(baseUrl + "/straggler").param("test", "budget").hedge(policy).go();
+        Assert.assertTrue(System.currentTimeMillis() - start >= 1000);
+        Assert.assertEquals("{\"count\":1}", jurl.getResponseBody());
+
+        // the cancelled straggler counts too, so the slow tail keeps the delay up
+        JurlHedgePolicy tail = new JurlHedgePolicy().percentile(0.9).minSamples(1).delay(200);
+        new Jurl().url(baseUrl + "/straggler").param("test", "tail").hedge(tail).go();
+        Assert.assertTrue(tail.getHedgeDelay() >= 150);
+    }
+
+    @Test
+    public void testTemplate() throws Exception {
+        Jurl base = new Jurl().url(baseUrl + "/mirror").param("v", 2)
+                .basicHttpAuth("user", "secret")
+                .header("Accept-Language", "en")
+                .cookie("session", "abc")
+                .maxAttempts(3);
+        JurlTemplate template = base.toTemplate();
+        base.header("Accept-Language", "fr").param("late", 1);
+
+        Jurl jurl = template.newJurl("/orders").param("status", "open").go();
+        JsonNode request = jurl.getResponseJsonObject(JsonNode.class);
+        Assert.assertEquals("/mirror/orders", request.get("path").asText());
+        Assert.assertEquals("v=2&status=open", request.get("query").asText());
+        Assert.assertEquals("Basic dXNlcjpzZWNyZXQ=", request.get("authorization").asText());
+        Assert.assertEquals("session=abc", request.get("cookie").asText());
+        Assert.assertEquals("en", request.get("language").asText());
+        Assert.assertEquals(3, jurl.maxAttempts);
+
+        // stamped requests share nothing mutable, with the template or each other
+        List<Future<JsonNode>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 20; i++) {
+                int n = i;
+                futures.add(executor.submit(() -> template.newJurl().param("n", n).header("Accept-Language", "de")
+                        .go().getResponseJsonObject(JsonNode.class)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertEquals("v=2&n=" + i, futures.get(i).get().get("query").asText());
+                Assert.assertEquals("en", futures.get(i).get().get("language").asText());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(Collections.singletonList("en"), template.newJurl().getRequestHeaders("Accept-Language"));
+
+        // changes made through the cookie list are sent, even once the request has gone
+        Jurl changed = template.newJurl();
+        List<NameValuePair> cookies = changed.getRequestCookieList();
+        cookies.add(new BasicNameValuePair("theme", "dark"));
+        Assert.assertEquals("session=abc;theme=dark", changed.go().getResponseJsonObject(JsonNode.class)
+                .get("cookie").asText());
+        cookies.remove(0);
+        Assert.assertEquals("theme=dark", changed.go().getResponseJsonObject(JsonNode.class).get("cookie").asText());
+        Assert.assertEquals("session=abc", template.newJurl().go().getResponseJsonObject(JsonNode.class)
+                .get("cookie").asText());
+    }
+
+    @Test
+    public void testSessionCookies() throws Exception {
+        try (JurlSession session = new JurlSession().header("Accept-Language", "en")) {
+            session.newJurl(baseUrl + "/login").go();
+            Assert.assertEquals(2, session.getCookieJar().getCookies().size());
+
+            JsonNode request = session.newJurl(baseUrl + "/mirror").go().getResponseJsonObject(JsonNode.class);
+            Assert.assertEquals("session=abc", request.get("cookie").asText());
+            Assert.assertEquals("en", request.get("language").asText());
+            request = session.newJurl(baseUrl + "/mirror/private/page").cookie("extra", "1").go()
+                    .getResponseJsonObject(JsonNode.class);
+            Assert.assertEquals("scoped=1; session=abc; extra=1", request.get("cookie").asText());
+
+            // every thread sees the same jar
+            List<Future<String>> futures = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                for (int i = 0; i < 8; i++) {
+                    futures.add(executor.submit(() -> session.newJurl(baseUrl + "/mirror").go()
+                            .getResponseJsonObject(JsonNode.class).get("cookie").asText()));
+                }
+                for (Future<String> future : futures) {
+                    Assert.assertEquals("session=abc", future.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            session.newJurl(baseUrl + "/logout").go();
+            request = session.newJurl(baseUrl + "/mirror").go().getResponseJsonObject(JsonNode.class);
+            Assert.assertTrue(request.get("cookie").isNull());
+        }
+
+        // a cookie set by a redirect is kept and sent on to the next hop, on either client
+        for (boolean nonBlocking : Arrays.asList(false, true)) {
+            try (JurlSession session = new JurlSession()) {
+                JsonNode request = session.newJurl(baseUrl + "/login-redirect").method("POST").body("{}")
+                        .nonBlocking(nonBlocking).goAsync().get().getResponseJsonObject(JsonNode.class);
+                Assert.assertEquals("/mirror", request.get("path").asText());
+                Assert.assertEquals("sid=1", request.get("cookie").asText());
+                Assert.assertEquals("sid", session.getCookieJar().getCookies().get(0).getName());
+
+                // and a redirect to another host is not sent the first host's cookies
+                String otherHost = "http://127.0.0.1:" + server.getAddress().getPort() + "/mirror";
+                request = session.newJurl(baseUrl + "/bounce").param("to", otherHost).nonBlocking(nonBlocking)
+                        .goAsync().get().getResponseJsonObject(JsonNode.class);
+                Assert.assertEquals("/mirror", request.get("path").asText());
+                Assert.assertTrue(request.get("cookie").isNull());
+            }
+        }
+
+        JurlCookieJar jar = new JurlCookieJar();
+        jar.store(URI.create("https://www.example.com/shop/cart"), Arrays.asList(
+                new HttpCookie("host", "1"), domainCookie("wide", "example.com"), domainCookie("other", "example.org")));
+        HttpCookie secure = new HttpCookie("secure", "1");
+        secure.setSecure(true);
+        HttpCookie expired = new HttpCookie("expired", "1");
+        expired.setMaxAge(1);
+        jar.store(URI.create("https://example.com/"), Arrays.asList(secure, expired));
+        Assert.assertEquals("host=1; wide=1", jar.getCookieHeader(URI.create("https://www.example.com/shop/item")));
+        Assert.assertEquals("wide=1", jar.getCookieHeader(URI.create("http://api.example.com/shop")));
+        Assert.assertNull(jar.getCookieHeader(URI.create("https://www.example.com/")));
+        Assert.assertEquals("expired=1", jar.getCookieHeader(URI.create("http://example.com/")));
+        Assert.assertEquals("secure=1; expired=1", jar.getCookieHeader(URI.create("https://example.com/")));
+        Thread.sleep(1100);
+        Assert.assertEquals("secure=1", jar.getCookieHeader(URI.create("https://example.com/")));
+
+        // a public suffix covers sites of different owners
+        jar.clear();
+        jar.store(URI.create("https://www.example.co.uk/"), Arrays.asList(domainCookie("uk", "co.uk"),
+                domainCookie("com", "com"), domainCookie("own", "example.co.uk")));
+        Assert.assertEquals("own=1", jar.getCookieHeader(URI.create("https://www.example.co.uk/")));
+        Assert.assertNull(jar.getCookieHeader(URI.create("https://www.other.co.uk/")));
+        jar.store(URI.create("http://localhost/"), Collections.singletonList(domainCookie("local", "localhost")));
+        Assert.assertEquals("local=1", jar.getCookieHeader(URI.create("http://localhost/")));
+    }
+
+    private static HttpCookie domainCookie(String name, String domain) {
+        HttpCookie cookie = new HttpCookie(name, "1");
+        cookie.setDomain(domain);
+        return cookie;
+    }
+
+    @Test
+    public void testMicrometerListener() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        String host = "localhost:" + server.getAddress().getPort();
+        try (JurlEngine engine = new JurlEngine().listener(new JurlMicrometerListener(registry))) {
+            new Jurl().engine(engine).url(baseUrl + "/json").go().getResponseJsonMap();
+            new Jurl().engine(engine).url(baseUrl + "/json").nonBlocking(true).goAsync().get();
+            new Jurl().engine(engine).url(baseUrl + "/unavailable").go();
+        }
+        Timer ok = registry.get("jurl.requests")
+                .tags("host", host, "method", "GET", "outcome", "SUCCESS", "status", "200").timer();
+        Assert.assertEquals(2, ok.count());
+        Assert.assertTrue(ok.totalTime(TimeUnit.NANOSECONDS) > 0);
+        Assert.assertEquals(1, registry.get("jurl.requests").tags("outcome", "HTTP_ERROR", "status", "503")
+                .timer().count());
+        Assert.assertEquals(3, registry.get("jurl.request.phase").tags("phase", "first_byte").timer().count());
+        Assert.assertEquals(1, registry.get("jurl.request.phase").tags("phase", "deserialize").timer().count());
+        Assert.assertTrue(registry.find("jurl.request.phase").tags("phase", "tls").timers().isEmpty());
+        Assert.assertTrue(registry.find("jurl.tls.handshakes").counters().isEmpty());
+
+        // tags are the same whatever the default locale
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try (JurlEngine engine = new JurlEngine().listener(new JurlMicrometerListener(registry))) {
+            new Jurl().engine(engine).url(baseUrl + "/json").go().getResponseJsonMap();
+        } finally {
+            Locale.setDefault(locale);
+        }
+        Assert.assertEquals(2, registry.get("jurl.request.phase").tags("phase", "deserialize").timer().count());
+
+        try {
+            new JurlMicrometerListener(new Object());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // not a MeterRegistry
+        }
+    }
+
+    @Test
+    public void testMetricsListener() throws Exception {
+        JurlLatencyRecorder recorder = new JurlLatencyRecorder();
+        List<JurlMetrics> seen = Collections.synchronizedList(new ArrayList<>());
+        String host = "localhost:" + server.getAddress().getPort();
+        try (JurlEngine engine = new JurlEngine().listener(recorder)) {
+            Jurl jurl = new Jurl().engine(engine).url(baseUrl + "/json").listener(new JurlListener() {
+                @Override
+                public void onComplete(JurlMetrics metrics) {
+                    seen.add(metrics);
+                }
+            }).go();
+            JurlMetrics metrics = jurl.getMetrics();
+            Assert.assertEquals(Collections.singletonList(metrics), seen);
+            Assert.assertEquals(JurlMetrics.Outcome.SUCCESS, metrics.getOutcome());
+            Assert.assertEquals(host, metrics.getHost());
+            Assert.assertEquals(1, metrics.getAttempts());
+            Assert.assertEquals(jurl.getResponseBody().length(), metrics.getBytesReceived());
+            for (JurlMetrics.Phase phase : Arrays.asList(JurlMetrics.Phase.LEASE, JurlMetrics.Phase.DNS,
+                    JurlMetrics.Phase.CONNECT, JurlMetrics.Phase.FIRST_BYTE, JurlMetrics.Phase.BODY)) {
+                Assert.assertTrue(phase.name(), metrics.getNanos(phase) >= 0);
+            }
+            Assert.assertEquals(-1, metrics.getNanos(JurlMetrics.Phase.TLS));
+            Assert.assertTrue(metrics.getNanos(JurlMetrics.Phase.TOTAL) >= metrics.getNanos(JurlMetrics.Phase.FIRST_BYTE));
+            jurl.getResponseJsonObject(JsonNode.class);
+            jurl.getResponseJsonObject(JsonNode.class);
+            Assert.assertEquals(1, recorder.getHistogram(host, "GET", JurlMetrics.Phase.DESERIALIZE).getCount());
+
+            // the connection is reused
+            metrics = new Jurl().engine(engine).url(baseUrl + "/json").go().getMetrics();
+            Assert.assertEquals(-1, metrics.getNanos(JurlMetrics.Phase.CONNECT));
+
+            for (boolean nonBlocking : Arrays.asList(false, true)) {
+                metrics = new Jurl().engine(engine).url(baseUrl + "/unavailable").nonBlocking(nonBlocking)
+                        .maxAttempts(3).timeBetweenAttempts(10).goAsync().get().getMetrics();
+                Assert.assertEquals(JurlMetrics.Outcome.HTTP_ERROR, metrics.getOutcome());
+                Assert.assertEquals(503, metrics.getStatusCode());
+                Assert.assertEquals(3, metrics.getAttempts());
+                Assert.assertTrue(metrics.getNanos(JurlMetrics.Phase.FIRST_BYTE) >= 0);
+
+                Jurl timedOut = new Jurl().engine(engine).url(baseUrl + "/slow").param("ms", 1000)
+                        .nonBlocking(nonBlocking).timeout(100);
+                try {
+                    timedOut.goAsync().get();
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof JurlTimeoutException);
+                }
+                Assert.assertEquals(JurlMetrics.Outcome.TIMEOUT, timedOut.getMetrics().getOutcome());
+            }
+        }
+        Assert.assertEquals(2, recorder.getOutcomeCount(host, "GET", JurlMetrics.Outcome.SUCCESS));
+        Assert.assertEquals(2, recorder.getOutcomeCount(host, "GET", JurlMetrics.Outcome.HTTP_ERROR));
+        Assert.assertEquals(2, recorder.getOutcomeCount(host, "GET", JurlMetrics.Outcome.TIMEOUT));
+        Assert.assertEquals(6, recorder.getHistogram(host, "GET", JurlMetrics.Phase.TOTAL).getCount());
+
+        JurlHistogram histogram = new JurlHistogram();
+        for (long i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(100_000, histogram.getCount());
+        Assert.assertEquals(100_000_000, histogram.getMax());
+        Assert.assertEquals(50_000_000, histogram.getPercentile(0.5), 50_000_000 / 50);
+        Assert.assertEquals(99_000_000, histogram.getPercentile(0.99), 99_000_000 / 50);
+        Assert.assertEquals(1000, histogram.getPercentile(0), 1000 / 50);
+    }
+
+    @Test
+    public void testBatch() {
+        List<Jurl> requests = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            requests.add(new Jurl().url(baseUrl + "/slow").param("ms", 100).param("batch", i));
+        }
+        JurlBatch batch = new JurlBatch(requests).parallelism(5);
+        List<Jurl> results = batch.go();
+        Assert.assertEquals(requests, results);
+        for (Jurl jurl : results) {
+            Assert.assertEquals(200, jurl.getResponseCode());
+        }
+        Assert.assertEquals(5, batch.getMaxInFlight());
+        Assert.assertEquals(20, batch.getCompletedCount());
+        Assert.assertEquals(0, batch.getErrorCount());
+        Assert.assertTrue(batch.getWallTime() >= 400);
+
+        // collects failures, and reports requests as they complete
+        List<Jurl> finished = Collections.synchronizedList(new ArrayList<>());
+        Jurl slow = new Jurl().url(baseUrl + "/slow").param("ms", 300);
+        Jurl failing = new Jurl().url(baseUrl + "/unavailable").throwOnNon200(true);
+        batch = new JurlBatch(Arrays.asList(slow, failing, new Jurl().url(baseUrl + "/json").nonBlocking(true)))
+                .onComplete((jurl, t) -> finished.add(jurl));
+        results = batch.go();
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(slow, finished.get(2));
+        Assert.assertEquals(1, batch.getErrorCount());
+        Assert.assertTrue(batch.getFailures().get(failing) instanceof JurlHttpStatusCodeException);
+
+        // a listener that throws neither stalls the batch nor fails its requests
+        batch = new JurlBatch(Arrays.asList(new Jurl().url(baseUrl + "/json"), new Jurl().url(baseUrl + "/json")))
+                .parallelism(1)
+                .timeout(5000)
+                .onComplete((jurl, t) -> {
+                    throw new IllegalStateException("listener");
+                });
+        results = batch.go();
+        Assert.assertEquals(2, batch.getCompletedCount());
+        Assert.assertEquals(0, batch.getErrorCount());
+        Assert.assertEquals(200, results.get(1).getResponseCode());
+    }
+
+    @Test
+    public void testBatchFailFastAndDeadline() {
+        Jurl never = new Jurl().url(baseUrl + "/slow").param("ms", 0).param("test", "failFast");
+        JurlBatch batch = new JurlBatch(Arrays.asList(
+                new Jurl().url(baseUrl + "/unavailable").throwOnNon200(true), never))
+                .parallelism(1)
+                .failFast(true);
+        try {
+            batch.go();
+            Assert.fail();
+        } catch (JurlHttpStatusCodeException e) {
+            Assert.assertEquals(503, e.getJurlInstance().getResponseCode());
+        }
+        Assert.assertEquals(0, fetchCount("/slow?ms=0&test=failFast"));
+
+        long start = System.currentTimeMillis();
+        batch = new JurlBatch(Arrays.asList(
+                new Jurl().url(baseUrl + "/slow").param("ms", 2000),
+                new Jurl().url(baseUrl + "/json"),
+                new Jurl().url(baseUrl + "/slow").param("ms", 2000).nonBlocking(true)))
+                .timeout(300);
+        List<Jurl> results = batch.go();
+        Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+        Assert.assertEquals(200, results.get(1).getResponseCode());
+        Assert.assertEquals(2, batch.getErrorCount());
+        Assert.assertTrue(batch.getFailures().get(results.get(0)) instanceof JurlDeadlineExceededException);
+    }
+
+    @Test
+    public void testHttp2Engine() throws Exception {
+        if (!JurlEngine.isHttp2Supported()) {
+            try {
+                new JurlEngine().http2(true);
+                Assert.fail();
+            } catch (UnsupportedOperationException e) {
+                // Java 8
+            }
+            return;
+        }
+        try (JurlEngine engine = new JurlEngine().http2(true)) {
+            // the test server only speaks HTTP/1.1, so the h2c upgrade is declined
+            Jurl jurl = new Jurl().engine(engine).url(baseUrl + "/json").go();
+            Assert.assertEquals(200, jurl.getResponseCode());
+            Assert.assertEquals("jurl", jurl.getResponseJsonMap().get("name"));
+            Assert.assertEquals("HTTP/1.1", jurl.getResponseProtocol());
+
+            byte[] bytes = "caf\u00e9 \u2603".getBytes(StandardCharsets.UTF_8);
+            jurl = new Jurl().engine(engine).url(baseUrl + "/upload").method("POST").body(bytes).go();
+            Assert.assertArrayEquals(bytes, jurl.getResponseBytes());
+
+            Map<String, Object> value = new HashMap<>();
+            value.put("name", "caf\u00e9");
+            jurl = new Jurl().engine(engine).url(baseUrl + "/upload").method("POST").bodyJson(value)
+                    .nonBlocking(true).goAsync().get();
+            Assert.assertEquals(value, jurl.getResponseJsonMap());
+
+            jurl = new Jurl().engine(engine).url(baseUrl + "/compressed").go();
+            Assert.assertEquals(1000, jurl.getResponseJsonList(Record.class).size());
+
+            jurl = new Jurl().engine(engine).url(baseUrl + "/json").streamResponse(true).go();
+            try (InputStream in = jurl.getResponseStream()) {
+                Assert.assertEquals('{', in.read());
+            }
+
+            long start = System.currentTimeMillis();
+            try {
+                new Jurl().engine(engine).url(baseUrl + "/slow").param("ms", 2000).timeout(200).go();
+                Assert.fail();
+            } catch (JurlDeadlineExceededException e) {
+                Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+            }
+        }
+
+        // a server that accepts the upgrade gets HTTP/2, with every request multiplexed over one connection
+        AtomicInteger connections = new AtomicInteger();
+        try (ServerSocket h2c = startH2cServer(connections);
+             JurlEngine engine = new JurlEngine().http2(true)) {
+            String url = "http://localhost:" + h2c.getLocalPort() + "/json";
+            Jurl jurl = new Jurl().engine(engine).url(url).go();
+            Assert.assertEquals(200, jurl.getResponseCode());
+            Assert.assertEquals("HTTP/2.0", jurl.getResponseProtocol());
+            Assert.assertEquals("h2", jurl.getResponseJsonMap().get("name"));
+
+            List<CompletableFuture<Jurl>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(new Jurl().engine(engine).url(url).param("i", i).nonBlocking(i % 2 == 0).goAsync());
+            }
+            for (CompletableFuture<Jurl> future : futures) {
+                jurl = future.get();
+                Assert.assertEquals("HTTP/2.0", jurl.getResponseProtocol());
+                Assert.assertEquals("h2", jurl.getResponseJsonMap().get("name"));
+            }
+            Assert.assertEquals(1, connections.get());
+        }
+    }
+
+    /**
+     * Just enough of an HTTP/2 server for the JDK's client: it accepts the h2c upgrade and answers every stream with
+     * the same small JSON body, ignoring what was asked for.
+     */
+    private static ServerSocket startH2cServer(AtomicInteger connections) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread connection = new Thread(() -> serveH2c(socket));
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket;
+    }
+
+    private static void serveH2c(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            StringBuilder head = new StringBuilder();
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                head.append((char) in.readUnsignedByte());
+            }
+            if (!head.toString().toLowerCase().contains("upgrade: h2c")) {
+                return;
+            }
+            out.write("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, 0x4, 0, 0, new byte[0]); // SETTINGS
+            in.readFully(new byte[24]); // the client's connection preface
+            respondH2(out, 1); // the upgraded request is stream 1
+            while (true) {
+                int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int stream = in.readInt() & 0x7fffffff;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                boolean endStream = (flags & 0x1) != 0;
+                if (type == 0x4 && (flags & 0x1) == 0) {
+                    writeFrame(out, 0x4, 0x1, 0, new byte[0]); // SETTINGS ACK
+                } else if (type == 0x6 && (flags & 0x1) == 0) {
+                    writeFrame(out, 0x6, 0x1, 0, payload); // PING ACK
+                } else if ((type == 0x1 || type == 0x0) && endStream) {
+                    respondH2(out, stream); // HEADERS or DATA ending a request
+                } else if (type == 0x7) {
+                    return; // GOAWAY
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    private static void respondH2(DataOutputStream out, int stream) throws IOException {
+        byte[] body = "{\"name\":\"h2\"}".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        headers.write(0x88); // :status 200, from the HPACK static table
+        headers.write(new byte[]{0x0f, 0x10, 16}); // content-type, a literal not added to the dynamic table
+        headers.write("application/json".getBytes(StandardCharsets.US_ASCII));
+        byte[] length = Integer.toString(body.length).getBytes(StandardCharsets.US_ASCII);
+        headers.write(new byte[]{0x0f, 0x0d, (byte) length.length}); // content-length
+        headers.write(length);
+        writeFrame(out, 0x1, 0x4, stream, headers.toByteArray()); // HEADERS, END_HEADERS
+        writeFrame(out, 0x0, 0x1, stream, body); // DATA, END_STREAM
+    }
+
+    private static void writeFrame(DataOutputStream out, int type, int flags, int stream, byte[] payload)
+            throws IOException {
+        out.writeByte(payload.length >>> 16);
+        out.writeShort(payload.length);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(stream);
+        out.write(payload);
+        out.flush();
+    }
+}